@@ -0,0 +1,138 @@
+package is.gangverk.remoteconfig;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * Delivers config changes to listeners subscribed to key prefixes. Subscriptions are kept in a
+ * trie keyed by the characters of the prefix, so dispatching walks each changed key down the trie
+ * once and only the subscribers whose prefix matches are woken up, each with a single change set
+ * holding only its keys, on its own executor.
+ */
+public class ChangeDispatcher {
+    private final Node mRoot = new Node();
+
+    private static final class Node {
+        HashMap<Character, Node> children;
+        ArrayList<Subscription> subscriptions;
+    }
+
+    private static final class Subscription {
+        final ConfigChangeListener listener;
+        final Executor executor;
+
+        Subscription(ConfigChangeListener listener, Executor executor) {
+            this.listener = listener;
+            this.executor = executor;
+        }
+    }
+
+    /**
+     * Subscribes the listener to changes of every key starting with the prefix
+     *
+     * @param prefix The key prefix, for example "remoteObject.", an empty prefix matches every key
+     * @param listener The listener to call
+     * @param executor The executor the listener is called on
+     */
+    public synchronized void subscribe(String prefix, ConfigChangeListener listener, Executor executor) {
+        Node node = mRoot;
+        for(int i=0;i<prefix.length();i++) {
+            if(node.children==null) {
+                node.children = new HashMap<Character, Node>();
+            }
+            Character c = Character.valueOf(prefix.charAt(i));
+            Node child = node.children.get(c);
+            if(child==null) {
+                child = new Node();
+                node.children.put(c, child);
+            }
+            node = child;
+        }
+        if(node.subscriptions==null) {
+            node.subscriptions = new ArrayList<Subscription>();
+        }
+        node.subscriptions.add(new Subscription(listener, executor));
+    }
+
+    /**
+     * Removes every subscription of the listener
+     */
+    public synchronized void unsubscribe(ConfigChangeListener listener) {
+        unsubscribe(mRoot, listener);
+    }
+
+    private boolean unsubscribe(Node node, ConfigChangeListener listener) {
+        if(node.subscriptions!=null) {
+            for(int i=node.subscriptions.size()-1;i>=0;i--) {
+                if(node.subscriptions.get(i).listener==listener) {
+                    node.subscriptions.remove(i);
+                }
+            }
+            if(node.subscriptions.isEmpty()) {
+                node.subscriptions = null;
+            }
+        }
+        if(node.children!=null) {
+            Iterator<Node> it = node.children.values().iterator();
+            while(it.hasNext()) {
+                if(unsubscribe(it.next(), listener)) {
+                    it.remove();
+                }
+            }
+            if(node.children.isEmpty()) {
+                node.children = null;
+            }
+        }
+        // Tells the parent it can drop an empty node
+        return node.subscriptions==null && node.children==null;
+    }
+
+    /**
+     * Delivers the changes to every subscriber with a matching prefix
+     *
+     * @param changes The changed keys and their new values
+     */
+    public void dispatch(Map<String, Object> changes) {
+        if(changes.isEmpty()) {
+            return;
+        }
+        IdentityHashMap<Subscription, HashMap<String, Object>> matches = new IdentityHashMap<Subscription, HashMap<String, Object>>();
+        synchronized (this) {
+            for(Map.Entry<String, Object> change : changes.entrySet()) {
+                String key = change.getKey();
+                Node node = mRoot;
+                int depth = 0;
+                while(node!=null) {
+                    if(node.subscriptions!=null) {
+                        for(Subscription subscription : node.subscriptions) {
+                            HashMap<String, Object> matched = matches.get(subscription);
+                            if(matched==null) {
+                                matched = new HashMap<String, Object>();
+                                matches.put(subscription, matched);
+                            }
+                            matched.put(key, change.getValue());
+                        }
+                    }
+                    if(depth==key.length() || node.children==null) {
+                        break;
+                    }
+                    node = node.children.get(Character.valueOf(key.charAt(depth++)));
+                }
+            }
+        }
+        for(Map.Entry<Subscription, HashMap<String, Object>> match : matches.entrySet()) {
+            final Subscription subscription = match.getKey();
+            final ConfigChangeSet changeSet = new ConfigChangeSet(match.getValue());
+            subscription.executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    subscription.listener.onConfigChanged(changeSet);
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package is.gangverk.remoteconfig;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Default values compiled into the app from rc.json at build time by the defaults generator in
+ * tools/. The generated class hands its static arrays to this snapshot, so the defaults are
+ * available without reading assets, parsing JSON or writing preferences at startup.
+ */
+public final class CompiledDefaults extends ConfigSnapshot {
+    private final String[] mKeys;
+    private final byte[] mTypes;
+    private final long[] mPrimitives;
+    private final String[] mStrings;
+
+    /**
+     * @param keys The keys, sorted with String.compareTo
+     * @param types The ConfigSnapshot.TYPE_* constant of each value
+     * @param primitives The int, long and boolean values as is and doubles as their raw long bits
+     * @param strings The string values, null for other types
+     */
+    public CompiledDefaults(String[] keys, byte[] types, long[] primitives, String[] strings) {
+        if(keys.length!=types.length || keys.length!=primitives.length || keys.length!=strings.length) {
+            throw new IllegalArgumentException("The default arrays must have the same length");
+        }
+        mKeys = keys;
+        mTypes = types;
+        mPrimitives = primitives;
+        mStrings = strings;
+    }
+
+    private int indexOf(String key) {
+        return Arrays.binarySearch(mKeys, key);
+    }
+
+    @Override
+    public Object get(String key) {
+        int index = indexOf(key);
+        if(index<0) return null;
+        switch(mTypes[index]) {
+            case TYPE_STRING: return mStrings[index];
+            case TYPE_INT: return Integer.valueOf((int)mPrimitives[index]);
+            case TYPE_LONG: return Long.valueOf(mPrimitives[index]);
+            case TYPE_DOUBLE: return Double.valueOf(Double.longBitsToDouble(mPrimitives[index]));
+            case TYPE_BOOLEAN: return Boolean.valueOf(mPrimitives[index]!=0);
+            default: return null;
+        }
+    }
+
+    @Override
+    public int getType(String key) {
+        int index = indexOf(key);
+        return index<0 ? TYPE_NONE : mTypes[index];
+    }
+
+    @Override
+    public String getString(String key) {
+        int index = indexOf(key);
+        return index<0 ? null : mStrings[index];
+    }
+
+    @Override
+    public int getInt(String key, int defaultValue) {
+        int index = indexOf(key);
+        return index>=0 && mTypes[index]==TYPE_INT ? (int)mPrimitives[index] : defaultValue;
+    }
+
+    @Override
+    public long getLong(String key, long defaultValue) {
+        int index = indexOf(key);
+        return index>=0 && (mTypes[index]==TYPE_LONG || mTypes[index]==TYPE_INT) ? mPrimitives[index] : defaultValue;
+    }
+
+    @Override
+    public double getDouble(String key, double defaultValue) {
+        int index = indexOf(key);
+        if(index<0) return defaultValue;
+        switch(mTypes[index]) {
+            case TYPE_DOUBLE: return Double.longBitsToDouble(mPrimitives[index]);
+            case TYPE_INT:
+            case TYPE_LONG: return mPrimitives[index];
+            default: return defaultValue;
+        }
+    }
+
+    @Override
+    public boolean getBoolean(String key, boolean defaultValue) {
+        int index = indexOf(key);
+        return index>=0 && mTypes[index]==TYPE_BOOLEAN ? mPrimitives[index]!=0 : defaultValue;
+    }
+
+    @Override
+    public int size() {
+        return mKeys.length;
+    }
+
+    @Override
+    public Map<String, Object> asMap() {
+        HashMap<String, Object> values = new HashMap<String, Object>();
+        for(String key : mKeys) {
+            values.put(key, get(key));
+        }
+        return values;
+    }
+}
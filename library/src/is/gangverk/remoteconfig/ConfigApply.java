@@ -0,0 +1,156 @@
+package is.gangverk.remoteconfig;
+
+import java.io.IOException;
+import java.util.HashMap;
+
+/**
+ * Diffs a downloaded document or merge patch against the stored config and writes the changed keys
+ * to the store. Publishing the result and telling listeners is left to the caller. Nothing in here
+ * needs Android, so the load test in tools/loadtest applies downloads with it too.
+ *
+ * <p>The store keeps the cache validators of the document it has. They are only stored once that
+ * document is written, see {@link #storeDownload(ConfigStore, Utils.FeedResponse, long)}.</p>
+ */
+final class ConfigApply {
+    // The root hash of the last full document, 0 after a patch
+    static final String CONFIG_HASH_KEY = "rc_config_hash";
+    // The hash of every object of the last full document, see ConfigHashTree.encodeHashes()
+    static final String CONFIG_HASHES_KEY = "rc_config_hashes";
+
+    // What the store has now
+    final ConfigSnapshot written;
+    // The stored document as JSON text
+    final String raw;
+    // The object hashes of the stored document, null after a patch
+    final ConfigHashTree hashTree;
+    // The written keys, removed ones with null
+    final HashMap<String, Object> changes;
+    final long diffNanos;
+    final long persistNanos;
+
+    private ConfigApply(ConfigSnapshot written, String raw, ConfigHashTree hashTree, HashMap<String, Object> changes, long diffNanos, long persistNanos) {
+        this.written = written;
+        this.raw = raw;
+        this.hashTree = hashTree;
+        this.changes = changes;
+        this.diffNanos = diffNanos;
+        this.persistNanos = persistNanos;
+    }
+
+    /**
+     * Writes a full document. Only objects whose content hash changed are compared key by key.
+     *
+     * @param current What the store has now
+     * @param storedHashTree The hash tree of the stored document, null if it isn't known
+     */
+    static ConfigApply document(ConfigStore store, ConfigSnapshot current, ConfigHashTree storedHashTree, FlatConfig config) {
+        long diffStart = System.nanoTime();
+        HashMap<String, Object> changes = new HashMap<String, Object>();
+        ConfigHashTree hashTree = config.getHashTree();
+        hashTree.diff(previousHashTree(store, storedHashTree, hashTree), current, changes);
+        long persistStart = System.nanoTime();
+        // The raw document is kept as it was downloaded
+        ConfigSnapshot written = store.write(current, changes, config.getRaw());
+        HashMap<String, Object> metadata = new HashMap<String, Object>();
+        metadata.put(CONFIG_HASH_KEY, Long.valueOf(hashTree.getRootHash()));
+        metadata.put(CONFIG_HASHES_KEY, hashTree.encodeHashes());
+        store.putMetadata(metadata);
+        return new ConfigApply(written, config.getRaw(), hashTree, changes, persistStart - diffStart, System.nanoTime() - persistStart);
+    }
+
+    /**
+     * Applies a JSON merge patch to the stored document. Only the patched keys are written.
+     *
+     * @param current What the store has now
+     * @return Null if there is no stored document to patch
+     * @throws IOException If the patch doesn't apply to the stored document
+     */
+    static ConfigApply patch(ConfigStore store, ConfigSnapshot current, FlatConfig patch) throws IOException {
+        long diffStart = System.nanoTime();
+        String document = store.readRawConfig();
+        if(document==null) {
+            return null;
+        }
+        String patched = JsonFlattener.mergePatch(document, patch.getRaw());
+        HashMap<String, Object> changes = new HashMap<String, Object>();
+        patch.diffPatch(current, changes);
+        long persistStart = System.nanoTime();
+        ConfigSnapshot written = store.write(current, changes, patched);
+        forgetHashes(store);
+        return new ConfigApply(written, patched, null, changes, persistStart - diffStart, System.nanoTime() - persistStart);
+    }
+
+    /**
+     * Stores the validators, download time and freshness of a response whose document has been
+     * written. Stored any earlier, new validators with old values would get 304s until the server
+     * changes.
+     *
+     * @param jitter The jitter drawn for the download, see {@link Freshness#drawJitter(double, java.util.Random)}
+     */
+    static void storeDownload(ConfigStore store, Utils.FeedResponse<?> response, long jitter) {
+        HashMap<String, Object> metadata = new HashMap<String, Object>();
+        metadata.put(ConfigFetch.ETAG_KEY, response.eTag);
+        metadata.put(ConfigFetch.LAST_MODIFIED_KEY, response.lastModified);
+        metadata.put(Freshness.LAST_DOWNLOADED_CONFIG_KEY, Long.valueOf(System.currentTimeMillis()));
+        metadata.put(Freshness.JITTER_KEY, Long.valueOf(jitter));
+        Freshness.store(metadata, response);
+        store.putMetadata(metadata);
+    }
+
+    /**
+     * Stores the download time of a 304 response. The stored document and its validators are
+     * still current.
+     */
+    static void storeNotModified(ConfigStore store, Utils.FeedResponse<?> response, long jitter) {
+        HashMap<String, Object> metadata = new HashMap<String, Object>();
+        metadata.put(Freshness.LAST_DOWNLOADED_CONFIG_KEY, Long.valueOf(System.currentTimeMillis()));
+        metadata.put(Freshness.JITTER_KEY, Long.valueOf(jitter));
+        if(response.maxAge>=0) {
+            // Otherwise the freshness of the stored response still holds
+            Freshness.store(metadata, response);
+        }
+        store.putMetadata(metadata);
+    }
+
+    /**
+     * Forgets the version of the stored document, so the next fetch downloads the whole document
+     */
+    static void forgetVersion(ConfigStore store) {
+        HashMap<String, Object> metadata = new HashMap<String, Object>();
+        metadata.put(ConfigFetch.ETAG_KEY, null);
+        metadata.put(ConfigFetch.LAST_MODIFIED_KEY, null);
+        metadata.put(Freshness.LAST_DOWNLOADED_CONFIG_KEY, Long.valueOf(0));
+        store.putMetadata(metadata);
+    }
+
+    /**
+     * Forgets the hashes of the stored document, after its values were changed some other way, so
+     * the next download is compared key by key
+     */
+    static void forgetHashes(ConfigStore store) {
+        HashMap<String, Object> metadata = new HashMap<String, Object>();
+        metadata.put(CONFIG_HASH_KEY, Long.valueOf(0));
+        metadata.put(CONFIG_HASHES_KEY, null);
+        store.putMetadata(metadata);
+    }
+
+    /**
+     * Returns the hash tree to diff a new document against, null to compare every key
+     */
+    private static ConfigHashTree previousHashTree(ConfigStore store, ConfigHashTree stored, ConfigHashTree hashTree) {
+        if(stored!=null) {
+            return stored;
+        }
+        long storedRootHash = store.getLong(CONFIG_HASH_KEY, 0);
+        if(storedRootHash==0) {
+            return null;
+        }
+        if(storedRootHash==hashTree.getRootHash()) {
+            // Same document as the one stored before the app was started
+            return hashTree;
+        }
+        // The hashes stored with the document, from before the app was started
+        ConfigHashTree previous = ConfigHashTree.decodeHashes(store.getString(CONFIG_HASHES_KEY));
+        return previous!=null && previous.getRootHash()==storedRootHash ? previous : null;
+    }
+}
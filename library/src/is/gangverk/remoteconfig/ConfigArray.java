@@ -0,0 +1,180 @@
+package is.gangverk.remoteconfig;
+
+import java.util.List;
+
+/**
+ * An immutable, parsed config array. Arrays are stored as their JSON text, {@link RemoteConfig#getArray(String)}
+ * parses each one once per config update and hands the same instance to every reader. Numbers and
+ * booleans are kept unboxed, so the typed getters don't allocate.
+ *
+ * <p>Elements are strings, numbers, booleans, nulls, nested arrays or objects. Objects are kept as
+ * their compact JSON text and returned by {@link #getString(int)}.</p>
+ */
+public final class ConfigArray {
+    public static final int TYPE_ARRAY = 6;
+    public static final int TYPE_OBJECT = 7;
+
+    private final String mJson;
+    private final byte[] mTypes;
+    // int, long and boolean elements as is, doubles as their raw long bits
+    private final long[] mPrimitives;
+    // Strings, object JSON and nested arrays
+    private final Object[] mObjects;
+
+    /**
+     * @param json The array as JSON text
+     * @param elements String, Integer, Long, Double, Boolean, ConfigArray, JsonObject or null elements
+     */
+    ConfigArray(String json, List<Object> elements) {
+        mJson = json;
+        int size = elements.size();
+        mTypes = new byte[size];
+        mPrimitives = new long[size];
+        mObjects = new Object[size];
+        for(int i=0;i<size;i++) {
+            Object element = elements.get(i);
+            if(element instanceof ConfigArray) {
+                mTypes[i] = TYPE_ARRAY;
+                mObjects[i] = element;
+            } else if(element instanceof JsonObject) {
+                mTypes[i] = TYPE_OBJECT;
+                mObjects[i] = ((JsonObject)element).json;
+            } else {
+                int type = ConfigSnapshot.typeOf(element);
+                mTypes[i] = (byte)type;
+                switch(type) {
+                    case ConfigSnapshot.TYPE_STRING: mObjects[i] = element; break;
+                    case ConfigSnapshot.TYPE_INT: mPrimitives[i] = ((Integer)element).intValue(); break;
+                    case ConfigSnapshot.TYPE_LONG: mPrimitives[i] = ((Long)element).longValue(); break;
+                    case ConfigSnapshot.TYPE_DOUBLE: mPrimitives[i] = Double.doubleToRawLongBits(((Double)element).doubleValue()); break;
+                    case ConfigSnapshot.TYPE_BOOLEAN: mPrimitives[i] = ((Boolean)element).booleanValue() ? 1 : 0; break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Marks an object element while the array is being parsed
+     */
+    static final class JsonObject {
+        final String json;
+
+        JsonObject(String json) {
+            this.json = json;
+        }
+    }
+
+    public int size() {
+        return mTypes.length;
+    }
+
+    /**
+     * Returns one of the ConfigSnapshot.TYPE_* constants, TYPE_ARRAY or TYPE_OBJECT. Nulls are TYPE_NONE.
+     */
+    public int getType(int index) {
+        return mTypes[index];
+    }
+
+    /**
+     * Returns the element boxed, objects as their JSON text
+     */
+    public Object get(int index) {
+        switch(mTypes[index]) {
+            case ConfigSnapshot.TYPE_INT: return Integer.valueOf((int)mPrimitives[index]);
+            case ConfigSnapshot.TYPE_LONG: return Long.valueOf(mPrimitives[index]);
+            case ConfigSnapshot.TYPE_DOUBLE: return Double.valueOf(Double.longBitsToDouble(mPrimitives[index]));
+            case ConfigSnapshot.TYPE_BOOLEAN: return Boolean.valueOf(mPrimitives[index]!=0);
+            default: return mObjects[index];
+        }
+    }
+
+    /**
+     * Returns the string, or the JSON text of an object, at the index or null if it's something else
+     */
+    public String getString(int index) {
+        Object value = mObjects[index];
+        return value instanceof String ? (String)value : null;
+    }
+
+    public int getInt(int index, int defaultValue) {
+        return mTypes[index]==ConfigSnapshot.TYPE_INT ? (int)mPrimitives[index] : defaultValue;
+    }
+
+    public long getLong(int index, long defaultValue) {
+        int type = mTypes[index];
+        return type==ConfigSnapshot.TYPE_INT || type==ConfigSnapshot.TYPE_LONG ? mPrimitives[index] : defaultValue;
+    }
+
+    public double getDouble(int index, double defaultValue) {
+        switch(mTypes[index]) {
+            case ConfigSnapshot.TYPE_DOUBLE: return Double.longBitsToDouble(mPrimitives[index]);
+            case ConfigSnapshot.TYPE_INT:
+            case ConfigSnapshot.TYPE_LONG: return mPrimitives[index];
+            default: return defaultValue;
+        }
+    }
+
+    public boolean getBoolean(int index, boolean defaultValue) {
+        return mTypes[index]==ConfigSnapshot.TYPE_BOOLEAN ? mPrimitives[index]!=0 : defaultValue;
+    }
+
+    /**
+     * Returns the nested array at the index or null if it's something else
+     */
+    public ConfigArray getArray(int index) {
+        Object value = mObjects[index];
+        return value instanceof ConfigArray ? (ConfigArray)value : null;
+    }
+
+    /**
+     * Returns a copy of the elements as ints, elements that aren't ints become the default value
+     */
+    public int[] toIntArray(int defaultValue) {
+        int[] values = new int[mTypes.length];
+        for(int i=0;i<values.length;i++) {
+            values[i] = getInt(i, defaultValue);
+        }
+        return values;
+    }
+
+    /**
+     * Returns a copy of the elements as longs, elements that aren't integer numbers become the default value
+     */
+    public long[] toLongArray(long defaultValue) {
+        long[] values = new long[mTypes.length];
+        for(int i=0;i<values.length;i++) {
+            values[i] = getLong(i, defaultValue);
+        }
+        return values;
+    }
+
+    /**
+     * Returns a copy of the elements as doubles, elements that aren't numbers become the default value
+     */
+    public double[] toDoubleArray(double defaultValue) {
+        double[] values = new double[mTypes.length];
+        for(int i=0;i<values.length;i++) {
+            values[i] = getDouble(i, defaultValue);
+        }
+        return values;
+    }
+
+    /**
+     * Returns the strings of the array, elements that aren't strings become null
+     */
+    public String[] toStringArray() {
+        String[] values = new String[mTypes.length];
+        for(int i=0;i<values.length;i++) {
+            values[i] = mTypes[i]==ConfigSnapshot.TYPE_STRING ? (String)mObjects[i] : null;
+        }
+        return values;
+    }
+
+    /**
+     * Returns the JSON text the array was parsed from
+     */
+    @Override
+    public String toString() {
+        return mJson;
+    }
+}
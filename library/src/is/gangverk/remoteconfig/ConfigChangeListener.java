@@ -0,0 +1,11 @@
+package is.gangverk.remoteconfig;
+
+public interface ConfigChangeListener {
+    /**
+     * Called once per config update with the changed keys under the prefix the listener subscribed to.
+     * Runs on the executor given when subscribing.
+     *
+     * @param changes The changed keys and their new values, never empty
+     */
+    public void onConfigChanged(ConfigChangeSet changes);
+}
@@ -0,0 +1,58 @@
+package is.gangverk.remoteconfig;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The keys that changed in one config update and their new values. Change sets are immutable and
+ * can be handed to any thread.
+ */
+public final class ConfigChangeSet {
+    private final Map<String, Object> mChanges;
+
+    /**
+     * @param changes The changed keys and their new values, the map must not be modified afterwards
+     */
+    ConfigChangeSet(Map<String, Object> changes) {
+        mChanges = Collections.unmodifiableMap(changes);
+    }
+
+    /**
+     * Returns the changed keys
+     */
+    public Set<String> getKeys() {
+        return mChanges.keySet();
+    }
+
+    public boolean contains(String key) {
+        return mChanges.containsKey(key);
+    }
+
+    /**
+     * Returns the new value of a changed key, see {@link RemoteConfig.RemoteConfigListener#onValueUpdated(String, Object)}
+     */
+    public Object get(String key) {
+        return mChanges.get(key);
+    }
+
+    /**
+     * Returns the changed keys and their new values
+     */
+    public Map<String, Object> asMap() {
+        return mChanges;
+    }
+
+    public int size() {
+        return mChanges.size();
+    }
+
+    public boolean isEmpty() {
+        return mChanges.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return mChanges.toString();
+    }
+}
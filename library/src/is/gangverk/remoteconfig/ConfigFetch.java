@@ -0,0 +1,144 @@
+package is.gangverk.remoteconfig;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+/**
+ * Downloads a config or namespace from its location, sending the cache validators in its store.
+ * Runs on the refresh coordinator executor. Nothing in here needs Android, so the load test in
+ * tools/loadtest runs it as is.
+ */
+final class ConfigFetch implements Callable<ConfigFetch.Result>, Utils.BodyReader<FlatConfig> {
+    // The cache validators of the last downloaded config, sent back on the next fetch
+    static final String ETAG_KEY = "rc_etag";
+    static final String LAST_MODIFIED_KEY = "rc_last_modified";
+
+    private final ConfigTransport mFetchTransport;
+    private final URL mLocation;
+    // The namespace name the keys are put under, null for the config itself
+    private final String mPrefix;
+    private final ConfigStore mFetchStore;
+    private final RemoteConfigMetrics mFetchMetrics;
+    private long mParseStart;
+    private long mBodyBytes;
+
+    ConfigFetch(ConfigTransport transport, URL location, String prefix, ConfigStore store, RemoteConfigMetrics metrics) {
+        mFetchTransport = transport;
+        mLocation = location;
+        mPrefix = prefix;
+        mFetchStore = store;
+        mFetchMetrics = metrics;
+    }
+
+    @Override
+    public Result call() throws IOException {
+        HashMap<String, String> headers = new HashMap<String, String>();
+        String eTag = mFetchStore.getString(ETAG_KEY);
+        if(eTag!=null) {
+            headers.put(Utils.HEADER_IF_NONE_MATCH, eTag);
+        }
+        String lastModified = mFetchStore.getString(LAST_MODIFIED_KEY);
+        if(lastModified!=null) {
+            headers.put(Utils.HEADER_IF_MODIFIED_SINCE, lastModified);
+        }
+        if(eTag!=null) {
+            // The stored document is the version the ETag names, the server may send just the changes to it
+            headers.put(Utils.HEADER_A_IM, Utils.IM_MERGE_PATCH);
+        }
+        Utils.FeedResponse<FlatConfig> response = fetch(headers);
+        if(response.isPatch() && response.deltaBase!=null && !response.deltaBase.equals(eTag)) {
+            // A patch to a version we don't have, get the whole document instead
+            response = fetch(new HashMap<String, String>());
+        }
+        if(response.isNotModified()) {
+            return new Result(mLocation, response, null);
+        }
+        if(response.body==null) {
+            return null;
+        }
+        return new Result(mLocation, response, response.body);
+    }
+
+    private Utils.FeedResponse<FlatConfig> fetch(Map<String, String> headers) throws IOException {
+        mParseStart = 0;
+        mBodyBytes = 0;
+        long start = System.nanoTime();
+        Utils.FeedResponse<FlatConfig> response;
+        try {
+            // The body is flattened straight off the response stream
+            response = Utils.readFeed(mFetchTransport, mLocation.toString(), headers, this);
+        } catch (IOException e) {
+            if(mFetchMetrics!=null) {
+                mFetchMetrics.onError(RemoteConfigMetrics.STAGE_FETCH, e);
+            }
+            throw e;
+        }
+        if(mFetchMetrics!=null) {
+            long end = System.nanoTime();
+            long parseStart = mParseStart!=0 ? mParseStart : end;
+            mFetchMetrics.onFetch(mLocation.toString(), response.statusCode, response.contentLength, mBodyBytes, parseStart - start, end - parseStart);
+        }
+        return response;
+    }
+
+    @Override
+    public FlatConfig read(InputStream stream) throws IOException {
+        mParseStart = System.nanoTime();
+        if(mFetchMetrics==null) {
+            return FlatConfig.read(stream, mPrefix);
+        }
+        CountingInputStream counting = new CountingInputStream(stream);
+        try {
+            return FlatConfig.read(counting, mPrefix);
+        } finally {
+            mBodyBytes = counting.mCount;
+        }
+    }
+
+    static final class Result {
+        final URL location;
+        final Utils.FeedResponse<?> response;
+        // Null when the server answered 304 Not Modified, a merge patch when it answered 226
+        final FlatConfig config;
+
+        Result(URL location, Utils.FeedResponse<?> response, FlatConfig config) {
+            this.location = location;
+            this.response = response;
+            this.config = config;
+        }
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+        long mCount;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if(b>=0) mCount++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = super.read(buffer, offset, length);
+            if(read>0) mCount += read;
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            mCount += skipped;
+            return skipped;
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package is.gangverk.remoteconfig;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A content hash for every object of a flattened config document. Two documents are compared
+ * object by object from the root, and only objects whose hashes differ are looked into, so
+ * finding a handful of changes in a big config doesn't cost a lookup per key.
+ */
+final class ConfigHashTree {
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final Node mRoot;
+    // Every nested object by its dotted path
+    private final HashMap<String, Node> mNodes;
+
+    private ConfigHashTree(Node root, HashMap<String, Node> nodes) {
+        mRoot = root;
+        mNodes = nodes;
+    }
+
+    /**
+     * Returns the hash of the whole document
+     */
+    long getRootHash() {
+        return mRoot.mHash;
+    }
+
+    /**
+     * Puts every leaf of this tree that isn't in the previous one, or is in an object whose hash
+     * changed and differs from the current value, into changes
+     *
+     * @param previous The tree of the document the current values came from, null to compare every leaf
+     * @param current The values the changes are looked up in
+     * @param changes Gets the new and changed leaves
+     */
+    void diff(ConfigHashTree previous, ConfigSnapshot current, Map<String, Object> changes) {
+        diff(mRoot, previous!=null ? previous.mRoot : null, previous, current, changes);
+    }
+
+    private static void diff(Node node, Node previousNode, ConfigHashTree previous, ConfigSnapshot current, Map<String, Object> changes) {
+        if(previousNode!=null && previousNode.mHash==node.mHash) {
+            return;
+        }
+        for(int i=0;i<node.mLeafKeys.length;i++) {
+            String key = node.mLeafKeys[i];
+            Object value = node.mLeafValues[i];
+            // Boxed equals also compares the type, so a value that changed type counts as changed
+            if(!value.equals(current.get(key))) {
+                changes.put(key, value);
+            }
+        }
+        for(Node child : node.mChildren) {
+            diff(child, previous!=null ? previous.mNodes.get(child.mPath) : null, previous, current, changes);
+        }
+    }
+
+    /**
+     * Returns the hash of every object as text, which is all a diff needs of the previous tree, so
+     * the first download after a restart only looks into the objects that changed too
+     */
+    String encodeHashes() {
+        StringBuilder encoded = new StringBuilder(mNodes.size() * 32);
+        encoded.append(Long.toString(mRoot.mHash, 16));
+        for(Node node : mNodes.values()) {
+            // Hash, path length and path, as paths can have any character in them
+            encoded.append(' ').append(Long.toString(node.mHash, 16)).append(' ').append(node.mPath.length()).append(':').append(node.mPath);
+        }
+        return encoded.toString();
+    }
+
+    /**
+     * Reads the hashes written by {@link #encodeHashes()} into a tree that can only be diffed against
+     *
+     * @return Null if the text is missing or malformed
+     */
+    static ConfigHashTree decodeHashes(String encoded) {
+        if(encoded==null) {
+            return null;
+        }
+        try {
+            int end = encoded.indexOf(' ');
+            Node root = hashNode(null, Long.parseLong(encoded.substring(0, end!=-1 ? end : encoded.length()), 16));
+            HashMap<String, Node> nodes = new HashMap<String, Node>();
+            while(end!=-1) {
+                int hashEnd = encoded.indexOf(' ', end + 1);
+                int lengthEnd = encoded.indexOf(':', hashEnd + 1);
+                long hash = Long.parseLong(encoded.substring(end + 1, hashEnd), 16);
+                int pathEnd = lengthEnd + 1 + Integer.parseInt(encoded.substring(hashEnd + 1, lengthEnd));
+                String path = encoded.substring(lengthEnd + 1, pathEnd);
+                nodes.put(path, hashNode(path, hash));
+                if(pathEnd==encoded.length()) {
+                    break;
+                }
+                if(encoded.charAt(pathEnd)!=' ') {
+                    return null;
+                }
+                end = pathEnd;
+            }
+            return new ConfigHashTree(root, nodes);
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private static Node hashNode(String path, long hash) {
+        return new Node(path, hash, new String[0], new Object[0], new Node[0]);
+    }
+
+    private static final class Node {
+        final String mPath;
+        final long mHash;
+        final String[] mLeafKeys;
+        final Object[] mLeafValues;
+        final Node[] mChildren;
+
+        Node(String path, long hash, String[] leafKeys, Object[] leafValues, Node[] children) {
+            mPath = path;
+            mHash = hash;
+            mLeafKeys = leafKeys;
+            mLeafValues = leafValues;
+            mChildren = children;
+        }
+    }
+
+    /**
+     * Builds the tree from the flattener events, in document order
+     */
+    static final class Builder {
+        private final ArrayList<Level> mLevels = new ArrayList<Level>();
+        private final HashMap<String, Node> mNodes = new HashMap<String, Node>();
+
+        Builder() {
+            mLevels.add(new Level(null));
+        }
+
+        void onValue(String key, Object value) {
+            Level level = mLevels.get(mLevels.size() - 1);
+            level.mLeafKeys.add(key);
+            level.mLeafValues.add(value);
+            level.mHash = fold(level.mHash, hashLeaf(key, value));
+        }
+
+        void onObjectStart(String key) {
+            mLevels.add(new Level(key));
+        }
+
+        void onObjectEnd() {
+            Node node = mLevels.remove(mLevels.size() - 1).toNode();
+            mNodes.put(node.mPath, node);
+            Level parent = mLevels.get(mLevels.size() - 1);
+            parent.mChildren.add(node);
+            parent.mHash = fold(parent.mHash, node.mHash);
+        }
+
+        ConfigHashTree build() {
+            return new ConfigHashTree(mLevels.get(0).toNode(), mNodes);
+        }
+    }
+
+    private static final class Level {
+        final String mPath;
+        final ArrayList<String> mLeafKeys = new ArrayList<String>();
+        final ArrayList<Object> mLeafValues = new ArrayList<Object>();
+        final ArrayList<Node> mChildren = new ArrayList<Node>();
+        long mHash = FNV_OFFSET;
+
+        Level(String path) {
+            mPath = path;
+        }
+
+        Node toNode() {
+            // The path goes in last so an empty object and a missing one don't look the same
+            long hash = mPath!=null ? hashChars(mHash, mPath) : mHash;
+            return new Node(mPath, hash, mLeafKeys.toArray(new String[mLeafKeys.size()]), mLeafValues.toArray(), mChildren.toArray(new Node[mChildren.size()]));
+        }
+    }
+
+    private static long hashLeaf(String key, Object value) {
+        long hash = hashChars(FNV_OFFSET, key);
+        hash = fold(hash, ConfigSnapshot.typeOf(value));
+        if(value instanceof String) {
+            return hashChars(hash, (String)value);
+        }
+        if(value instanceof Double) {
+            return fold(hash, Double.doubleToLongBits(((Double)value).doubleValue()));
+        }
+        if(value instanceof Boolean) {
+            return fold(hash, ((Boolean)value).booleanValue() ? 1 : 0);
+        }
+        return fold(hash, ((Number)value).longValue());
+    }
+
+    private static long hashChars(long hash, String value) {
+        for(int i=0;i<value.length();i++) {
+            hash = (hash ^ value.charAt(i)) * FNV_PRIME;
+        }
+        return hash;
+    }
+
+    private static long fold(long hash, long value) {
+        hash = (hash ^ value) * FNV_PRIME;
+        // Mix the high bits down so values that only differ there still spread
+        return hash ^ (hash >>> 29);
+    }
+}
@@ -0,0 +1,142 @@
+package is.gangverk.remoteconfig;
+
+import java.util.ArrayList;
+
+/**
+ * A declared, typed config key with the default value used when the config doesn't have it.
+ * Every key gets a fixed slot when it's created and each published snapshot is resolved into
+ * arrays indexed by slot, so reading a key is an array load without hashing, allocation or boxing.
+ * Keys are created with the factory methods on {@link RemoteConfig}, typically as constants. A
+ * slot is never given back, so keys created over and over, rather than once, make every publish
+ * resolve more of them:
+ *
+ * <pre>
+ * static final ConfigKey&lt;Integer&gt; MAX_ITEMS = RemoteConfig.intKey("limits.maxItems", 50);
+ * int maxItems = RemoteConfig.getInstance().getInt(MAX_ITEMS);
+ * </pre>
+ *
+ * @param <T> The boxed type of the value, only used to pick the matching getter at compile time
+ */
+public final class ConfigKey<T> {
+    private static final ArrayList<ConfigKey<?>> sKeys = new ArrayList<ConfigKey<?>>();
+
+    private final String mPath;
+    private final int mType;
+    private final int mSlot;
+    private final String mDefaultString;
+    // int, long and boolean defaults as is, double defaults as their raw long bits
+    private final long mDefaultPrimitive;
+
+    private ConfigKey(String path, int type, int slot, String defaultString, long defaultPrimitive) {
+        mPath = path;
+        mType = type;
+        mSlot = slot;
+        mDefaultString = defaultString;
+        mDefaultPrimitive = defaultPrimitive;
+    }
+
+    static synchronized <T> ConfigKey<T> register(String path, int type, String defaultString, long defaultPrimitive) {
+        ConfigKey<T> key = new ConfigKey<T>(path, type, sKeys.size(), defaultString, defaultPrimitive);
+        sKeys.add(key);
+        return key;
+    }
+
+    /**
+     * Returns the dotted path of the key
+     */
+    public String getPath() {
+        return mPath;
+    }
+
+    /**
+     * Returns the ConfigSnapshot.TYPE_* constant of the key
+     */
+    public int getType() {
+        return mType;
+    }
+
+    int getSlot() {
+        return mSlot;
+    }
+
+    @Override
+    public String toString() {
+        return mPath;
+    }
+
+    /**
+     * The values of every registered key resolved against one snapshot
+     */
+    static final class Values {
+        static final Values EMPTY = new Values(0);
+
+        final String[] strings;
+        final int[] ints;
+        final long[] longs;
+        final double[] doubles;
+
+        private Values(int count) {
+            strings = new String[count];
+            ints = new int[count];
+            longs = new long[count];
+            doubles = new double[count];
+        }
+
+        /**
+         * Looks up every registered key in the snapshot, falling back to the declared defaults
+         */
+        static Values resolve(ConfigSnapshot snapshot) {
+            ConfigKey<?>[] keys;
+            synchronized (ConfigKey.class) {
+                keys = sKeys.toArray(new ConfigKey<?>[sKeys.size()]);
+            }
+            Values values = new Values(keys.length);
+            for(ConfigKey<?> key : keys) {
+                int slot = key.mSlot;
+                switch(key.mType) {
+                    case ConfigSnapshot.TYPE_STRING:
+                        String value = snapshot.getString(key.mPath);
+                        values.strings[slot] = value!=null ? value : key.mDefaultString;
+                        break;
+                    case ConfigSnapshot.TYPE_INT:
+                        values.ints[slot] = snapshot.getInt(key.mPath, (int)key.mDefaultPrimitive);
+                        break;
+                    case ConfigSnapshot.TYPE_BOOLEAN:
+                        values.ints[slot] = snapshot.getBoolean(key.mPath, key.mDefaultPrimitive!=0) ? 1 : 0;
+                        break;
+                    case ConfigSnapshot.TYPE_LONG:
+                        values.longs[slot] = snapshot.getLong(key.mPath, key.mDefaultPrimitive);
+                        break;
+                    case ConfigSnapshot.TYPE_DOUBLE:
+                        values.doubles[slot] = snapshot.getDouble(key.mPath, Double.longBitsToDouble(key.mDefaultPrimitive));
+                        break;
+                }
+            }
+            return values;
+        }
+
+        boolean covers(ConfigKey<?> key) {
+            return key.mSlot < ints.length;
+        }
+    }
+
+    String defaultString() {
+        return mDefaultString;
+    }
+
+    int defaultInt() {
+        return (int)mDefaultPrimitive;
+    }
+
+    long defaultLong() {
+        return mDefaultPrimitive;
+    }
+
+    double defaultDouble() {
+        return Double.longBitsToDouble(mDefaultPrimitive);
+    }
+
+    boolean defaultBoolean() {
+        return mDefaultPrimitive!=0;
+    }
+}
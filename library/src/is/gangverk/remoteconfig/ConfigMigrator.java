@@ -0,0 +1,116 @@
+package is.gangverk.remoteconfig;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Works out what has to change in a stored config when the app is updated to a new config version.
+ * Only the keys the new defaults no longer have and the keys whose stored value doesn't fit the
+ * type of the new default are dropped, everything else is kept. Keys the last downloaded document
+ * has are never dropped, they are what the server serves and a fetch wouldn't bring them back
+ * while the document is unchanged.
+ *
+ * <p>The key types of the defaults are stored as a schema string with every version, so the next
+ * version knows which keys were removed from the defaults.</p>
+ */
+final class ConfigMigrator {
+    // Where the key types of the defaults are stored
+    static final String SCHEMA_KEY = "rc_schema";
+
+    private ConfigMigrator() {
+    }
+
+    /**
+     * Returns the key types of the defaults as one string, one "type key" line per key
+     */
+    static String encodeSchema(Map<String, Object> defaults) {
+        StringBuilder schema = new StringBuilder(defaults.size() * 24);
+        for(Map.Entry<String, Object> entry : defaults.entrySet()) {
+            int type = ConfigSnapshot.typeOf(entry.getValue());
+            if(type==ConfigSnapshot.TYPE_NONE) continue;
+            schema.append(type).append(' ').append(entry.getKey()).append('\n');
+        }
+        return schema.toString();
+    }
+
+    /**
+     * Reads a schema written with {@link #encodeSchema(Map)}, null if there is none
+     */
+    static Map<String, Integer> decodeSchema(String schema) {
+        if(schema==null) {
+            return null;
+        }
+        HashMap<String, Integer> types = new HashMap<String, Integer>();
+        int start = 0;
+        int end;
+        while((end = schema.indexOf('\n', start))!=-1) {
+            int space = schema.indexOf(' ', start);
+            if(space>start && space<end) {
+                try {
+                    types.put(schema.substring(space + 1, end), Integer.valueOf(schema.substring(start, space)));
+                } catch (NumberFormatException e) {
+                    e.printStackTrace();
+                }
+            }
+            start = end + 1;
+        }
+        return types;
+    }
+
+    /**
+     * Returns true if a value of the stored type can be read with the getter of the default type
+     */
+    static boolean isCompatible(int storedType, int defaultType) {
+        if(storedType==defaultType) {
+            return true;
+        }
+        switch(defaultType) {
+            case ConfigSnapshot.TYPE_LONG: return storedType==ConfigSnapshot.TYPE_INT;
+            case ConfigSnapshot.TYPE_DOUBLE: return storedType==ConfigSnapshot.TYPE_INT || storedType==ConfigSnapshot.TYPE_LONG;
+            default: return false;
+        }
+    }
+
+    /**
+     * Returns the changes that bring the stored values in line with the new defaults, null values
+     * are keys to remove
+     *
+     * @param stored The stored values
+     * @param oldSchema The key types of the previous defaults, null if they weren't recorded
+     * @param defaults The new defaults
+     * @param defaultsStored True if the defaults are written to the store, as they are when read from
+     *                       rc.json, false if they are a fallback layer like compiled defaults
+     * @param overwrite True to replace every stored value with the new default, when nothing has
+     *                  been downloaded yet and the stored values are the previous defaults
+     * @param downloaded The keys of the last downloaded document, kept whatever the defaults say
+     */
+    static Map<String, Object> migrate(ConfigSnapshot stored, Map<String, Integer> oldSchema, Map<String, Object> defaults, boolean defaultsStored, boolean overwrite, Set<String> downloaded) {
+        HashMap<String, Object> changes = new HashMap<String, Object>();
+        if(oldSchema!=null) {
+            for(String key : oldSchema.keySet()) {
+                if(!defaults.containsKey(key) && stored.getType(key)!=ConfigSnapshot.TYPE_NONE && !downloaded.contains(key)) {
+                    changes.put(key, null);
+                }
+            }
+        }
+        for(Map.Entry<String, Object> entry : defaults.entrySet()) {
+            String key = entry.getKey();
+            Object value = entry.getValue();
+            int defaultType = ConfigSnapshot.typeOf(value);
+            if(defaultType==ConfigSnapshot.TYPE_NONE) continue;
+            int storedType = stored.getType(key);
+            if(storedType==ConfigSnapshot.TYPE_NONE) {
+                if(defaultsStored) {
+                    // A key new to this version
+                    changes.put(key, value);
+                }
+            } else if(!isCompatible(storedType, defaultType) && !downloaded.contains(key)) {
+                changes.put(key, defaultsStored ? value : null);
+            } else if(overwrite && !value.equals(stored.get(key))) {
+                changes.put(key, value);
+            }
+        }
+        return changes;
+    }
+}
@@ -0,0 +1,530 @@
+package is.gangverk.remoteconfig;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+/**
+ * An immutable view of the flattened config key/value pairs. A new snapshot is built every time
+ * the config changes and published as a whole, so readers never need to lock anything. Where the
+ * values live is up to the {@link ConfigStore} that created the snapshot.
+ *
+ * <p>Values are String, Integer, Long, Double or Boolean. The typed getters return the default
+ * value when the key is missing or holds another type, except that integers can be read with
+ * {@link #getLong(String, long)} and integers and longs with {@link #getDouble(String, double)}.</p>
+ */
+public abstract class ConfigSnapshot {
+    public static final int TYPE_NONE = 0;
+    public static final int TYPE_STRING = 1;
+    public static final int TYPE_INT = 2;
+    public static final int TYPE_LONG = 3;
+    public static final int TYPE_DOUBLE = 4;
+    public static final int TYPE_BOOLEAN = 5;
+
+    public static final ConfigSnapshot EMPTY = new ArraySnapshot(new HashMap<String, Object>());
+
+    /**
+     * Creates a heap snapshot holding a copy of the given values. Values of other types are left out.
+     *
+     * @param values The flattened key/value pairs
+     */
+    public static ConfigSnapshot from(Map<String, ?> values) {
+        if(values==null || values.isEmpty()) {
+            return EMPTY;
+        }
+        return new ArraySnapshot(values);
+    }
+
+    /**
+     * Returns the TYPE_* constant for a value
+     */
+    public static int typeOf(Object value) {
+        if(value instanceof String) return TYPE_STRING;
+        if(value instanceof Integer) return TYPE_INT;
+        if(value instanceof Long) return TYPE_LONG;
+        if(value instanceof Double) return TYPE_DOUBLE;
+        if(value instanceof Boolean) return TYPE_BOOLEAN;
+        return TYPE_NONE;
+    }
+
+    /**
+     * Returns a new snapshot with the changed values put on top of the values of this one. Only the
+     * changes are copied, the values of this one are shared until the changes add up to a good part
+     * of it, then they are merged into a new heap snapshot.
+     *
+     * @param changes The changed key/value pairs, a null value removes the key
+     */
+    public ConfigSnapshot with(Map<String, ?> changes) {
+        if(changes==null || changes.isEmpty()) {
+            return this;
+        }
+        OverlaySnapshot overlay = overlay(this, changes);
+        if(overlay.mChanges.size()<=Math.max(OverlaySnapshot.MIN_COMPACT_SIZE, overlay.mBase.size() / OverlaySnapshot.COMPACT_FRACTION)) {
+            return overlay;
+        }
+        return new ArraySnapshot(overlay.asMap());
+    }
+
+    /**
+     * Returns a snapshot of the changes on top of the base, sharing the base however many changes
+     * there are. Changes on top of an overlay are merged with its changes, so there is never more
+     * than one overlay over a base.
+     *
+     * @param changes The changed key/value pairs, a null value removes the key
+     */
+    static OverlaySnapshot overlay(ConfigSnapshot base, Map<String, ?> changes) {
+        HashMap<String, Object> merged;
+        if(base instanceof OverlaySnapshot) {
+            merged = new HashMap<String, Object>(((OverlaySnapshot)base).mChanges);
+            base = ((OverlaySnapshot)base).mBase;
+        } else {
+            merged = new HashMap<String, Object>(changes.size());
+        }
+        merged.putAll(changes);
+        return new OverlaySnapshot(base, merged);
+    }
+
+    /**
+     * Returns a snapshot that reads from this one and falls back to the given one for keys this one
+     * doesn't have, typically compiled defaults
+     *
+     * @param fallback The snapshot to fall back to
+     */
+    public ConfigSnapshot withFallback(ConfigSnapshot fallback) {
+        if(fallback==null || fallback.size()==0) {
+            return this;
+        }
+        return new FallbackSnapshot(this, fallback);
+    }
+
+    /**
+     * Returns a snapshot that reads keys under a namespace prefix from the namespace snapshot, and
+     * from this one when the namespace doesn't have them
+     *
+     * @param namespaces The snapshots by key prefix, including the separator. Their keys have the prefix too.
+     */
+    ConfigSnapshot withNamespaces(Map<String, ConfigSnapshot> namespaces) {
+        if(namespaces==null || namespaces.isEmpty()) {
+            return this;
+        }
+        return new NamespaceSnapshot(this, namespaces);
+    }
+
+    /**
+     * Returns a snapshot that reads the given values first and this one for every other key, used for
+     * the values targeting rules resolved
+     */
+    ConfigSnapshot withOverrides(Map<String, ?> values) {
+        if(values==null || values.isEmpty()) {
+            return this;
+        }
+        return new FallbackSnapshot(from(values), this);
+    }
+
+    /**
+     * Returns the value for the key boxed, or null if there is none
+     */
+    public abstract Object get(String key);
+
+    /**
+     * Returns the TYPE_* constant of the value stored for the key
+     */
+    public abstract int getType(String key);
+
+    public abstract String getString(String key);
+
+    public abstract int getInt(String key, int defaultValue);
+
+    public abstract long getLong(String key, long defaultValue);
+
+    public abstract double getDouble(String key, double defaultValue);
+
+    public abstract boolean getBoolean(String key, boolean defaultValue);
+
+    public abstract int size();
+
+    /**
+     * Returns every key/value pair of the snapshot. This may copy the whole snapshot to the heap.
+     */
+    public abstract Map<String, Object> asMap();
+
+    /**
+     * Keeps the values on the heap in parallel arrays behind an open addressing hash index. Numbers
+     * and booleans are kept unboxed in a long array, so the typed getters don't allocate.
+     */
+    private static final class ArraySnapshot extends ConfigSnapshot {
+        private final String[] mKeys;
+        private final byte[] mTypes;
+        // int, long and boolean values as is, doubles as their raw long bits
+        private final long[] mPrimitives;
+        private final String[] mStrings;
+        private final int mMask;
+        private final int mSize;
+
+        ArraySnapshot(Map<String, ?> values) {
+            int capacity = 4;
+            while(capacity < values.size() * 2) {
+                capacity <<= 1;
+            }
+            mKeys = new String[capacity];
+            mTypes = new byte[capacity];
+            mPrimitives = new long[capacity];
+            mStrings = new String[capacity];
+            mMask = capacity - 1;
+            int size = 0;
+            for(Map.Entry<String, ?> entry : values.entrySet()) {
+                Object value = entry.getValue();
+                int type = typeOf(value);
+                if(type==TYPE_NONE) continue;
+                int slot = entry.getKey().hashCode() & mMask;
+                while(mKeys[slot]!=null) {
+                    slot = (slot + 1) & mMask;
+                }
+                mKeys[slot] = entry.getKey();
+                mTypes[slot] = (byte)type;
+                switch(type) {
+                    case TYPE_STRING: mStrings[slot] = (String)value; break;
+                    case TYPE_INT: mPrimitives[slot] = ((Integer)value).intValue(); break;
+                    case TYPE_LONG: mPrimitives[slot] = ((Long)value).longValue(); break;
+                    case TYPE_DOUBLE: mPrimitives[slot] = Double.doubleToRawLongBits(((Double)value).doubleValue()); break;
+                    case TYPE_BOOLEAN: mPrimitives[slot] = ((Boolean)value).booleanValue() ? 1 : 0; break;
+                }
+                size++;
+            }
+            mSize = size;
+        }
+
+        private int slotOf(String key) {
+            int slot = key.hashCode() & mMask;
+            String candidate;
+            while((candidate = mKeys[slot])!=null) {
+                if(candidate==key || candidate.equals(key)) {
+                    return slot;
+                }
+                slot = (slot + 1) & mMask;
+            }
+            return -1;
+        }
+
+        @Override
+        public Object get(String key) {
+            int slot = slotOf(key);
+            if(slot<0) return null;
+            switch(mTypes[slot]) {
+                case TYPE_STRING: return mStrings[slot];
+                case TYPE_INT: return Integer.valueOf((int)mPrimitives[slot]);
+                case TYPE_LONG: return Long.valueOf(mPrimitives[slot]);
+                case TYPE_DOUBLE: return Double.valueOf(Double.longBitsToDouble(mPrimitives[slot]));
+                case TYPE_BOOLEAN: return Boolean.valueOf(mPrimitives[slot]!=0);
+                default: return null;
+            }
+        }
+
+        @Override
+        public int getType(String key) {
+            int slot = slotOf(key);
+            return slot<0 ? TYPE_NONE : mTypes[slot];
+        }
+
+        @Override
+        public String getString(String key) {
+            int slot = slotOf(key);
+            return slot<0 ? null : mStrings[slot];
+        }
+
+        @Override
+        public int getInt(String key, int defaultValue) {
+            int slot = slotOf(key);
+            return slot>=0 && mTypes[slot]==TYPE_INT ? (int)mPrimitives[slot] : defaultValue;
+        }
+
+        @Override
+        public long getLong(String key, long defaultValue) {
+            int slot = slotOf(key);
+            return slot>=0 && (mTypes[slot]==TYPE_LONG || mTypes[slot]==TYPE_INT) ? mPrimitives[slot] : defaultValue;
+        }
+
+        @Override
+        public double getDouble(String key, double defaultValue) {
+            int slot = slotOf(key);
+            if(slot<0) return defaultValue;
+            switch(mTypes[slot]) {
+                case TYPE_DOUBLE: return Double.longBitsToDouble(mPrimitives[slot]);
+                case TYPE_INT:
+                case TYPE_LONG: return mPrimitives[slot];
+                default: return defaultValue;
+            }
+        }
+
+        @Override
+        public boolean getBoolean(String key, boolean defaultValue) {
+            int slot = slotOf(key);
+            return slot>=0 && mTypes[slot]==TYPE_BOOLEAN ? mPrimitives[slot]!=0 : defaultValue;
+        }
+
+        @Override
+        public int size() {
+            return mSize;
+        }
+
+        @Override
+        public Map<String, Object> asMap() {
+            HashMap<String, Object> values = new HashMap<String, Object>();
+            for(int i=0;i<mKeys.length;i++) {
+                if(mKeys[i]!=null) {
+                    values.put(mKeys[i], get(mKeys[i]));
+                }
+            }
+            return values;
+        }
+    }
+
+    /**
+     * Changed values on top of a shared base, so applying a few changes to a big config doesn't
+     * copy it
+     */
+    static final class OverlaySnapshot extends ConfigSnapshot {
+        // The changes are merged into a new snapshot when there are more than this part of the base
+        static final int COMPACT_FRACTION = 8;
+        static final int MIN_COMPACT_SIZE = 64;
+
+        private final ConfigSnapshot mBase;
+        // Every change with null for removed keys, for merging further changes and writing them out
+        private final HashMap<String, Object> mChanges;
+        private final ArraySnapshot mValues;
+        private final HashSet<String> mRemoved;
+        private final int mSize;
+
+        OverlaySnapshot(ConfigSnapshot base, HashMap<String, Object> changes) {
+            mBase = base;
+            mChanges = changes;
+            mValues = new ArraySnapshot(changes);
+            mRemoved = new HashSet<String>();
+            int size = base.size();
+            for(Map.Entry<String, Object> change : changes.entrySet()) {
+                boolean inBase = base.getType(change.getKey())!=TYPE_NONE;
+                if(change.getValue()==null) {
+                    mRemoved.add(change.getKey());
+                    if(inBase) size--;
+                } else if(!inBase) {
+                    size++;
+                }
+            }
+            mSize = size;
+        }
+
+        /**
+         * Returns the snapshot the changes are on top of
+         */
+        ConfigSnapshot getBase() {
+            return mBase;
+        }
+
+        /**
+         * Returns the changes, with null values for removed keys
+         */
+        Map<String, Object> getChanges() {
+            return mChanges;
+        }
+
+        private ConfigSnapshot source(String key) {
+            if(mValues.getType(key)!=TYPE_NONE) {
+                return mValues;
+            }
+            return mRemoved.isEmpty() || !mRemoved.contains(key) ? mBase : EMPTY;
+        }
+
+        @Override
+        public Object get(String key) {
+            return source(key).get(key);
+        }
+
+        @Override
+        public int getType(String key) {
+            return source(key).getType(key);
+        }
+
+        @Override
+        public String getString(String key) {
+            return source(key).getString(key);
+        }
+
+        @Override
+        public int getInt(String key, int defaultValue) {
+            return source(key).getInt(key, defaultValue);
+        }
+
+        @Override
+        public long getLong(String key, long defaultValue) {
+            return source(key).getLong(key, defaultValue);
+        }
+
+        @Override
+        public double getDouble(String key, double defaultValue) {
+            return source(key).getDouble(key, defaultValue);
+        }
+
+        @Override
+        public boolean getBoolean(String key, boolean defaultValue) {
+            return source(key).getBoolean(key, defaultValue);
+        }
+
+        @Override
+        public int size() {
+            return mSize;
+        }
+
+        @Override
+        public Map<String, Object> asMap() {
+            HashMap<String, Object> values = new HashMap<String, Object>(mBase.asMap());
+            for(Map.Entry<String, Object> change : mChanges.entrySet()) {
+                if(change.getValue()!=null) {
+                    values.put(change.getKey(), change.getValue());
+                } else {
+                    values.remove(change.getKey());
+                }
+            }
+            return values;
+        }
+    }
+
+    private static final class FallbackSnapshot extends ConfigSnapshot {
+        private final ConfigSnapshot mPrimary;
+        private final ConfigSnapshot mFallback;
+
+        FallbackSnapshot(ConfigSnapshot primary, ConfigSnapshot fallback) {
+            mPrimary = primary;
+            mFallback = fallback;
+        }
+
+        private ConfigSnapshot source(String key) {
+            return mPrimary.getType(key)!=TYPE_NONE ? mPrimary : mFallback;
+        }
+
+        @Override
+        public Object get(String key) {
+            Object value = mPrimary.get(key);
+            return value!=null ? value : mFallback.get(key);
+        }
+
+        @Override
+        public int getType(String key) {
+            return source(key).getType(key);
+        }
+
+        @Override
+        public String getString(String key) {
+            String value = mPrimary.getString(key);
+            return value!=null ? value : mFallback.getString(key);
+        }
+
+        @Override
+        public int getInt(String key, int defaultValue) {
+            return source(key).getInt(key, defaultValue);
+        }
+
+        @Override
+        public long getLong(String key, long defaultValue) {
+            return source(key).getLong(key, defaultValue);
+        }
+
+        @Override
+        public double getDouble(String key, double defaultValue) {
+            return source(key).getDouble(key, defaultValue);
+        }
+
+        @Override
+        public boolean getBoolean(String key, boolean defaultValue) {
+            return source(key).getBoolean(key, defaultValue);
+        }
+
+        @Override
+        public int size() {
+            return asMap().size();
+        }
+
+        @Override
+        public Map<String, Object> asMap() {
+            HashMap<String, Object> values = new HashMap<String, Object>(mFallback.asMap());
+            values.putAll(mPrimary.asMap());
+            return values;
+        }
+    }
+
+    private static final class NamespaceSnapshot extends ConfigSnapshot {
+        private final ConfigSnapshot mRoot;
+        private final String[] mPrefixes;
+        private final ConfigSnapshot[] mNamespaces;
+
+        NamespaceSnapshot(ConfigSnapshot root, Map<String, ConfigSnapshot> namespaces) {
+            mRoot = root;
+            mPrefixes = new String[namespaces.size()];
+            mNamespaces = new ConfigSnapshot[namespaces.size()];
+            int i = 0;
+            for(Map.Entry<String, ConfigSnapshot> namespace : namespaces.entrySet()) {
+                mPrefixes[i] = namespace.getKey();
+                mNamespaces[i] = namespace.getValue();
+                i++;
+            }
+        }
+
+        private ConfigSnapshot source(String key) {
+            // A handful of namespaces at most, so a scan beats allocating the prefix for a map lookup
+            for(int i=0;i<mPrefixes.length;i++) {
+                if(key.startsWith(mPrefixes[i])) {
+                    return mNamespaces[i].getType(key)!=TYPE_NONE ? mNamespaces[i] : mRoot;
+                }
+            }
+            return mRoot;
+        }
+
+        @Override
+        public Object get(String key) {
+            return source(key).get(key);
+        }
+
+        @Override
+        public int getType(String key) {
+            return source(key).getType(key);
+        }
+
+        @Override
+        public String getString(String key) {
+            return source(key).getString(key);
+        }
+
+        @Override
+        public int getInt(String key, int defaultValue) {
+            return source(key).getInt(key, defaultValue);
+        }
+
+        @Override
+        public long getLong(String key, long defaultValue) {
+            return source(key).getLong(key, defaultValue);
+        }
+
+        @Override
+        public double getDouble(String key, double defaultValue) {
+            return source(key).getDouble(key, defaultValue);
+        }
+
+        @Override
+        public boolean getBoolean(String key, boolean defaultValue) {
+            return source(key).getBoolean(key, defaultValue);
+        }
+
+        @Override
+        public int size() {
+            return asMap().size();
+        }
+
+        @Override
+        public Map<String, Object> asMap() {
+            HashMap<String, Object> values = new HashMap<String, Object>(mRoot.asMap());
+            for(ConfigSnapshot namespace : mNamespaces) {
+                values.putAll(namespace.asMap());
+            }
+            return values;
+        }
+    }
+}
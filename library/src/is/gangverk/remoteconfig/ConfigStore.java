@@ -0,0 +1,66 @@
+package is.gangverk.remoteconfig;
+
+import java.util.Map;
+
+/**
+ * Where a config is persisted. A store keeps the flattened values, the raw config document and a
+ * few metadata entries like the download time and the cache validators.
+ */
+public interface ConfigStore {
+    /**
+     * Returns the stored values. Called once when the store is opened.
+     */
+    public ConfigSnapshot load();
+
+    /**
+     * Persists the changed values and the raw document
+     *
+     * @param current The snapshot the changes apply to, as returned by this store
+     * @param changes The new and changed key/value pairs, a null value removes the key
+     * @param rawConfig The complete config document
+     * @return A snapshot with the changes applied
+     */
+    public ConfigSnapshot write(ConfigSnapshot current, Map<String, Object> changes, String rawConfig);
+
+    /**
+     * Returns the complete config document last written or null if there is none
+     */
+    public String readRawConfig();
+
+    public int getInt(String key, int defaultValue);
+
+    public void putInt(String key, int value);
+
+    public long getLong(String key, long defaultValue);
+
+    public void putLong(String key, long value);
+
+    public String getString(String key);
+
+    /**
+     * Stores a metadata string, a null value removes it
+     */
+    public void putString(String key, String value);
+
+    /**
+     * Stores several metadata entries in one write, so they are kept or lost together
+     *
+     * @param metadata Integer, Long or String values by key, a null value removes the entry
+     */
+    public void putMetadata(Map<String, Object> metadata);
+
+    /**
+     * Removes every value, the raw document and the metadata
+     */
+    public void clear();
+
+    /**
+     * Returns roughly how many bytes the store takes on disk
+     */
+    public long sizeOnDisk();
+
+    /**
+     * Removes the store from disk. It isn't used after this.
+     */
+    public void delete();
+}
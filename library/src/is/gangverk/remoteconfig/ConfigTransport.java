@@ -0,0 +1,40 @@
+package is.gangverk.remoteconfig;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+/**
+ * Fetches config documents. The default is {@link HttpConfigTransport}, {@link LocalConfigTransport}
+ * serves documents from memory or files for tests and benchmarks.
+ */
+public interface ConfigTransport {
+    /**
+     * Requests the document at the location. The caller has to close the response.
+     *
+     * @param location The config location
+     * @param headers Request headers like the cache validators, may be null
+     * @return The response, its body is already decompressed
+     * @throws IOException If the request fails
+     */
+    public Response fetch(String location, Map<String, String> headers) throws IOException;
+
+    public interface Response {
+        public int getStatusCode();
+
+        /**
+         * Returns the first header with the name or null
+         */
+        public String getHeader(String name);
+
+        /**
+         * Returns the body stream or null if the response has no body
+         */
+        public InputStream getBody() throws IOException;
+
+        /**
+         * Releases the response, handing the connection back for reuse
+         */
+        public void close();
+    }
+}
@@ -0,0 +1,209 @@
+package is.gangverk.remoteconfig;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * A config document flattened into dotted keys by {@link JsonFlattener}, together with the raw
+ * document text. Arrays are kept as their compact JSON text. A document read from a stream is
+ * copied into one String on the way, which is what the stores persist.
+ */
+public final class FlatConfig {
+    private final LinkedHashMap<String, Object> mValues;
+    private final String mRaw;
+    private final ConfigHashTree mHashTree;
+    private final List<String> mObjectKeys;
+    private final List<String> mNullKeys;
+
+    private FlatConfig(LinkedHashMap<String, Object> values, String raw, ConfigHashTree hashTree, List<String> objectKeys, List<String> nullKeys) {
+        mValues = values;
+        mRaw = raw;
+        mHashTree = hashTree;
+        mObjectKeys = objectKeys;
+        mNullKeys = nullKeys;
+    }
+
+    private static final class Reading implements JsonFlattener.ObjectHandler, JsonFlattener.NullHandler {
+        final LinkedHashMap<String, Object> values = new LinkedHashMap<String, Object>();
+        final ConfigHashTree.Builder hashTree = new ConfigHashTree.Builder();
+        final ArrayList<String> objectKeys = new ArrayList<String>();
+        ArrayList<String> nullKeys;
+
+        @Override
+        public void onValue(String key, Object value) {
+            values.put(key, value);
+            hashTree.onValue(key, value);
+        }
+
+        @Override
+        public void onArray(String key, String json) {
+            values.put(key, json);
+            hashTree.onValue(key, json);
+        }
+
+        @Override
+        public void onObjectStart(String key) {
+            objectKeys.add(key);
+            hashTree.onObjectStart(key);
+        }
+
+        @Override
+        public void onObjectEnd(String key) {
+            hashTree.onObjectEnd();
+        }
+
+        @Override
+        public void onNull(String key) {
+            if(nullKeys==null) {
+                nullKeys = new ArrayList<String>();
+            }
+            nullKeys.add(key);
+        }
+
+        FlatConfig build(String raw) {
+            return new FlatConfig(values, raw, hashTree.build(), objectKeys, nullKeys!=null ? nullKeys : Collections.<String>emptyList());
+        }
+    }
+
+    /**
+     * Reads and flattens a config document. The reader is not closed.
+     *
+     * @throws IOException If reading fails or the document isn't a JSON object
+     */
+    public static FlatConfig read(Reader reader) throws IOException {
+        return read(reader, null);
+    }
+
+    /**
+     * Reads and flattens a config document with every key put under the prefix. The raw document
+     * is kept as it was read, without the prefix.
+     *
+     * @param prefix The key prefix without the separator, null for none
+     */
+    public static FlatConfig read(Reader reader, String prefix) throws IOException {
+        Reading reading = new Reading();
+        // The stores persist the raw document, so it is copied out of the stream as it is read
+        StringBuilder raw = new StringBuilder();
+        JsonFlattener.flatten(reader, reading, raw, prefix);
+        return reading.build(raw.toString());
+    }
+
+    /**
+     * Flattens a config document that is in memory already. The string itself is kept as the raw
+     * document, so nothing is copied.
+     *
+     * @param prefix The key prefix without the separator, null for none
+     */
+    static FlatConfig read(String json, String prefix) throws IOException {
+        Reading reading = new Reading();
+        JsonFlattener.flatten(new StringReader(json), reading, null, prefix);
+        return reading.build(json);
+    }
+
+    /**
+     * Reads and flattens a UTF-8 encoded config document. The stream is not closed.
+     */
+    public static FlatConfig read(InputStream stream) throws IOException {
+        return read(new InputStreamReader(stream, "UTF-8"));
+    }
+
+    /**
+     * Reads and flattens a UTF-8 encoded config document with every key put under the prefix
+     */
+    public static FlatConfig read(InputStream stream, String prefix) throws IOException {
+        return read(new InputStreamReader(stream, "UTF-8"), prefix);
+    }
+
+    /**
+     * Returns the leaves in document order
+     */
+    public Map<String, Object> getValues() {
+        return Collections.unmodifiableMap(mValues);
+    }
+
+    /**
+     * Returns the document as it was read
+     */
+    public String getRaw() {
+        return mRaw;
+    }
+
+    /**
+     * Returns the dotted paths of the nested objects in document order
+     */
+    List<String> getObjectKeys() {
+        return mObjectKeys;
+    }
+
+    /**
+     * Returns the dotted paths of the null leaves, which are left out of the values
+     */
+    List<String> getNullKeys() {
+        return mNullKeys;
+    }
+
+    /**
+     * Puts the changes this document makes to the stored values when applied as a merge patch,
+     * with null values for the keys it removes. Only the patched keys are looked up, the stored
+     * keys are only listed when the patch adds keys or removes or replaces an object.
+     *
+     * @param stored The stored values the patch applies to
+     * @param changes Gets the changed key/value pairs
+     */
+    void diffPatch(ConfigSnapshot stored, Map<String, Object> changes) {
+        TreeSet<String> storedKeys = null;
+        for(String key : mObjectKeys) {
+            if(stored.getType(key)!=ConfigSnapshot.TYPE_NONE) {
+                // A leaf replaced by an object
+                changes.put(key, null);
+            }
+        }
+        for(Map.Entry<String, Object> entry : mValues.entrySet()) {
+            Object current = stored.get(entry.getKey());
+            if(current==null) {
+                // A new key, or an object replaced by a leaf
+                storedKeys = removeObject(entry.getKey(), stored, storedKeys, changes);
+            }
+            if(!entry.getValue().equals(current)) {
+                changes.put(entry.getKey(), entry.getValue());
+            }
+        }
+        for(String key : mNullKeys) {
+            if(stored.getType(key)!=ConfigSnapshot.TYPE_NONE) {
+                changes.put(key, null);
+            } else {
+                storedKeys = removeObject(key, stored, storedKeys, changes);
+            }
+        }
+    }
+
+    private static TreeSet<String> removeObject(String key, ConfigSnapshot stored, TreeSet<String> storedKeys, Map<String, Object> changes) {
+        if(storedKeys==null) {
+            storedKeys = new TreeSet<String>(stored.asMap().keySet());
+        }
+        String prefix = key + JsonFlattener.SEPARATOR;
+        for(String storedKey : storedKeys.tailSet(prefix)) {
+            if(!storedKey.startsWith(prefix)) {
+                break;
+            }
+            changes.put(storedKey, null);
+        }
+        return storedKeys;
+    }
+
+    /**
+     * Returns the content hashes of the objects in the document
+     */
+    ConfigHashTree getHashTree() {
+        return mHashTree;
+    }
+}
@@ -0,0 +1,57 @@
+package is.gangverk.remoteconfig;
+
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Works out how long a download stays fresh from the Cache-Control directives and download time
+ * kept in its store.
+ *
+ * <p>A fleet that downloaded a release at the same time would also expire at the same time, so a
+ * download can draw a jitter, a random part of its lifetime it's refreshed early by. Refreshes only
+ * ever come early, a config is never used for longer than its max-age.</p>
+ */
+final class Freshness {
+    static final String LAST_DOWNLOADED_CONFIG_KEY = "lastDownloadedConfig";
+    // The Cache-Control max-age and stale-while-revalidate of the last response in seconds, -1 if it had none
+    static final String MAX_AGE_KEY = "rc_max_age";
+    static final String STALE_WHILE_REVALIDATE_KEY = "rc_stale_while_revalidate";
+    // The jitter drawn for the last download, in millionths of its lifetime
+    static final String JITTER_KEY = "rc_refresh_jitter";
+    private static final long JITTER_SCALE = 1000000;
+
+    private Freshness() {
+    }
+
+    /**
+     * Draws the jitter of a download, to be stored under JITTER_KEY
+     *
+     * @param fraction The largest part of the lifetime to refresh early by, from 0 to 1
+     */
+    static long drawJitter(double fraction, Random random) {
+        if(fraction<=0) {
+            return 0;
+        }
+        return (long)(random.nextDouble() * Math.min(1, fraction) * JITTER_SCALE);
+    }
+
+    /**
+     * Stores the Cache-Control max-age and stale-while-revalidate of a response
+     */
+    static void store(Map<String, Object> metadata, Utils.FeedResponse<?> response) {
+        metadata.put(MAX_AGE_KEY, Long.valueOf(response.maxAge));
+        metadata.put(STALE_WHILE_REVALIDATE_KEY, Long.valueOf(response.staleWhileRevalidate));
+    }
+
+    /**
+     * Returns when the stored download stops being fresh
+     *
+     * @param updateInterval How long a download without a max-age is fresh for, in milliseconds
+     */
+    static long expiryTime(ConfigStore store, long updateInterval) {
+        long maxAge = store.getLong(MAX_AGE_KEY, -1);
+        long lifetime = maxAge>=0 ? maxAge * 1000 : updateInterval;
+        long jitter = store.getLong(JITTER_KEY, 0);
+        return store.getLong(LAST_DOWNLOADED_CONFIG_KEY, 0) + lifetime - lifetime * jitter / JITTER_SCALE;
+    }
+}
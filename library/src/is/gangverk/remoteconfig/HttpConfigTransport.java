@@ -0,0 +1,138 @@
+package is.gangverk.remoteconfig;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.Map;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.HTTP;
+
+/**
+ * Fetches configs over HTTP with one long lived client. Connections are pooled and kept alive
+ * between fetches, and TLS sessions are reused through the socket factory session cache, so a
+ * refresh doesn't pay for a new TCP and TLS handshake every time. Requests negotiate gzip and
+ * deflate and the response body is decompressed as it's read.
+ */
+public class HttpConfigTransport implements ConfigTransport {
+    public static final int DEFAULT_CONNECTION_TIMEOUT = 80000;
+    public static final int DEFAULT_SOCKET_TIMEOUT = 100000;
+    public static final int DEFAULT_MAX_CONNECTIONS = 4;
+
+    private static HttpConfigTransport sDefault;
+
+    private final DefaultHttpClient mClient;
+
+    /**
+     * Returns the transport shared by every config that doesn't set its own
+     */
+    public static synchronized HttpConfigTransport getDefault() {
+        if(sDefault==null) {
+            sDefault = new HttpConfigTransport(DEFAULT_CONNECTION_TIMEOUT, DEFAULT_SOCKET_TIMEOUT, DEFAULT_MAX_CONNECTIONS);
+        }
+        return sDefault;
+    }
+
+    /**
+     * @param connectionTimeout Milliseconds to wait for a connection to be established
+     * @param socketTimeout Milliseconds to wait for data
+     * @param maxConnections The size of the connection pool
+     */
+    public HttpConfigTransport(int connectionTimeout, int socketTimeout, int maxConnections) {
+        HttpParams params = new BasicHttpParams();
+        HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+        HttpProtocolParams.setContentCharset(params, HTTP.UTF_8);
+        HttpConnectionParams.setConnectionTimeout(params, connectionTimeout);
+        HttpConnectionParams.setSoTimeout(params, socketTimeout);
+        // Pooled connections may have been closed by the server while idle
+        HttpConnectionParams.setStaleCheckingEnabled(params, true);
+        ConnManagerParams.setMaxTotalConnections(params, maxConnections);
+        ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(maxConnections));
+
+        SchemeRegistry registry = new SchemeRegistry();
+        registry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+        registry.register(new Scheme("https", Utils.getSSLSocketFactory(), 443));
+        mClient = new DefaultHttpClient(new ThreadSafeClientConnManager(params, registry), params);
+    }
+
+    @Override
+    public Response fetch(String location, Map<String, String> headers) throws IOException {
+        HttpGet request = new HttpGet(URI.create(location));
+        request.addHeader("Accept", "application/json");
+        request.addHeader(Utils.HEADER_ACCEPT_ENCODING, "gzip, deflate");
+        if(headers!=null) {
+            for(Map.Entry<String, String> header : headers.entrySet()) {
+                request.addHeader(header.getKey(), header.getValue());
+            }
+        }
+        try {
+            return new HttpResponseWrapper(mClient.execute(request));
+        } catch (IOException e) {
+            request.abort();
+            throw e;
+        } catch (RuntimeException e) {
+            request.abort();
+            throw e;
+        }
+    }
+
+    /**
+     * Closes the pooled connections. The transport can't be used after this.
+     */
+    public void shutdown() {
+        mClient.getConnectionManager().shutdown();
+    }
+
+    private static class HttpResponseWrapper implements Response {
+        private final HttpResponse mResponse;
+
+        HttpResponseWrapper(HttpResponse response) {
+            mResponse = response;
+        }
+
+        @Override
+        public int getStatusCode() {
+            return mResponse.getStatusLine().getStatusCode();
+        }
+
+        @Override
+        public String getHeader(String name) {
+            Header header = mResponse.getFirstHeader(name);
+            return header!=null ? header.getValue() : null;
+        }
+
+        @Override
+        public InputStream getBody() throws IOException {
+            HttpEntity entity = mResponse.getEntity();
+            return entity!=null ? Utils.decodedContent(entity) : null;
+        }
+
+        @Override
+        public void close() {
+            HttpEntity entity = mResponse.getEntity();
+            if(entity!=null) {
+                try {
+                    // Reads what's left so the connection can go back to the pool
+                    entity.consumeContent();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+}
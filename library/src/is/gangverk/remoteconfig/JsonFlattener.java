@@ -0,0 +1,814 @@
+package is.gangverk.remoteconfig;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Reads a JSON config token by token and emits every leaf as a dotted key and a typed value in a
+ * single pass, without building a JSONObject tree first. Objects nested inside objects are
+ * flattened with {@link #SEPARATOR}, arrays are leaves and are handed over as compact JSON text.
+ * Numbers become Integer, Long or Double, booleans become Boolean and nulls are skipped.
+ */
+public final class JsonFlattener {
+    public static final char SEPARATOR = '.';
+
+    private static final int BUFFER_SIZE = 8192;
+    // A null member of a merge patch, which removes the member
+    private static final Object PATCH_NULL = new Object();
+
+    public interface Handler {
+        /**
+         * Called for every string, number and boolean leaf
+         *
+         * @param key The dotted path of the leaf
+         * @param value A String, Integer, Long, Double or Boolean
+         */
+        public void onValue(String key, Object value);
+
+        /**
+         * Called for every array leaf
+         *
+         * @param key The dotted path of the array
+         * @param json The array as compact JSON text
+         */
+        public void onArray(String key, String json);
+    }
+
+    /**
+     * A handler that also wants to know where nested objects start and end
+     */
+    public interface ObjectHandler extends Handler {
+        /**
+         * Called before the leaves of a nested object
+         *
+         * @param key The dotted path of the object
+         */
+        public void onObjectStart(String key);
+
+        /**
+         * Called after the last leaf of a nested object
+         *
+         * @param key The dotted path of the object
+         */
+        public void onObjectEnd(String key);
+    }
+
+    /**
+     * A handler that also wants the null leaves, which mean a removal in a merge patch
+     */
+    interface NullHandler {
+        /**
+         * @param key The dotted path of the null leaf
+         */
+        public void onNull(String key);
+    }
+
+    /**
+     * Gets the position of every leaf in the document instead of its value
+     */
+    interface SpanHandler {
+        /**
+         * @param key The dotted path of the leaf
+         * @param offset The offset of the first character of the value in the document
+         * @param length The length of the value text
+         */
+        public void onSpan(String key, int offset, int length);
+    }
+
+    private final Reader mReader;
+    private final char[] mBuffer;
+    private int mPosition;
+    private int mLimit;
+    private long mOffset;
+    // When not null every character read is copied here, so the caller gets the raw document for free
+    private final StringBuilder mRaw;
+    private final StringBuilder mScratch = new StringBuilder();
+    private final StringBuilder mLiteral = new StringBuilder();
+
+    private JsonFlattener(Reader reader, StringBuilder raw) {
+        this(reader, raw, BUFFER_SIZE);
+    }
+
+    private JsonFlattener(Reader reader, StringBuilder raw, int bufferSize) {
+        mReader = reader;
+        mRaw = raw;
+        mBuffer = new char[bufferSize];
+    }
+
+    /**
+     * Flattens the JSON object read from the reader. The reader is not closed.
+     *
+     * @param reader The JSON source
+     * @param handler Gets every leaf
+     * @param raw If not null the raw document text is appended to it
+     * @throws IOException If the reader fails or the document isn't a valid JSON object
+     */
+    public static void flatten(Reader reader, Handler handler, StringBuilder raw) throws IOException {
+        flatten(reader, handler, raw, null);
+    }
+
+    /**
+     * Same as {@link #flatten(Reader, Handler, StringBuilder)} with every key put under the prefix,
+     * as if the document were the value of that key
+     *
+     * @param prefix The key prefix without the separator, null for none
+     */
+    public static void flatten(Reader reader, Handler handler, StringBuilder raw, String prefix) throws IOException {
+        JsonFlattener flattener = new JsonFlattener(reader, raw);
+        if(flattener.nextNonWhitespace()!='{') {
+            throw flattener.syntaxError("Expected a JSON object");
+        }
+        flattener.readObject(prefix, handler);
+        if(flattener.nextNonWhitespace()!=-1) {
+            throw flattener.syntaxError("Unexpected data after the JSON object");
+        }
+    }
+
+    /**
+     * Finds where the value of every leaf is in the document without decoding any of them. Nulls
+     * are skipped like when flattening.
+     *
+     * @throws IOException If the document isn't a valid JSON object
+     */
+    static void index(String json, SpanHandler handler) throws IOException {
+        JsonFlattener flattener = new JsonFlattener(new StringReader(json), null);
+        if(flattener.nextNonWhitespace()!='{') {
+            throw flattener.syntaxError("Expected a JSON object");
+        }
+        flattener.indexObject(null, handler);
+        if(flattener.nextNonWhitespace()!=-1) {
+            throw flattener.syntaxError("Unexpected data after the JSON object");
+        }
+    }
+
+    /**
+     * Decodes one leaf value found by {@link #index(String, SpanHandler)}. Arrays are returned as
+     * compact JSON text like when flattening.
+     */
+    static Object decodeValue(String json, int offset, int length) throws IOException {
+        int bufferSize = Math.max(16, Math.min(BUFFER_SIZE, length));
+        JsonFlattener flattener = new JsonFlattener(new StringReader(json.substring(offset, offset + length)), null, bufferSize);
+        int c = flattener.nextNonWhitespace();
+        if(c=='[') {
+            StringBuilder array = new StringBuilder("[");
+            flattener.copyArray(array);
+            return array.toString();
+        }
+        if(c=='{') {
+            throw flattener.syntaxError("Objects aren't leaves");
+        }
+        return flattener.readScalar(c);
+    }
+
+    private void indexObject(String prefix, SpanHandler handler) throws IOException {
+        int c = nextNonWhitespace();
+        if(c=='}') {
+            return;
+        }
+        while(true) {
+            if(c!='"') {
+                throw syntaxError("Expected a key");
+            }
+            String name = readString();
+            String key = prefix==null ? name : prefix + SEPARATOR + name;
+            if(nextNonWhitespace()!=':') {
+                throw syntaxError("Expected ':'");
+            }
+            c = nextNonWhitespace();
+            if(c=='{') {
+                indexObject(key, handler);
+            } else {
+                // The value started at the character just read
+                int start = (int)(mOffset + mPosition) - 1;
+                if(skipValue(c)) {
+                    handler.onSpan(key, start, (int)(mOffset + mPosition) - start);
+                }
+            }
+            c = nextNonWhitespace();
+            if(c=='}') {
+                return;
+            }
+            if(c!=',') {
+                throw syntaxError("Expected ',' or '}'");
+            }
+            c = nextNonWhitespace();
+        }
+    }
+
+    /**
+     * Reads past a value, returns false if it was null
+     */
+    private boolean skipValue(int c) throws IOException {
+        if(c=='"') {
+            while(true) {
+                int next = read();
+                if(next==-1) {
+                    throw syntaxError("Unterminated string");
+                }
+                if(next=='"') {
+                    return true;
+                }
+                if(next=='\\') {
+                    read();
+                }
+            }
+        }
+        if(c=='[') {
+            mScratch.setLength(0);
+            copyArray(mScratch);
+            return true;
+        }
+        String literal = readLiteral(c);
+        if("null".equals(literal)) {
+            return false;
+        }
+        if(!"true".equals(literal) && !"false".equals(literal)) {
+            parseNumber(literal);
+        }
+        return true;
+    }
+
+    /**
+     * Applies a JSON merge patch (RFC 7396) to a document. Members the patch doesn't touch are
+     * copied over as they are, so the document is only parsed once and never turned into a tree.
+     *
+     * @param document The JSON object to patch
+     * @param patch The merge patch, a JSON object
+     * @return The patched document as compact JSON text
+     * @throws IOException If the document or the patch isn't a valid JSON object
+     */
+    static String mergePatch(String document, String patch) throws IOException {
+        JsonFlattener patchReader = new JsonFlattener(new StringReader(patch), null);
+        if(patchReader.nextNonWhitespace()!='{') {
+            throw patchReader.syntaxError("Expected a JSON object");
+        }
+        Map<String, Object> members = patchReader.readPatchObject();
+        if(patchReader.nextNonWhitespace()!=-1) {
+            throw patchReader.syntaxError("Unexpected data after the JSON object");
+        }
+        JsonFlattener documentReader = new JsonFlattener(new StringReader(document), null);
+        if(documentReader.nextNonWhitespace()!='{') {
+            throw documentReader.syntaxError("Expected a JSON object");
+        }
+        StringBuilder out = new StringBuilder(document.length() + patch.length());
+        documentReader.mergeObject(members, out);
+        if(documentReader.nextNonWhitespace()!=-1) {
+            throw documentReader.syntaxError("Unexpected data after the JSON object");
+        }
+        return out.toString();
+    }
+
+    /**
+     * Reads the rest of a patch object into a map of nested maps, PATCH_NULL for nulls and the
+     * compact JSON text of every other value
+     */
+    private Map<String, Object> readPatchObject() throws IOException {
+        LinkedHashMap<String, Object> members = new LinkedHashMap<String, Object>();
+        int c = nextNonWhitespace();
+        if(c=='}') {
+            return members;
+        }
+        while(true) {
+            if(c!='"') {
+                throw syntaxError("Expected a key");
+            }
+            String name = readString();
+            if(nextNonWhitespace()!=':') {
+                throw syntaxError("Expected ':'");
+            }
+            c = nextNonWhitespace();
+            if(c=='{') {
+                members.put(name, readPatchObject());
+            } else {
+                StringBuilder value = new StringBuilder();
+                copyValue(c, value);
+                members.put(name, "null".contentEquals(value) ? PATCH_NULL : value.toString());
+            }
+            c = nextNonWhitespace();
+            if(c=='}') {
+                return members;
+            }
+            if(c!=',') {
+                throw syntaxError("Expected ',' or '}'");
+            }
+            c = nextNonWhitespace();
+        }
+    }
+
+    /**
+     * Copies the rest of a document object, whose opening brace has been read, with the patch applied
+     */
+    private void mergeObject(Map<String, Object> patch, StringBuilder out) throws IOException {
+        LinkedHashMap<String, Object> remaining = new LinkedHashMap<String, Object>(patch);
+        out.append('{');
+        int members = 0;
+        int c = nextNonWhitespace();
+        while(c!='}') {
+            if(c!='"') {
+                throw syntaxError("Expected a key");
+            }
+            String name = readString();
+            if(nextNonWhitespace()!=':') {
+                throw syntaxError("Expected ':'");
+            }
+            c = nextNonWhitespace();
+            if(!remaining.containsKey(name)) {
+                if(members++>0) out.append(',');
+                appendQuoted(out, name);
+                out.append(':');
+                copyValue(c, out);
+            } else {
+                Object change = remaining.remove(name);
+                if(change instanceof Map && c=='{') {
+                    if(members++>0) out.append(',');
+                    appendQuoted(out, name);
+                    out.append(':');
+                    @SuppressWarnings("unchecked")
+                    Map<String, Object> nested = (Map<String, Object>)change;
+                    mergeObject(nested, out);
+                } else {
+                    // Replaced or removed, the old value is read past
+                    mScratch.setLength(0);
+                    copyValue(c, mScratch);
+                    if(change!=PATCH_NULL) {
+                        if(members++>0) out.append(',');
+                        appendQuoted(out, name);
+                        out.append(':');
+                        appendPatchValue(change, out);
+                    }
+                }
+            }
+            c = nextNonWhitespace();
+            if(c=='}') {
+                break;
+            }
+            if(c!=',') {
+                throw syntaxError("Expected ',' or '}'");
+            }
+            c = nextNonWhitespace();
+            if(c!='"') {
+                throw syntaxError("Expected a key");
+            }
+        }
+        for(Map.Entry<String, Object> member : remaining.entrySet()) {
+            if(member.getValue()!=PATCH_NULL) {
+                if(members++>0) out.append(',');
+                appendQuoted(out, member.getKey());
+                out.append(':');
+                appendPatchValue(member.getValue(), out);
+            }
+        }
+        out.append('}');
+    }
+
+    /**
+     * Appends a patch value that replaces a member, nulls inside it are left out
+     */
+    private static void appendPatchValue(Object value, StringBuilder out) {
+        if(!(value instanceof Map)) {
+            out.append((String)value);
+            return;
+        }
+        @SuppressWarnings("unchecked")
+        Map<String, Object> members = (Map<String, Object>)value;
+        out.append('{');
+        int count = 0;
+        for(Map.Entry<String, Object> member : members.entrySet()) {
+            if(member.getValue()!=PATCH_NULL) {
+                if(count++>0) out.append(',');
+                appendQuoted(out, member.getKey());
+                out.append(':');
+                appendPatchValue(member.getValue(), out);
+            }
+        }
+        out.append('}');
+    }
+
+    /**
+     * Parses the JSON text of an array leaf
+     *
+     * @throws IOException If the text isn't a valid JSON array
+     */
+    static ConfigArray parseArray(String json) throws IOException {
+        JsonFlattener flattener = new JsonFlattener(new StringReader(json), null);
+        if(flattener.nextNonWhitespace()!='[') {
+            throw flattener.syntaxError("Expected a JSON array");
+        }
+        ConfigArray array = flattener.readArray(json);
+        if(flattener.nextNonWhitespace()!=-1) {
+            throw flattener.syntaxError("Unexpected data after the JSON array");
+        }
+        return array;
+    }
+
+    /**
+     * Parses the JSON text of an object into its members without flattening them. Members are
+     * read like array elements: scalars boxed, arrays as ConfigArray and objects as their compact
+     * JSON text in a ConfigArray.JsonObject.
+     *
+     * @throws IOException If the text isn't a valid JSON object
+     */
+    static Map<String, Object> parseObject(String json) throws IOException {
+        JsonFlattener flattener = new JsonFlattener(new StringReader(json), null);
+        if(flattener.nextNonWhitespace()!='{') {
+            throw flattener.syntaxError("Expected a JSON object");
+        }
+        LinkedHashMap<String, Object> members = new LinkedHashMap<String, Object>();
+        int c = flattener.nextNonWhitespace();
+        while(c!='}') {
+            if(c!='"') {
+                throw flattener.syntaxError("Expected a key");
+            }
+            String name = flattener.readString();
+            if(flattener.nextNonWhitespace()!=':') {
+                throw flattener.syntaxError("Expected ':'");
+            }
+            c = flattener.nextNonWhitespace();
+            if(c=='[') {
+                StringBuilder array = new StringBuilder("[");
+                flattener.copyArray(array);
+                members.put(name, parseArray(array.toString()));
+            } else if(c=='{') {
+                StringBuilder object = new StringBuilder("{");
+                flattener.copyObject(object);
+                members.put(name, new ConfigArray.JsonObject(object.toString()));
+            } else {
+                members.put(name, flattener.readScalar(c));
+            }
+            c = flattener.nextNonWhitespace();
+            if(c=='}') {
+                break;
+            }
+            if(c!=',') {
+                throw flattener.syntaxError("Expected ',' or '}'");
+            }
+            c = flattener.nextNonWhitespace();
+            if(c!='"') {
+                throw flattener.syntaxError("Expected a key");
+            }
+        }
+        if(flattener.nextNonWhitespace()!=-1) {
+            throw flattener.syntaxError("Unexpected data after the JSON object");
+        }
+        return members;
+    }
+
+    /**
+     * Reads the elements of an array whose opening bracket has been read
+     */
+    private ConfigArray readArray(String json) throws IOException {
+        ArrayList<Object> elements = new ArrayList<Object>();
+        int c = nextNonWhitespace();
+        if(c!=']') {
+            while(true) {
+                if(c=='[') {
+                    // Nested arrays are rare, they are copied out and parsed on their own
+                    StringBuilder nested = new StringBuilder("[");
+                    copyArray(nested);
+                    elements.add(parseArray(nested.toString()));
+                } else if(c=='{') {
+                    StringBuilder object = new StringBuilder("{");
+                    copyObject(object);
+                    elements.add(new ConfigArray.JsonObject(object.toString()));
+                } else {
+                    elements.add(readScalar(c));
+                }
+                c = nextNonWhitespace();
+                if(c==']') {
+                    break;
+                }
+                if(c!=',') {
+                    throw syntaxError("Expected ',' or ']'");
+                }
+                c = nextNonWhitespace();
+            }
+        }
+        return new ConfigArray(json, elements);
+    }
+
+    private void readObject(String prefix, Handler handler) throws IOException {
+        int c = nextNonWhitespace();
+        if(c=='}') {
+            return;
+        }
+        while(true) {
+            if(c!='"') {
+                throw syntaxError("Expected a key");
+            }
+            String name = readString();
+            String key = prefix==null ? name : prefix + SEPARATOR + name;
+            if(nextNonWhitespace()!=':') {
+                throw syntaxError("Expected ':'");
+            }
+            c = nextNonWhitespace();
+            switch(c) {
+                case '{':
+                    if(handler instanceof ObjectHandler) {
+                        ((ObjectHandler)handler).onObjectStart(key);
+                        readObject(key, handler);
+                        ((ObjectHandler)handler).onObjectEnd(key);
+                    } else {
+                        readObject(key, handler);
+                    }
+                    break;
+                case '[':
+                    mScratch.setLength(0);
+                    mScratch.append('[');
+                    copyArray(mScratch);
+                    handler.onArray(key, mScratch.toString());
+                    break;
+                default:
+                    Object value = readScalar(c);
+                    if(value!=null) {
+                        handler.onValue(key, value);
+                    } else if(handler instanceof NullHandler) {
+                        ((NullHandler)handler).onNull(key);
+                    }
+            }
+            c = nextNonWhitespace();
+            if(c=='}') {
+                return;
+            }
+            if(c!=',') {
+                throw syntaxError("Expected ',' or '}'");
+            }
+            c = nextNonWhitespace();
+        }
+    }
+
+    /**
+     * Copies the rest of an array, whose opening bracket has been read, as compact JSON text
+     */
+    private void copyArray(StringBuilder out) throws IOException {
+        int c = nextNonWhitespace();
+        if(c==']') {
+            out.append(']');
+            return;
+        }
+        while(true) {
+            copyValue(c, out);
+            c = nextNonWhitespace();
+            if(c==']') {
+                out.append(']');
+                return;
+            }
+            if(c!=',') {
+                throw syntaxError("Expected ',' or ']'");
+            }
+            out.append(',');
+            c = nextNonWhitespace();
+        }
+    }
+
+    private void copyObject(StringBuilder out) throws IOException {
+        int c = nextNonWhitespace();
+        if(c=='}') {
+            out.append('}');
+            return;
+        }
+        while(true) {
+            if(c!='"') {
+                throw syntaxError("Expected a key");
+            }
+            appendQuoted(out, readString());
+            if(nextNonWhitespace()!=':') {
+                throw syntaxError("Expected ':'");
+            }
+            out.append(':');
+            copyValue(nextNonWhitespace(), out);
+            c = nextNonWhitespace();
+            if(c=='}') {
+                out.append('}');
+                return;
+            }
+            if(c!=',') {
+                throw syntaxError("Expected ',' or '}'");
+            }
+            out.append(',');
+            c = nextNonWhitespace();
+        }
+    }
+
+    private void copyValue(int c, StringBuilder out) throws IOException {
+        if(c=='{') {
+            out.append('{');
+            copyObject(out);
+        } else if(c=='[') {
+            out.append('[');
+            copyArray(out);
+        } else if(c=='"') {
+            appendQuoted(out, readString());
+        } else {
+            String literal = readLiteral(c);
+            if(!"true".equals(literal) && !"false".equals(literal) && !"null".equals(literal)) {
+                parseNumber(literal);
+            }
+            out.append(literal);
+        }
+    }
+
+    private Object readScalar(int c) throws IOException {
+        if(c=='"') {
+            return readString();
+        }
+        String literal = readLiteral(c);
+        if("true".equals(literal)) {
+            return Boolean.TRUE;
+        } else if("false".equals(literal)) {
+            return Boolean.FALSE;
+        } else if("null".equals(literal)) {
+            return null;
+        }
+        return parseNumber(literal);
+    }
+
+    private Object parseNumber(String literal) throws IOException {
+        char first = literal.charAt(0);
+        char last = literal.charAt(literal.length() - 1);
+        if((first!='-' && (first<'0' || first>'9')) || last<'0' || last>'9') {
+            throw syntaxError("Unexpected value " + literal);
+        }
+        try {
+            if(literal.indexOf('.')<0 && literal.indexOf('e')<0 && literal.indexOf('E')<0) {
+                try {
+                    long value = Long.parseLong(literal);
+                    if(value>=Integer.MIN_VALUE && value<=Integer.MAX_VALUE) {
+                        return Integer.valueOf((int)value);
+                    }
+                    return Long.valueOf(value);
+                } catch (NumberFormatException e) {
+                    // Too big for a long, fall through to double like org.json does
+                }
+            }
+            return Double.valueOf(literal);
+        } catch (NumberFormatException e) {
+            throw syntaxError("Unexpected value " + literal);
+        }
+    }
+
+    /**
+     * Reads true, false, null or a number starting with the given character
+     */
+    private String readLiteral(int first) throws IOException {
+        if(first==-1) {
+            throw syntaxError("Unexpected end of input");
+        }
+        mLiteral.setLength(0);
+        mLiteral.append((char)first);
+        while(true) {
+            int c = peek();
+            if(c==-1 || c==',' || c=='}' || c==']' || c==':' || isWhitespace(c)) {
+                break;
+            }
+            mLiteral.append((char)read());
+        }
+        return mLiteral.toString();
+    }
+
+    /**
+     * Reads a string whose opening quote has been read
+     */
+    private String readString() throws IOException {
+        StringBuilder builder = null;
+        while(true) {
+            // Fast path, strings without escapes are cut straight out of the buffer
+            int start = mPosition;
+            while(mPosition<mLimit) {
+                char c = mBuffer[mPosition];
+                if(c=='"' || c=='\\') {
+                    break;
+                }
+                mPosition++;
+            }
+            if(mPosition>start) {
+                if(mRaw!=null) {
+                    mRaw.append(mBuffer, start, mPosition - start);
+                }
+                if(mPosition<mLimit && mBuffer[mPosition]=='"' && builder==null) {
+                    String value = new String(mBuffer, start, mPosition - start);
+                    read();
+                    return value;
+                }
+                if(builder==null) {
+                    builder = new StringBuilder();
+                }
+                builder.append(mBuffer, start, mPosition - start);
+            }
+            int c = read();
+            if(c==-1) {
+                throw syntaxError("Unterminated string");
+            }
+            if(builder==null) {
+                builder = new StringBuilder();
+            }
+            if(c=='"') {
+                return builder.toString();
+            }
+            if(c=='\\') {
+                builder.append(readEscape());
+            } else {
+                builder.append((char)c);
+            }
+        }
+    }
+
+    private char readEscape() throws IOException {
+        int c = read();
+        switch(c) {
+            case 'n': return '\n';
+            case 't': return '\t';
+            case 'r': return '\r';
+            case 'b': return '\b';
+            case 'f': return '\f';
+            case 'u':
+                int value = 0;
+                for(int i=0;i<4;i++) {
+                    int digit = Character.digit(read(), 16);
+                    if(digit<0) {
+                        throw syntaxError("Invalid unicode escape");
+                    }
+                    value = (value << 4) | digit;
+                }
+                return (char)value;
+            case '"':
+            case '\\':
+            case '/':
+                return (char)c;
+            default:
+                throw syntaxError("Invalid escape");
+        }
+    }
+
+    static void appendQuoted(StringBuilder out, String value) {
+        out.append('"');
+        for(int i=0;i<value.length();i++) {
+            char c = value.charAt(i);
+            switch(c) {
+                case '"': out.append("\\\""); break;
+                case '\\': out.append("\\\\"); break;
+                case '\n': out.append("\\n"); break;
+                case '\r': out.append("\\r"); break;
+                case '\t': out.append("\\t"); break;
+                case '\b': out.append("\\b"); break;
+                case '\f': out.append("\\f"); break;
+                default:
+                    if(c<0x20) {
+                        out.append(String.format("\\u%04x", (int)c));
+                    } else {
+                        out.append(c);
+                    }
+            }
+        }
+        out.append('"');
+    }
+
+    private static boolean isWhitespace(int c) {
+        return c==' ' || c=='\n' || c=='\r' || c=='\t';
+    }
+
+    private int nextNonWhitespace() throws IOException {
+        int c;
+        do {
+            c = read();
+        } while(isWhitespace(c));
+        return c;
+    }
+
+    private int peek() throws IOException {
+        if(mPosition>=mLimit && !fill()) {
+            return -1;
+        }
+        return mBuffer[mPosition];
+    }
+
+    private int read() throws IOException {
+        if(mPosition>=mLimit && !fill()) {
+            return -1;
+        }
+        char c = mBuffer[mPosition++];
+        if(mRaw!=null) {
+            mRaw.append(c);
+        }
+        return c;
+    }
+
+    private boolean fill() throws IOException {
+        mOffset += mLimit;
+        mPosition = 0;
+        mLimit = 0;
+        int count = mReader.read(mBuffer, 0, mBuffer.length);
+        if(count<=0) {
+            return false;
+        }
+        mLimit = count;
+        return true;
+    }
+
+    private IOException syntaxError(String message) {
+        return new IOException(message + " at offset " + (mOffset + mPosition));
+    }
+}
@@ -0,0 +1,217 @@
+package is.gangverk.remoteconfig;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A snapshot read straight from the raw config document. The first read indexes where every
+ * leaf's value is in the document, and each value is decoded the first time it's read and kept
+ * after that, so keys that are never read are never decoded.
+ */
+final class LazyConfigSnapshot extends ConfigSnapshot {
+    private final String mRaw;
+    private volatile Index mIndex;
+
+    LazyConfigSnapshot(String raw) {
+        mRaw = raw;
+    }
+
+    private Index index() {
+        Index index = mIndex;
+        if(index==null) {
+            synchronized (this) {
+                index = mIndex;
+                if(index==null) {
+                    index = new Index(mRaw);
+                    mIndex = index;
+                }
+            }
+        }
+        return index;
+    }
+
+    private Object value(String key) {
+        Index index = index();
+        int slot = index.slotOf(key);
+        return slot<0 ? null : index.value(mRaw, slot);
+    }
+
+    /**
+     * Puts the changes on top of this snapshot without decoding it
+     */
+    @Override
+    public ConfigSnapshot with(Map<String, ?> changes) {
+        if(changes==null || changes.isEmpty()) {
+            return this;
+        }
+        if(changes.containsValue(null)) {
+            // Removed keys can't be layered over the document
+            return super.with(changes);
+        }
+        return ConfigSnapshot.from(changes).withFallback(this);
+    }
+
+    @Override
+    public Object get(String key) {
+        return value(key);
+    }
+
+    @Override
+    public int getType(String key) {
+        Index index = index();
+        int slot = index.slotOf(key);
+        if(slot<0) return TYPE_NONE;
+        // Strings, arrays and booleans are known from their first character
+        switch(mRaw.charAt(index.mOffsets[slot])) {
+            case '"':
+            case '[':
+                return TYPE_STRING;
+            case 't':
+            case 'f':
+                return TYPE_BOOLEAN;
+            default:
+                return typeOf(index.value(mRaw, slot));
+        }
+    }
+
+    @Override
+    public String getString(String key) {
+        Object value = value(key);
+        return value instanceof String ? (String)value : null;
+    }
+
+    @Override
+    public int getInt(String key, int defaultValue) {
+        Object value = value(key);
+        return value instanceof Integer ? ((Integer)value).intValue() : defaultValue;
+    }
+
+    @Override
+    public long getLong(String key, long defaultValue) {
+        Object value = value(key);
+        return value instanceof Long || value instanceof Integer ? ((Number)value).longValue() : defaultValue;
+    }
+
+    @Override
+    public double getDouble(String key, double defaultValue) {
+        Object value = value(key);
+        return value instanceof Double || value instanceof Long || value instanceof Integer ? ((Number)value).doubleValue() : defaultValue;
+    }
+
+    @Override
+    public boolean getBoolean(String key, boolean defaultValue) {
+        Object value = value(key);
+        return value instanceof Boolean ? ((Boolean)value).booleanValue() : defaultValue;
+    }
+
+    @Override
+    public int size() {
+        return index().mSize;
+    }
+
+    @Override
+    public Map<String, Object> asMap() {
+        Index index = index();
+        HashMap<String, Object> values = new HashMap<String, Object>();
+        for(int slot=0;slot<index.mKeys.length;slot++) {
+            if(index.mKeys[slot]!=null) {
+                Object value = index.value(mRaw, slot);
+                if(value!=null) {
+                    values.put(index.mKeys[slot], value);
+                }
+            }
+        }
+        return values;
+    }
+
+    /**
+     * The value positions behind an open addressing hash index, with the decoded values filled in as they're read
+     */
+    private static final class Index {
+        final String[] mKeys;
+        final int[] mOffsets;
+        final int[] mLengths;
+        // Decoded values are immutable, so racing readers at worst decode the same value twice
+        final Object[] mValues;
+        final int mMask;
+        final int mSize;
+
+        Index(String raw) {
+            final ArrayList<String> keys = new ArrayList<String>();
+            // Offset and length of every key, in pairs
+            final int[][] spans = new int[][] {new int[64]};
+            try {
+                JsonFlattener.index(raw, new JsonFlattener.SpanHandler() {
+                    @Override
+                    public void onSpan(String key, int offset, int length) {
+                        int i = keys.size() * 2;
+                        if(i + 1>=spans[0].length) {
+                            spans[0] = Arrays.copyOf(spans[0], spans[0].length * 2);
+                        }
+                        spans[0][i] = offset;
+                        spans[0][i + 1] = length;
+                        keys.add(key);
+                    }
+                });
+            } catch (IOException e) {
+                // The document was valid when it was stored, an unreadable one is as good as none
+                e.printStackTrace();
+                keys.clear();
+            }
+            int capacity = 4;
+            while(capacity < keys.size() * 2) {
+                capacity <<= 1;
+            }
+            mKeys = new String[capacity];
+            mOffsets = new int[capacity];
+            mLengths = new int[capacity];
+            mValues = new Object[capacity];
+            mMask = capacity - 1;
+            int size = 0;
+            for(int i=0;i<keys.size();i++) {
+                String key = keys.get(i);
+                int slot = key.hashCode() & mMask;
+                while(mKeys[slot]!=null && !mKeys[slot].equals(key)) {
+                    slot = (slot + 1) & mMask;
+                }
+                if(mKeys[slot]==null) {
+                    size++;
+                }
+                // A key that appears twice keeps its last value, like when flattening
+                mKeys[slot] = key;
+                mOffsets[slot] = spans[0][i * 2];
+                mLengths[slot] = spans[0][i * 2 + 1];
+            }
+            mSize = size;
+        }
+
+        int slotOf(String key) {
+            int slot = key.hashCode() & mMask;
+            String candidate;
+            while((candidate = mKeys[slot])!=null) {
+                if(candidate==key || candidate.equals(key)) {
+                    return slot;
+                }
+                slot = (slot + 1) & mMask;
+            }
+            return -1;
+        }
+
+        Object value(String raw, int slot) {
+            Object value = mValues[slot];
+            if(value==null) {
+                try {
+                    value = JsonFlattener.decodeValue(raw, mOffsets[slot], mLengths[slot]);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    return null;
+                }
+                mValues[slot] = value;
+            }
+            return value;
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package is.gangverk.remoteconfig;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Serves config documents from memory or from files instead of the network, for tests and
+ * benchmarks. Every document gets an ETag from its content, so conditional requests are answered
+ * with 304 like a real server would. Unknown locations are answered with 404.
+ */
+public class LocalConfigTransport implements ConfigTransport {
+    private final HashMap<String, byte[]> mDocuments = new HashMap<String, byte[]>();
+    private final HashMap<String, File> mFiles = new HashMap<String, File>();
+    private int mRequestCount;
+
+    /**
+     * Serves the document at the location
+     */
+    public synchronized void put(String location, byte[] document) {
+        mFiles.remove(location);
+        mDocuments.put(location, document);
+    }
+
+    /**
+     * Serves the UTF-8 encoded document at the location
+     */
+    public void put(String location, String document) {
+        try {
+            put(location, document.getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Serves the file at the location, it's read again on every request
+     */
+    public synchronized void put(String location, File file) {
+        mDocuments.remove(location);
+        mFiles.put(location, file);
+    }
+
+    public synchronized void remove(String location) {
+        mDocuments.remove(location);
+        mFiles.remove(location);
+    }
+
+    /**
+     * Returns how many requests have been made
+     */
+    public synchronized int getRequestCount() {
+        return mRequestCount;
+    }
+
+    @Override
+    public Response fetch(String location, Map<String, String> headers) throws IOException {
+        byte[] document;
+        File file;
+        synchronized (this) {
+            mRequestCount++;
+            document = mDocuments.get(location);
+            file = mFiles.get(location);
+        }
+        if(file!=null) {
+            document = readFile(file);
+        }
+        if(document==null) {
+            return new LocalResponse(404, null, null);
+        }
+        String eTag = eTag(document);
+        String ifNoneMatch = headers!=null ? headers.get(Utils.HEADER_IF_NONE_MATCH) : null;
+        if(eTag.equals(ifNoneMatch)) {
+            return new LocalResponse(304, eTag, null);
+        }
+        return new LocalResponse(200, eTag, document);
+    }
+
+    private static String eTag(byte[] document) {
+        CRC32 crc = new CRC32();
+        crc.update(document);
+        return "\"" + Long.toHexString(crc.getValue()) + "-" + Integer.toHexString(document.length) + "\"";
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        if(!file.exists()) {
+            throw new FileNotFoundException(file.getPath());
+        }
+        byte[] document = new byte[(int)file.length()];
+        InputStream is = new FileInputStream(file);
+        try {
+            int offset = 0;
+            int count;
+            while(offset<document.length && (count = is.read(document, offset, document.length - offset))!=-1) {
+                offset += count;
+            }
+        } finally {
+            is.close();
+        }
+        return document;
+    }
+
+    private static class LocalResponse implements Response {
+        private final int mStatusCode;
+        private final String mETag;
+        private final byte[] mBody;
+
+        LocalResponse(int statusCode, String eTag, byte[] body) {
+            mStatusCode = statusCode;
+            mETag = eTag;
+            mBody = body;
+        }
+
+        @Override
+        public int getStatusCode() {
+            return mStatusCode;
+        }
+
+        @Override
+        public String getHeader(String name) {
+            return Utils.HEADER_ETAG.equalsIgnoreCase(name) ? mETag : null;
+        }
+
+        @Override
+        public InputStream getBody() {
+            return mBody!=null ? new ByteArrayInputStream(mBody) : null;
+        }
+
+        @Override
+        public void close() {}
+    }
+}
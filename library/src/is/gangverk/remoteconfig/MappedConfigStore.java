@@ -0,0 +1,632 @@
+package is.gangverk.remoteconfig;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+/**
+ * Keeps the config values in a compact binary snapshot file that is memory mapped instead of parsed.
+ * Opening the store only maps the file and a read is a binary search over the sorted key index, so
+ * the values never have to be copied to the heap as a whole.
+ *
+ * <p>File layout, big endian:</p>
+ * <pre>
+ * header   magic, entry count, key region offset, value region offset, stamp (5 ints)
+ * index    per entry sorted by key: key char offset, key length, value type, value offset (4 ints)
+ * keys     the keys as UTF-16 chars
+ * values   int (4 bytes), long and double (8 bytes), boolean (1 byte), string (char count + UTF-16 chars)
+ * </pre>
+ *
+ * A write only puts the changes since the snapshot was written in a delta file, read on top of the
+ * mapped snapshot. The snapshot is written again once the changes add up to a good part of it. The
+ * delta names the stamp of the snapshot it applies to, so a delta left behind by a write that was
+ * cut short is never read on top of a newer snapshot.
+ *
+ * <pre>
+ * delta    magic, snapshot stamp, entry count (3 ints), then per entry: key (char count + UTF-16 chars),
+ *          value type (1 byte, 0 for a removed key), value as in the snapshot
+ * </pre>
+ *
+ * The raw config document and the metadata are kept in small side files next to the snapshot.
+ */
+public class MappedConfigStore implements ConfigStore {
+    private static final int MAGIC = 0x52435331; // RCS1
+    private static final int HEADER_SIZE = 5 * 4;
+    private static final int INDEX_ENTRY_SIZE = 4 * 4;
+    private static final int DELTA_MAGIC = 0x52434431; // RCD1
+
+    private final File mSnapshotFile;
+    private final File mDeltaFile;
+    private final File mRawFile;
+    private final File mMetadataFile;
+    private Properties mMetadata;
+    // The snapshot file as last mapped and the changes in the delta file, null until loaded or written
+    private MappedSnapshot mBase;
+    private HashMap<String, Object> mPending = new HashMap<String, Object>();
+
+    /**
+     * @param directory The directory the store files are kept in
+     * @param name The base name of the store files
+     */
+    public MappedConfigStore(File directory, String name) {
+        directory.mkdirs();
+        mSnapshotFile = new File(directory, name + ".rcs");
+        mDeltaFile = new File(directory, name + ".rcd");
+        mRawFile = new File(directory, name + ".json");
+        mMetadataFile = new File(directory, name + ".meta");
+    }
+
+    /**
+     * Maps the snapshot and reads the delta and metadata from disk again, dropping what was read before
+     */
+    @Override
+    public synchronized ConfigSnapshot load() {
+        // Another process may have written the store since, see MultiProcessConfigStore
+        mMetadata = null;
+        mBase = null;
+        mPending = new HashMap<String, Object>();
+        if(!mSnapshotFile.exists()) {
+            return ConfigSnapshot.EMPTY;
+        }
+        try {
+            mBase = map(mSnapshotFile);
+        } catch (IOException e) {
+            e.printStackTrace();
+            // A broken snapshot is as good as none, the next download writes a new one
+            mSnapshotFile.delete();
+            return ConfigSnapshot.EMPTY;
+        }
+        try {
+            mPending = readDelta(mDeltaFile, mBase.getStamp());
+        } catch (IOException e) {
+            // The changes since the snapshot are lost, the snapshot is still a config this app had
+            e.printStackTrace();
+            mDeltaFile.delete();
+        }
+        return mPending.isEmpty() ? mBase : ConfigSnapshot.overlay(mBase, mPending);
+    }
+
+    @Override
+    public synchronized ConfigSnapshot write(ConfigSnapshot current, Map<String, Object> changes, String rawConfig) {
+        HashMap<String, Object> pending = new HashMap<String, Object>(mPending);
+        pending.putAll(changes);
+        if(mBase!=null && pending.size()<=Math.max(ConfigSnapshot.OverlaySnapshot.MIN_COMPACT_SIZE, mBase.size() / ConfigSnapshot.OverlaySnapshot.COMPACT_FRACTION)) {
+            try {
+                // Only the changes since the snapshot are written, however big the config is
+                writeDelta(mDeltaFile, mBase.getStamp(), pending);
+                writeText(mRawFile, rawConfig);
+                mPending = pending;
+                return ConfigSnapshot.overlay(mBase, pending);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        TreeMap<String, Object> values = new TreeMap<String, Object>(current.asMap());
+        for(Map.Entry<String, Object> change : changes.entrySet()) {
+            if(change.getValue()!=null) {
+                values.put(change.getKey(), change.getValue());
+            } else {
+                values.remove(change.getKey());
+            }
+        }
+        try {
+            File temp = new File(mSnapshotFile.getPath() + ".tmp");
+            // A new stamp, so the delta of the previous snapshot no longer applies even if deleting it fails
+            writeSnapshot(temp, values, mBase!=null ? mBase.getStamp() + 1 : (int)System.currentTimeMillis());
+            if(!temp.renameTo(mSnapshotFile)) {
+                throw new IOException("Unable to replace " + mSnapshotFile);
+            }
+            mDeltaFile.delete();
+            writeText(mRawFile, rawConfig);
+            mBase = map(mSnapshotFile);
+            mPending = new HashMap<String, Object>();
+            return mBase;
+        } catch (IOException e) {
+            e.printStackTrace();
+            // Readers still get the new values, they just won't survive a restart
+            return current.with(changes);
+        }
+    }
+
+    @Override
+    public synchronized String readRawConfig() {
+        if(!mRawFile.exists()) {
+            return null;
+        }
+        try {
+            return readText(mRawFile);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    @Override
+    public synchronized int getInt(String key, int defaultValue) {
+        String value = metadata().getProperty(key);
+        return value!=null ? Integer.parseInt(value) : defaultValue;
+    }
+
+    @Override
+    public synchronized void putInt(String key, int value) {
+        putString(key, Integer.toString(value));
+    }
+
+    @Override
+    public synchronized long getLong(String key, long defaultValue) {
+        String value = metadata().getProperty(key);
+        return value!=null ? Long.parseLong(value) : defaultValue;
+    }
+
+    @Override
+    public synchronized void putLong(String key, long value) {
+        putString(key, Long.toString(value));
+    }
+
+    @Override
+    public synchronized String getString(String key) {
+        return metadata().getProperty(key);
+    }
+
+    @Override
+    public synchronized void putString(String key, String value) {
+        setMetadata(key, value);
+        saveMetadata();
+    }
+
+    @Override
+    public synchronized void putMetadata(Map<String, Object> metadata) {
+        for(Map.Entry<String, Object> entry : metadata.entrySet()) {
+            setMetadata(entry.getKey(), entry.getValue()!=null ? entry.getValue().toString() : null);
+        }
+        saveMetadata();
+    }
+
+    private void setMetadata(String key, String value) {
+        if(value!=null) {
+            metadata().setProperty(key, value);
+        } else {
+            metadata().remove(key);
+        }
+    }
+
+    @Override
+    public synchronized void clear() {
+        mSnapshotFile.delete();
+        mDeltaFile.delete();
+        mRawFile.delete();
+        mMetadataFile.delete();
+        mMetadata = new Properties();
+        mBase = null;
+        mPending = new HashMap<String, Object>();
+    }
+
+    @Override
+    public synchronized long sizeOnDisk() {
+        return mSnapshotFile.length() + mDeltaFile.length() + mRawFile.length() + mMetadataFile.length();
+    }
+
+    @Override
+    public void delete() {
+        clear();
+    }
+
+    private Properties metadata() {
+        if(mMetadata==null) {
+            mMetadata = new Properties();
+            if(mMetadataFile.exists()) {
+                InputStream is = null;
+                try {
+                    is = new FileInputStream(mMetadataFile);
+                    mMetadata.load(is);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                } finally {
+                    closeQuietly(is);
+                }
+            }
+        }
+        return mMetadata;
+    }
+
+    private void saveMetadata() {
+        OutputStream os = null;
+        try {
+            File temp = new File(mMetadataFile.getPath() + ".tmp");
+            os = new FileOutputStream(temp);
+            mMetadata.store(os, null);
+            os.close();
+            os = null;
+            temp.renameTo(mMetadataFile);
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            closeQuietly(os);
+        }
+    }
+
+    static void writeSnapshot(File file, TreeMap<String, Object> values, int stamp) throws IOException {
+        int count = 0;
+        int keyChars = 0;
+        for(Map.Entry<String, Object> entry : values.entrySet()) {
+            if(ConfigSnapshot.typeOf(entry.getValue())!=ConfigSnapshot.TYPE_NONE) {
+                count++;
+                keyChars += entry.getKey().length();
+            }
+        }
+        int keysStart = HEADER_SIZE + count * INDEX_ENTRY_SIZE;
+        int valuesStart = keysStart + keyChars * 2;
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(count);
+            out.writeInt(keysStart);
+            out.writeInt(valuesStart);
+            out.writeInt(stamp);
+            int keyOffset = 0;
+            int valueOffset = 0;
+            for(Map.Entry<String, Object> entry : values.entrySet()) {
+                int type = ConfigSnapshot.typeOf(entry.getValue());
+                if(type==ConfigSnapshot.TYPE_NONE) continue;
+                out.writeInt(keyOffset);
+                out.writeInt(entry.getKey().length());
+                out.writeInt(type);
+                out.writeInt(valueOffset);
+                keyOffset += entry.getKey().length();
+                valueOffset += valueSize(type, entry.getValue());
+            }
+            for(Map.Entry<String, Object> entry : values.entrySet()) {
+                if(ConfigSnapshot.typeOf(entry.getValue())!=ConfigSnapshot.TYPE_NONE) {
+                    out.writeChars(entry.getKey());
+                }
+            }
+            for(Map.Entry<String, Object> entry : values.entrySet()) {
+                writeValue(out, entry.getValue());
+            }
+            out.flush();
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void writeValue(DataOutputStream out, Object value) throws IOException {
+        switch(ConfigSnapshot.typeOf(value)) {
+            case ConfigSnapshot.TYPE_STRING:
+                out.writeInt(((String)value).length());
+                out.writeChars((String)value);
+                break;
+            case ConfigSnapshot.TYPE_INT:
+                out.writeInt(((Integer)value).intValue());
+                break;
+            case ConfigSnapshot.TYPE_LONG:
+                out.writeLong(((Long)value).longValue());
+                break;
+            case ConfigSnapshot.TYPE_DOUBLE:
+                out.writeDouble(((Double)value).doubleValue());
+                break;
+            case ConfigSnapshot.TYPE_BOOLEAN:
+                out.writeBoolean(((Boolean)value).booleanValue());
+                break;
+        }
+    }
+
+    private static Object readValue(DataInputStream in, int type) throws IOException {
+        switch(type) {
+            case ConfigSnapshot.TYPE_STRING: return readChars(in);
+            case ConfigSnapshot.TYPE_INT: return Integer.valueOf(in.readInt());
+            case ConfigSnapshot.TYPE_LONG: return Long.valueOf(in.readLong());
+            case ConfigSnapshot.TYPE_DOUBLE: return Double.valueOf(in.readDouble());
+            case ConfigSnapshot.TYPE_BOOLEAN: return Boolean.valueOf(in.readBoolean());
+            case ConfigSnapshot.TYPE_NONE: return null;
+            default: throw new IOException("Unknown value type " + type);
+        }
+    }
+
+    private static String readChars(DataInputStream in) throws IOException {
+        char[] chars = new char[in.readInt()];
+        for(int i=0;i<chars.length;i++) {
+            chars[i] = in.readChar();
+        }
+        return new String(chars);
+    }
+
+    static void writeDelta(File file, int stamp, Map<String, Object> changes) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+        try {
+            out.writeInt(DELTA_MAGIC);
+            out.writeInt(stamp);
+            out.writeInt(changes.size());
+            for(Map.Entry<String, Object> change : changes.entrySet()) {
+                out.writeInt(change.getKey().length());
+                out.writeChars(change.getKey());
+                out.writeByte(ConfigSnapshot.typeOf(change.getValue()));
+                writeValue(out, change.getValue());
+            }
+        } finally {
+            out.close();
+        }
+        if(!temp.renameTo(file)) {
+            throw new IOException("Unable to replace " + file);
+        }
+    }
+
+    /**
+     * Returns the changes in the delta file, with null for removed keys, or none if the delta is
+     * for another snapshot
+     */
+    static HashMap<String, Object> readDelta(File file, int stamp) throws IOException {
+        HashMap<String, Object> changes = new HashMap<String, Object>();
+        if(!file.exists()) {
+            return changes;
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if(in.readInt()!=DELTA_MAGIC) {
+                throw new IOException("Not a config delta: " + file);
+            }
+            if(in.readInt()!=stamp) {
+                return changes;
+            }
+            int count = in.readInt();
+            for(int i=0;i<count;i++) {
+                String key = readChars(in);
+                changes.put(key, readValue(in, in.readByte()));
+            }
+            return changes;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static int valueSize(int type, Object value) {
+        switch(type) {
+            case ConfigSnapshot.TYPE_STRING: return 4 + ((String)value).length() * 2;
+            case ConfigSnapshot.TYPE_INT: return 4;
+            case ConfigSnapshot.TYPE_BOOLEAN: return 1;
+            default: return 8;
+        }
+    }
+
+    static MappedSnapshot map(File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            // The mapping stays valid after the channel is closed
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if(buffer.capacity()<HEADER_SIZE || buffer.getInt(0)!=MAGIC) {
+                throw new IOException("Not a config snapshot: " + file);
+            }
+            return new MappedSnapshot(buffer);
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * A snapshot reading straight from the mapped file. Only absolute reads are used on the buffer
+     * so any number of threads can read at the same time.
+     */
+    static final class MappedSnapshot extends ConfigSnapshot {
+        private final ByteBuffer mBuffer;
+        private final int mCount;
+        private final int mKeysStart;
+        private final int mValuesStart;
+
+        MappedSnapshot(ByteBuffer buffer) {
+            mBuffer = buffer;
+            mCount = buffer.getInt(4);
+            mKeysStart = buffer.getInt(8);
+            mValuesStart = buffer.getInt(12);
+        }
+
+        /**
+         * Returns the stamp the snapshot was written with
+         */
+        int getStamp() {
+            return mBuffer.getInt(16);
+        }
+
+        @Override
+        public Object get(String key) {
+            int index = indexOf(key);
+            return index>=0 ? valueAt(index) : null;
+        }
+
+        @Override
+        public String getString(String key) {
+            int index = indexOf(key);
+            if(index<0 || typeAt(index)!=TYPE_STRING) {
+                return null;
+            }
+            return (String)valueAt(index);
+        }
+
+        @Override
+        public int getType(String key) {
+            int index = indexOf(key);
+            return index>=0 ? typeAt(index) : TYPE_NONE;
+        }
+
+        @Override
+        public int getInt(String key, int defaultValue) {
+            int index = indexOf(key);
+            if(index<0 || typeAt(index)!=TYPE_INT) {
+                return defaultValue;
+            }
+            return mBuffer.getInt(mValuesStart + valueOffsetAt(index));
+        }
+
+        @Override
+        public long getLong(String key, long defaultValue) {
+            int index = indexOf(key);
+            if(index<0) return defaultValue;
+            switch(typeAt(index)) {
+                case TYPE_LONG: return mBuffer.getLong(mValuesStart + valueOffsetAt(index));
+                case TYPE_INT: return mBuffer.getInt(mValuesStart + valueOffsetAt(index));
+                default: return defaultValue;
+            }
+        }
+
+        @Override
+        public double getDouble(String key, double defaultValue) {
+            int index = indexOf(key);
+            if(index<0) return defaultValue;
+            switch(typeAt(index)) {
+                case TYPE_DOUBLE: return mBuffer.getDouble(mValuesStart + valueOffsetAt(index));
+                case TYPE_LONG: return mBuffer.getLong(mValuesStart + valueOffsetAt(index));
+                case TYPE_INT: return mBuffer.getInt(mValuesStart + valueOffsetAt(index));
+                default: return defaultValue;
+            }
+        }
+
+        @Override
+        public boolean getBoolean(String key, boolean defaultValue) {
+            int index = indexOf(key);
+            if(index<0 || typeAt(index)!=TYPE_BOOLEAN) {
+                return defaultValue;
+            }
+            return mBuffer.get(mValuesStart + valueOffsetAt(index))!=0;
+        }
+
+        @Override
+        public int size() {
+            return mCount;
+        }
+
+        @Override
+        public Map<String, Object> asMap() {
+            HashMap<String, Object> values = new HashMap<String, Object>();
+            for(int i=0;i<mCount;i++) {
+                values.put(keyAt(i), valueAt(i));
+            }
+            return values;
+        }
+
+        int indexOf(String key) {
+            int low = 0;
+            int high = mCount - 1;
+            while(low<=high) {
+                int middle = (low + high) >>> 1;
+                int comparison = compareKeyAt(middle, key);
+                if(comparison<0) {
+                    low = middle + 1;
+                } else if(comparison>0) {
+                    high = middle - 1;
+                } else {
+                    return middle;
+                }
+            }
+            return -1;
+        }
+
+        private int compareKeyAt(int index, String key) {
+            int entry = HEADER_SIZE + index * INDEX_ENTRY_SIZE;
+            int offset = mKeysStart + mBuffer.getInt(entry) * 2;
+            int length = mBuffer.getInt(entry + 4);
+            int common = Math.min(length, key.length());
+            for(int i=0;i<common;i++) {
+                char c = mBuffer.getChar(offset + i * 2);
+                char k = key.charAt(i);
+                if(c!=k) {
+                    return c - k;
+                }
+            }
+            return length - key.length();
+        }
+
+        String keyAt(int index) {
+            int entry = HEADER_SIZE + index * INDEX_ENTRY_SIZE;
+            return readChars(mKeysStart + mBuffer.getInt(entry) * 2, mBuffer.getInt(entry + 4));
+        }
+
+        int typeAt(int index) {
+            return mBuffer.getInt(HEADER_SIZE + index * INDEX_ENTRY_SIZE + 8);
+        }
+
+        private int valueOffsetAt(int index) {
+            return mBuffer.getInt(HEADER_SIZE + index * INDEX_ENTRY_SIZE + 12);
+        }
+
+        Object valueAt(int index) {
+            int position = mValuesStart + valueOffsetAt(index);
+            switch(typeAt(index)) {
+                case TYPE_STRING: return readChars(position + 4, mBuffer.getInt(position));
+                case TYPE_INT: return Integer.valueOf(mBuffer.getInt(position));
+                case TYPE_LONG: return Long.valueOf(mBuffer.getLong(position));
+                case TYPE_DOUBLE: return Double.valueOf(mBuffer.getDouble(position));
+                case TYPE_BOOLEAN: return Boolean.valueOf(mBuffer.get(position)!=0);
+                default: return null;
+            }
+        }
+
+        private String readChars(int position, int length) {
+            char[] chars = new char[length];
+            for(int i=0;i<length;i++) {
+                chars[i] = mBuffer.getChar(position + i * 2);
+            }
+            return new String(chars);
+        }
+    }
+
+    private static void writeText(File file, String text) throws IOException {
+        if(text==null) {
+            file.delete();
+            return;
+        }
+        File temp = new File(file.getPath() + ".tmp");
+        Writer writer = new OutputStreamWriter(new FileOutputStream(temp), "UTF-8");
+        try {
+            writer.write(text);
+        } finally {
+            writer.close();
+        }
+        if(!temp.renameTo(file)) {
+            throw new IOException("Unable to replace " + file);
+        }
+    }
+
+    private static String readText(File file) throws IOException {
+        Reader reader = new InputStreamReader(new FileInputStream(file), "UTF-8");
+        try {
+            StringBuilder builder = new StringBuilder((int)file.length());
+            char[] buffer = new char[8192];
+            int count;
+            while((count = reader.read(buffer))!=-1) {
+                builder.append(buffer, 0, count);
+            }
+            return builder.toString();
+        } finally {
+            reader.close();
+        }
+    }
+
+    static void closeQuietly(Closeable closeable) {
+        if(closeable!=null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,297 @@
+package is.gangverk.remoteconfig;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import android.os.FileObserver;
+
+/**
+ * A {@link MappedConfigStore} shared by every process of the app. One process owns the store, it
+ * holds a file lock for as long as it lives and is the only one that fetches and writes. After
+ * every write the owner publishes a generation file naming the changed keys, the other processes
+ * watch for it and map the new snapshot instead of loading or downloading anything themselves.
+ * When the owner dies its lock is released and the next process to ask takes over.
+ */
+public class MultiProcessConfigStore implements ConfigStore {
+    /**
+     * Told when another process has written a new snapshot
+     */
+    public interface Listener {
+        /**
+         * Called on a background thread
+         *
+         * @param snapshot The new snapshot
+         * @param changes The changed key/value pairs with null values for removed keys, or null if
+         *                generations were missed and they aren't known
+         */
+        public void onSnapshotChanged(ConfigSnapshot snapshot, Map<String, Object> changes);
+
+        /**
+         * Called when this process has taken the store over from an owner that went away, after
+         * onSnapshotChanged if the owner wrote snapshots this process hadn't seen
+         */
+        public void onBecameOwner();
+    }
+
+    private final MappedConfigStore mStore;
+    private final File mDirectory;
+    private final File mLockFile;
+    private final File mGenerationFile;
+    private final String mGenerationName;
+    private RandomAccessFile mLockAccess;
+    private FileLock mLock;
+    // Set once another process was found owning the store, this one has been following it since
+    private boolean mFollowing;
+    // The last generation written or seen by this process
+    private long mGeneration;
+    // FileObserver stops watching when it's garbage collected, so it's kept here
+    private FileObserver mObserver;
+    private Listener mListener;
+
+    public MultiProcessConfigStore(File directory, String name) {
+        mStore = new MappedConfigStore(directory, name);
+        mDirectory = directory;
+        mLockFile = new File(directory, name + ".lock");
+        mGenerationName = name + ".gen";
+        mGenerationFile = new File(directory, mGenerationName);
+    }
+
+    /**
+     * Returns true if this process owns the store
+     */
+    public synchronized boolean isOwner() {
+        return mLock!=null;
+    }
+
+    /**
+     * Takes ownership of the store if no other process has it. A process that takes the store over
+     * from another one reads the snapshot and metadata from disk again, the owner may have written
+     * them since this process last looked, and tells its listener.
+     *
+     * @return True if this process owns the store now
+     */
+    public boolean tryBecomeOwner() {
+        Listener listener;
+        ConfigSnapshot snapshot = null;
+        synchronized (this) {
+            if(mLock!=null) {
+                return true;
+            }
+            try {
+                if(mLockAccess==null) {
+                    mLockAccess = new RandomAccessFile(mLockFile, "rw");
+                }
+                mLock = mLockAccess.getChannel().tryLock();
+            } catch (OverlappingFileLockException e) {
+                // Another store in this process owns it
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            if(mLock==null) {
+                mFollowing = true;
+                return false;
+            }
+            if(!mFollowing) {
+                // Owned from the start, only the numbering has to go on from the last owner's in case nothing was loaded
+                Generation generation = readGeneration();
+                mGeneration = Math.max(mGeneration, generation!=null ? generation.number : 0);
+                return true;
+            }
+            long seen = mGeneration;
+            ConfigSnapshot loaded = load();
+            if(mGeneration!=seen) {
+                snapshot = loaded;
+            }
+            listener = mListener;
+        }
+        if(listener!=null) {
+            if(snapshot!=null) {
+                // Generations were missed, so the changed keys aren't known
+                listener.onSnapshotChanged(snapshot, null);
+            }
+            listener.onBecameOwner();
+        }
+        return true;
+    }
+
+    /**
+     * Starts listening for snapshots written by the owner process. Does nothing if already listening.
+     */
+    public synchronized void watch(final Listener listener) {
+        if(mObserver!=null) {
+            return;
+        }
+        mListener = listener;
+        mObserver = new FileObserver(mDirectory.getPath(), FileObserver.MOVED_TO | FileObserver.CLOSE_WRITE) {
+            @Override
+            public void onEvent(int event, String path) {
+                if(mGenerationName.equals(path)) {
+                    onGenerationChanged(listener);
+                }
+            }
+        };
+        mObserver.startWatching();
+    }
+
+    private void onGenerationChanged(Listener listener) {
+        ConfigSnapshot snapshot;
+        Map<String, Object> changes = null;
+        synchronized (this) {
+            Generation generation = readGeneration();
+            if(generation==null || generation.number<=mGeneration) {
+                // Our own write, or one we have seen already
+                return;
+            }
+            snapshot = mStore.load();
+            if(generation.number==mGeneration + 1) {
+                changes = new HashMap<String, Object>();
+                for(String key : generation.changedKeys) {
+                    // Null for the keys the owner removed
+                    changes.put(key, snapshot.get(key));
+                }
+            }
+            mGeneration = generation.number;
+        }
+        listener.onSnapshotChanged(snapshot, changes);
+    }
+
+    @Override
+    public synchronized ConfigSnapshot load() {
+        Generation generation = readGeneration();
+        mGeneration = generation!=null ? generation.number : 0;
+        return mStore.load();
+    }
+
+    @Override
+    public synchronized ConfigSnapshot write(ConfigSnapshot current, Map<String, Object> changes, String rawConfig) {
+        if(mLock==null) {
+            throw new IllegalStateException("Only the process that owns the store can write to it");
+        }
+        ConfigSnapshot snapshot = mStore.write(current, changes, rawConfig);
+        mGeneration++;
+        writeGeneration(mGeneration, changes.keySet());
+        return snapshot;
+    }
+
+    private static class Generation {
+        long number;
+        String[] changedKeys;
+    }
+
+    private Generation readGeneration() {
+        if(!mGenerationFile.exists()) {
+            return null;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mGenerationFile)));
+            Generation generation = new Generation();
+            generation.number = in.readLong();
+            generation.changedKeys = new String[in.readInt()];
+            for(int i=0;i<generation.changedKeys.length;i++) {
+                generation.changedKeys[i] = in.readUTF();
+            }
+            return generation;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            MappedConfigStore.closeQuietly(in);
+        }
+    }
+
+    private void writeGeneration(long number, Set<String> changedKeys) {
+        // Written next to the snapshot and renamed, so watchers only ever see a complete file
+        File temp = new File(mGenerationFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            out.writeLong(number);
+            out.writeInt(changedKeys.size());
+            for(String key : changedKeys) {
+                out.writeUTF(key);
+            }
+            out.close();
+            out = null;
+            if(!temp.renameTo(mGenerationFile)) {
+                throw new IOException("Unable to replace " + mGenerationFile);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            MappedConfigStore.closeQuietly(out);
+        }
+    }
+
+    @Override
+    public String readRawConfig() {
+        return mStore.readRawConfig();
+    }
+
+    @Override
+    public int getInt(String key, int defaultValue) {
+        return mStore.getInt(key, defaultValue);
+    }
+
+    @Override
+    public void putInt(String key, int value) {
+        mStore.putInt(key, value);
+    }
+
+    @Override
+    public long getLong(String key, long defaultValue) {
+        return mStore.getLong(key, defaultValue);
+    }
+
+    @Override
+    public void putLong(String key, long value) {
+        mStore.putLong(key, value);
+    }
+
+    @Override
+    public String getString(String key) {
+        return mStore.getString(key);
+    }
+
+    @Override
+    public void putString(String key, String value) {
+        mStore.putString(key, value);
+    }
+
+    @Override
+    public void putMetadata(Map<String, Object> metadata) {
+        mStore.putMetadata(metadata);
+    }
+
+    @Override
+    public void clear() {
+        // The generation file is left alone so the numbers keep going up for the other processes
+        mStore.clear();
+    }
+
+    @Override
+    public long sizeOnDisk() {
+        return mStore.sizeOnDisk() + mGenerationFile.length();
+    }
+
+    @Override
+    public void delete() {
+        // Not while another process owns the store and writes to it
+        if(tryBecomeOwner()) {
+            mStore.delete();
+            mGenerationFile.delete();
+        }
+    }
+}
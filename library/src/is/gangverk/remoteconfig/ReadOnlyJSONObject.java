@@ -0,0 +1,188 @@
+package is.gangverk.remoteconfig;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * A JSONObject that can't be changed, nor can the objects and arrays in it. {@link RemoteConfig#getConfig()}
+ * parses the document into one once per config update and hands the same one to every caller.
+ */
+final class ReadOnlyJSONObject extends JSONObject {
+    // False while the constructor copies the members in
+    private final boolean mSealed;
+
+    ReadOnlyJSONObject(JSONObject source) throws JSONException {
+        Iterator<String> keys = source.keys();
+        while(keys.hasNext()) {
+            String key = keys.next();
+            super.put(key, readOnly(source.get(key)));
+        }
+        mSealed = true;
+    }
+
+    static Object readOnly(Object value) throws JSONException {
+        if(value instanceof JSONObject && !(value instanceof ReadOnlyJSONObject)) {
+            return new ReadOnlyJSONObject((JSONObject)value);
+        }
+        if(value instanceof JSONArray && !(value instanceof ReadOnlyJSONArray)) {
+            return new ReadOnlyJSONArray((JSONArray)value);
+        }
+        return value;
+    }
+
+    private void checkWritable() {
+        if(mSealed) {
+            throw new UnsupportedOperationException("The config document can't be changed, copy it with new JSONObject(config.toString())");
+        }
+    }
+
+    @Override
+    public JSONObject put(String name, boolean value) throws JSONException {
+        checkWritable();
+        return super.put(name, value);
+    }
+
+    @Override
+    public JSONObject put(String name, double value) throws JSONException {
+        checkWritable();
+        return super.put(name, value);
+    }
+
+    @Override
+    public JSONObject put(String name, int value) throws JSONException {
+        checkWritable();
+        return super.put(name, value);
+    }
+
+    @Override
+    public JSONObject put(String name, long value) throws JSONException {
+        checkWritable();
+        return super.put(name, value);
+    }
+
+    @Override
+    public JSONObject put(String name, Object value) throws JSONException {
+        checkWritable();
+        return super.put(name, value);
+    }
+
+    @Override
+    public JSONObject putOpt(String name, Object value) throws JSONException {
+        checkWritable();
+        return super.putOpt(name, value);
+    }
+
+    @Override
+    public JSONObject accumulate(String name, Object value) throws JSONException {
+        checkWritable();
+        return super.accumulate(name, value);
+    }
+
+    @Override
+    public Object remove(String name) {
+        checkWritable();
+        return super.remove(name);
+    }
+
+    @Override
+    public Iterator<String> keys() {
+        // The iterator of the member map would let remove() through
+        ArrayList<String> keys = new ArrayList<String>(length());
+        Iterator<String> iterator = super.keys();
+        while(iterator.hasNext()) {
+            keys.add(iterator.next());
+        }
+        return Collections.unmodifiableList(keys).iterator();
+    }
+
+    /**
+     * A JSONArray that can't be changed
+     */
+    static final class ReadOnlyJSONArray extends JSONArray {
+        private final boolean mSealed;
+
+        ReadOnlyJSONArray(JSONArray source) throws JSONException {
+            for(int i=0;i<source.length();i++) {
+                super.put(readOnly(source.opt(i)));
+            }
+            mSealed = true;
+        }
+
+        private void checkWritable() {
+            if(mSealed) {
+                throw new UnsupportedOperationException("The config document can't be changed");
+            }
+        }
+
+        @Override
+        public JSONArray put(boolean value) {
+            checkWritable();
+            return super.put(value);
+        }
+
+        @Override
+        public JSONArray put(double value) throws JSONException {
+            checkWritable();
+            return super.put(value);
+        }
+
+        @Override
+        public JSONArray put(int value) {
+            checkWritable();
+            return super.put(value);
+        }
+
+        @Override
+        public JSONArray put(long value) {
+            checkWritable();
+            return super.put(value);
+        }
+
+        @Override
+        public JSONArray put(Object value) {
+            checkWritable();
+            return super.put(value);
+        }
+
+        @Override
+        public JSONArray put(int index, boolean value) throws JSONException {
+            checkWritable();
+            return super.put(index, value);
+        }
+
+        @Override
+        public JSONArray put(int index, double value) throws JSONException {
+            checkWritable();
+            return super.put(index, value);
+        }
+
+        @Override
+        public JSONArray put(int index, int value) throws JSONException {
+            checkWritable();
+            return super.put(index, value);
+        }
+
+        @Override
+        public JSONArray put(int index, long value) throws JSONException {
+            checkWritable();
+            return super.put(index, value);
+        }
+
+        @Override
+        public JSONArray put(int index, Object value) throws JSONException {
+            checkWritable();
+            return super.put(index, value);
+        }
+
+        @Override
+        public Object remove(int index) {
+            checkWritable();
+            return super.remove(index);
+        }
+    }
+}
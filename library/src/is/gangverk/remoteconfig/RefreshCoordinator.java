@@ -0,0 +1,168 @@
+package is.gangverk.remoteconfig;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.SystemClock;
+
+/**
+ * Makes sure there is at most one fetch in flight per config location. Callers asking for a refresh
+ * while a fetch is running join it and get the same result. After a failed fetch further attempts
+ * are refused until an exponentially growing, jittered backoff has passed, and no fetch is started
+ * while there is no network connection.
+ *
+ * @param <T> The type of the fetch result. A null result counts as a failure.
+ */
+public class RefreshCoordinator<T> {
+    public static final int REFRESH_STARTED = 0;
+    public static final int REFRESH_JOINED = 1;
+    public static final int REFRESH_SKIPPED_OFFLINE = 2;
+    public static final int REFRESH_SKIPPED_BACKOFF = 3;
+
+    private static final long INITIAL_BACKOFF = 30 * 1000;
+    private static final long MAX_BACKOFF = 60 * 60 * 1000;
+    private static final long OFFLINE_RETRY_DELAY = 60 * 1000;
+
+    private final Context mContext;
+    private final Executor mExecutor;
+    private final Handler mHandler;
+    private final Random mRandom = new Random();
+    private final HashMap<String, ArrayList<Callback<T>>> mInFlight = new HashMap<String, ArrayList<Callback<T>>>();
+    private final HashMap<String, Backoff> mBackoffs = new HashMap<String, Backoff>();
+
+    /**
+     * @param context Used to check the network state
+     * @param executor The executor the fetches run on
+     * @param handler The handler the callbacks are delivered on
+     */
+    public RefreshCoordinator(Context context, Executor executor, Handler handler) {
+        mContext = context;
+        mExecutor = executor;
+        mHandler = handler;
+    }
+
+    public interface Callback<T> {
+        /**
+         * Called on the coordinator handler when the fetch the caller started or joined has finished
+         *
+         * @param result The fetch result, null if the fetch failed
+         */
+        public void onRefreshComplete(T result);
+    }
+
+    /**
+     * Starts a fetch for the location or joins the one already running
+     *
+     * @param location Identifies the config, one fetch at a time is allowed per location
+     * @param fetch Does the actual work, called on the executor
+     * @param callback Gets the result. A callback that is already waiting for the location is only called once.
+     * @return One of the REFRESH_* constants
+     */
+    public synchronized int refresh(final String location, final Callable<T> fetch, Callback<T> callback) {
+        ArrayList<Callback<T>> waiting = mInFlight.get(location);
+        if(waiting!=null) {
+            if(callback!=null && !waiting.contains(callback)) {
+                waiting.add(callback);
+            }
+            return REFRESH_JOINED;
+        }
+        Backoff backoff = mBackoffs.get(location);
+        if(backoff!=null && backoff.nextAttempt > SystemClock.elapsedRealtime()) {
+            return REFRESH_SKIPPED_BACKOFF;
+        }
+        if(!Utils.isNetworkConnection(mContext)) {
+            return REFRESH_SKIPPED_OFFLINE;
+        }
+        waiting = new ArrayList<Callback<T>>();
+        if(callback!=null) {
+            waiting.add(callback);
+        }
+        mInFlight.put(location, waiting);
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                T result = null;
+                try {
+                    result = fetch.call();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+                complete(location, result);
+            }
+        });
+        return REFRESH_STARTED;
+    }
+
+    /**
+     * Returns true while a fetch for the location is running
+     */
+    public synchronized boolean isRefreshing(String location) {
+        return mInFlight.containsKey(location);
+    }
+
+    /**
+     * Returns how long to wait before the next refresh of the location can be started
+     */
+    public synchronized long getRetryDelay(String location) {
+        if(mInFlight.containsKey(location)) {
+            return 0;
+        }
+        Backoff backoff = mBackoffs.get(location);
+        if(backoff!=null) {
+            long delay = backoff.nextAttempt - SystemClock.elapsedRealtime();
+            if(delay > 0) {
+                return delay;
+            }
+        }
+        return Utils.isNetworkConnection(mContext) ? 0 : OFFLINE_RETRY_DELAY;
+    }
+
+    private void complete(String location, final T result) {
+        final ArrayList<Callback<T>> waiting;
+        synchronized (this) {
+            waiting = mInFlight.remove(location);
+            if(result!=null) {
+                mBackoffs.remove(location);
+            } else {
+                Backoff backoff = mBackoffs.get(location);
+                if(backoff==null) {
+                    backoff = new Backoff();
+                    mBackoffs.put(location, backoff);
+                }
+                backoff.failures++;
+                backoff.nextAttempt = SystemClock.elapsedRealtime() + backoffDelay(backoff.failures);
+            }
+        }
+        if(waiting==null || waiting.isEmpty()) {
+            return;
+        }
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for(Callback<T> callback : waiting) {
+                    callback.onRefreshComplete(result);
+                }
+            }
+        });
+    }
+
+    private long backoffDelay(int failures) {
+        long delay = INITIAL_BACKOFF << Math.min(failures - 1, 16);
+        if(delay > MAX_BACKOFF) {
+            delay = MAX_BACKOFF;
+        }
+        // Spread the retries between half and the whole delay so clients that failed together don't retry together
+        long half = delay / 2;
+        return half + (long)(mRandom.nextDouble() * half);
+    }
+
+    private static class Backoff {
+        int failures;
+        long nextAttempt;
+    }
+}
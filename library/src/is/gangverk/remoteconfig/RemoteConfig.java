@@ -1,18 +1,28 @@
 package is.gangverk.remoteconfig;
 
-import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLEncoder;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -21,28 +31,281 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
-import android.content.SharedPreferences;
-import android.content.SharedPreferences.Editor;
 import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
 import android.support.v4.content.LocalBroadcastManager;
 
 public class RemoteConfig {
-    private static final String LAST_DOWNLOADED_CONFIG_KEY = "lastDownloadedConfig";
-    // This is just a dot, since we have regular expression we have to have the backslashes as well
-    private static final String DEEP_DICTIONARY_SEPARATOR_REGEX = "\\.";
-    private static final String DEEP_DICTIONARY_SEPARATOR = ".";
     private static final String REMOTE_CONFIG_FILE = "rc.json";
-    private static final String SP_VERSION_KEY = "rc_version";
+    static final String SP_VERSION_KEY = "rc_version";
     private static final String LOCAL_BROADCAST_INTENT = "remote_config_download_complete";
-    private static final String COMPLETE_CONFIG_KEY = "rc_complete_config";
-    private URL mConfigLocation;
+    private static final String MAPPED_STORE_DIRECTORY = "remoteconfig";
+    // Where Android keeps SharedPreferences files, inside the data directory of the app
+    private static final String SHARED_PREFERENCES_DIRECTORY = "shared_prefs";
+    private static final String SHARED_PREFERENCES_METADATA_SUFFIX = "_metadata";
+    private volatile URL mConfigLocation;
     private long mUpdateTime;
-    private SharedPreferences mPreferences;
+    // Set with setUpdateInterval, -1 to read rc_config_update_interval
+    private long mUpdateInterval = -1;
+    // The largest part of a lifetime a refresh may come early by, so a fleet doesn't refresh in step
+    private volatile double mRefreshJitter;
+    private final Random mJitterRandom = new Random();
+    // The names of the stores the config and its namespaces are in, read without locking by RemoteConfigManager
+    private volatile String[] mStoreNames = new String[0];
+    private StoreFactory mStoreFactory = SHARED_PREFERENCES_STORE;
+    private ConfigTransport mTransport;
+    // Null unless metrics were asked for, every recording site checks it first
+    private RemoteConfigMetrics mMetrics;
+    private boolean mLazyDecoding;
+    // The read-only document getConfig() returns, with the namespaces put in, kept until the stored documents change
+    private JSONObject mConfigDocument;
+    private int mConfigDocumentGeneration;
+    // Bumped every time the stored document changes
+    private final AtomicInteger mConfigGeneration = new AtomicInteger();
+    // Null until init has opened the store, which an async init does in the background
+    private volatile ConfigStore mStore;
     private Context mContext;
     private ArrayList<RemoteConfigListener> mListeners;
+    private final ChangeDispatcher mDispatcher = new ChangeDispatcher();
+    // Top level keys fetched from their own locations, only changed before init
+    private final LinkedHashMap<String, Namespace> mNamespaces = new LinkedHashMap<String, Namespace>();
+    // Run in version order when init is called with a higher version than the stored one
+    private final TreeMap<Integer, Migration> mMigrations = new TreeMap<Integer, Migration>();
     private int mVersion;
+    // What init was given, so a process that takes a shared store over later can migrate it
+    private boolean mUseDefault;
+    // Everything the getters read comes from here, it's swapped as a whole when a new config is applied
+    private volatile ConfigSnapshot mSnapshot = ConfigSnapshot.EMPTY;
+    // What the store holds, without the compiled defaults, new configs are diffed against this
+    private ConfigSnapshot mStoredSnapshot = ConfigSnapshot.EMPTY;
+    private ConfigSnapshot mDefaults = ConfigSnapshot.EMPTY;
+    // The object hashes of the document last applied, null until one has been applied since the store was opened
+    private ConfigHashTree mStoredHashTree;
+    // The declared ConfigKey values resolved against mSnapshot
+    private volatile ConfigKey.Values mKeyValues = ConfigKey.Values.EMPTY;
+    // Arrays parsed from mSnapshot, replaced on every publish
+    private volatile ArrayCache mArrayCache = new ArrayCache(ConfigSnapshot.EMPTY, null);
+    private final Object mPublishLock = new Object();
+    // What targeting rules are evaluated against, created on the first publish that has rules
+    private TargetingContext mTargetingContext;
+    // The rule documents mTargetedValues were evaluated from, guarded by mPublishLock
+    private ArrayList<String> mTargetingDocuments;
+    // The values targeting rules gave this device, they win over the stored values and defaults
+    private Map<String, Object> mTargetedValues = Collections.emptyMap();
+    private Handler mHandler;
+    // Downloaded configs are diffed, persisted and published on this thread, only listeners are called on the main thread
+    private Handler mApplyHandler;
+    private final Object mApplyLock = new Object();
+    // Held while init opens, migrates and loads the stores. Not the instance monitor, so an async init
+    // doesn't keep getConfig() and the setters waiting on the main thread.
+    private final Object mInitLock = new Object();
+    private RefreshCoordinator<ConfigFetch.Result> mRefreshCoordinator;
+    // Set when a RemoteConfigManager has let go of this config, nothing is fetched after that
+    private volatile boolean mClosed;
+    private final Runnable mUpdateCheck = new Runnable() {
+        @Override
+        public void run() {
+            checkForUpdate();
+        }
+    };
+
+    /**
+     * Runs everything handed to it on the main thread
+     */
+    public static final Executor MAIN_THREAD = new Executor() {
+        private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+        @Override
+        public void execute(Runnable command) {
+            mMainHandler.post(command);
+        }
+    };
+
+    // Every config that hasn't been garbage collected, so a key declared late is resolved by all of them
+    private static final WeakHashMap<RemoteConfig, Boolean> sLiveConfigs = new WeakHashMap<RemoteConfig, Boolean>();
+
+    public RemoteConfig() {
+        synchronized (sLiveConfigs) {
+            sLiveConfigs.put(this, Boolean.TRUE);
+        }
+    }
+
+    /**
+     * Opens the store a config is persisted in
+     */
+    public interface StoreFactory {
+        /**
+         * @param context The context given to init
+         * @param name A file name safe identifier of the config location
+         */
+        public ConfigStore open(Context context, String name);
+    }
+
+    /**
+     * Keeps every config in its own SharedPreferences file. This is the default.
+     */
+    public static final StoreFactory SHARED_PREFERENCES_STORE = new StoreFactory() {
+        @Override
+        public ConfigStore open(Context context, String name) {
+            File directory = new File(context.getApplicationInfo().dataDir, SHARED_PREFERENCES_DIRECTORY);
+            String metadataName = name + SHARED_PREFERENCES_METADATA_SUFFIX;
+            return new SharedPreferencesConfigStore(context.getSharedPreferences(name, Context.MODE_PRIVATE), context.getSharedPreferences(metadataName, Context.MODE_PRIVATE),
+                    new File(directory, name + ".xml"), new File(directory, metadataName + ".xml"));
+        }
+    };
+
+    /**
+     * Keeps every config in a memory mapped binary snapshot, which is faster to open and read for big configs
+     */
+    public static final StoreFactory MAPPED_STORE = new StoreFactory() {
+        @Override
+        public ConfigStore open(Context context, String name) {
+            return new MappedConfigStore(context.getDir(MAPPED_STORE_DIRECTORY, Context.MODE_PRIVATE), name);
+        }
+    };
+
+    /**
+     * Shares one memory mapped snapshot between all processes of the app. Only one process fetches
+     * and writes, the others map its snapshots as they are written.
+     */
+    public static final StoreFactory MULTI_PROCESS_STORE = new StoreFactory() {
+        @Override
+        public ConfigStore open(Context context, String name) {
+            return new MultiProcessConfigStore(context.getDir(MAPPED_STORE_DIRECTORY, Context.MODE_PRIVATE), name);
+        }
+    };
 
-    public RemoteConfig() {}
+    /**
+     * Sets how configs are fetched. By default the shared {@link HttpConfigTransport} is used.
+     *
+     * @param transport The transport to fetch with, null for the default
+     */
+    public synchronized void setTransport(ConfigTransport transport) {
+        mTransport = transport;
+    }
+
+    /**
+     * Sets where timings, counts and errors of the fetch, apply and read paths are reported.
+     * Nothing is measured while this is null, which is the default. Should be called before init.
+     *
+     * @param metrics The metrics sink, null to stop recording
+     */
+    public synchronized void setMetrics(RemoteConfigMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    /**
+     * Makes the getters read from the last downloaded document, decoding each value the first time
+     * it's read. Keys that aren't in the last document, like the rc.json defaults the server doesn't
+     * send, are read from the store and then the compiled defaults given to init. Meant for big configs
+     * with the default SharedPreferences store, the mapped store is lazy already. Has to be called before init.
+     *
+     * @param lazyDecoding True to decode values on first read
+     */
+    public synchronized void setLazyDecoding(boolean lazyDecoding) {
+        mLazyDecoding = lazyDecoding;
+    }
+
+    private ConfigSnapshot loadSnapshot() {
+        if(mLazyDecoding) {
+            String raw = mStore.readRawConfig();
+            if(raw!=null) {
+                return lazySnapshot(raw);
+            }
+        }
+        return mStore.load();
+    }
+
+    /**
+     * Returns a snapshot that decodes the document on read, over the stored values for the keys
+     * the document doesn't have
+     */
+    private ConfigSnapshot lazySnapshot(String raw) {
+        return new LazyConfigSnapshot(raw).withFallback(mStore.load());
+    }
+
+    private ConfigTransport transport() {
+        ConfigTransport transport = mTransport;
+        return transport!=null ? transport : HttpConfigTransport.getDefault();
+    }
+
+    /**
+     * Sets where configs are persisted. Has to be called before init.
+     *
+     * @param storeFactory One of the provided factories or a custom one
+     */
+    public synchronized void setStoreFactory(StoreFactory storeFactory) {
+        mStoreFactory = storeFactory;
+    }
+
+    /**
+     * Sets how long a downloaded config stays fresh when the server didn't send a Cache-Control
+     * max-age. By default it's the rc_config_update_interval integer resource. Has to be called
+     * before init.
+     *
+     * @param updateInterval The interval in milliseconds, -1 for the resource
+     */
+    public synchronized void setUpdateInterval(long updateInterval) {
+        mUpdateInterval = updateInterval;
+    }
+
+    /**
+     * Makes every download refresh a random part of its lifetime early, up to the given fraction of
+     * it. Devices that downloaded a release at the same time then don't all refresh at the same
+     * time again. The default is 0, refreshing exactly when a download expires. Should be called
+     * before init.
+     *
+     * @param fraction From 0 to 1, for example 0.2 to refresh up to a fifth of the lifetime early
+     */
+    public synchronized void setRefreshJitter(double fraction) {
+        if(fraction<0 || fraction>1) {
+            throw new IllegalArgumentException("The jitter has to be a fraction of the lifetime");
+        }
+        mRefreshJitter = fraction;
+    }
+
+    /**
+     * Sets what the targeting rules of the config are evaluated against. By default it's
+     * {@link TargetingContext#forDevice(Context)}. Has to be called before init.
+     *
+     * @param targetingContext The device id, app version and locale to target, null for the default
+     */
+    public synchronized void setTargetingContext(TargetingContext targetingContext) {
+        synchronized (mPublishLock) {
+            mTargetingContext = targetingContext;
+            mTargetingDocuments = null;
+        }
+    }
+
+    /**
+     * Changes the stored values when the app is updated to a new config version
+     */
+    public interface Migration {
+        /**
+         * Called from init when the stored config was written by an older version. Keys the new
+         * defaults removed or changed the type of are in the changes already, unless the downloaded
+         * document has them. Changing a downloaded value makes the next fetch download the whole
+         * document, which brings back the value the server has.
+         *
+         * @param stored The stored values, downloaded ones included
+         * @param changes The values to put in the store, a null value removes the key
+         */
+        public void migrate(ConfigSnapshot stored, Map<String, Object> changes);
+    }
+
+    /**
+     * Adds a migration run when init is called with this version, or a later one, and the stored
+     * config is from an earlier version. Has to be called before init.
+     *
+     * @param version The config version given to init that the migration is for
+     * @param migration The migration
+     */
+    public synchronized void addMigration(int version, Migration migration) {
+        mMigrations.put(Integer.valueOf(version), migration);
+    }
 
     private volatile static RemoteConfig instance;
 
@@ -79,31 +342,186 @@ public class RemoteConfig {
      * @param useDefault If true then use the assets/rc.json file as default values
      * @param location The location of the remote config
      */
-    @SuppressLint({"CommitPrefEdits"})
     public synchronized void init(Context context, int version, boolean useDefault, String location) {
-        mContext = context;
-        mVersion = version;
-        setConfigImpl(location);
-        mUpdateTime = context.getResources().getInteger(context.getResources().getIdentifier("rc_config_update_interval", "integer", context.getPackageName()));
-        int oldVersion = mPreferences.getInt(SP_VERSION_KEY, -1);
-        if(version>oldVersion) {
-            mPreferences.edit().clear().apply();
-            if(useDefault) {
-                initializeConfigFile();
+        init(context, version, useDefault, ConfigSnapshot.EMPTY, location);
+    }
+
+    /**
+     * Use this method to initialize the remote config with defaults compiled into the app by the
+     * defaults generator in tools/. The defaults are read straight from the generated class, so
+     * nothing is parsed or written at startup. You need the rc_config_location string as with
+     * {@link #init(Context, int, boolean)}.
+     *
+     * @param context Can be application context
+     * @param version For version control. If this isn't increased with new key/value pairs won't ever be added
+     * @param defaults The DEFAULTS constant of the generated class
+     */
+    public synchronized void init(Context context, int version, ConfigSnapshot defaults) {
+        init(context, version, defaults, context.getString(context.getResources().getIdentifier("rc_config_location", "string", context.getPackageName())));
+    }
+
+    /**
+     * Use this method to initialize the remote config with compiled defaults and a custom config location.
+     *
+     * @param context Can be application context
+     * @param version For version control. If this isn't increased with new key/value pairs won't ever be added
+     * @param defaults The DEFAULTS constant of the generated class
+     * @param location The location of the remote config
+     */
+    public synchronized void init(Context context, int version, ConfigSnapshot defaults, String location) {
+        init(context, version, false, defaults, location);
+    }
+
+    /**
+     * Initializes the remote config in the background with defaults compiled into the app, so the
+     * calling thread doesn't wait for resource lookups or the store to load. Until the returned
+     * future is done every getter reads the compiled defaults. You need the rc_config_location
+     * string as with {@link #init(Context, int, boolean)}.
+     *
+     * @param context Can be application context
+     * @param version For version control. If this isn't increased with new key/value pairs won't ever be added
+     * @param defaults The DEFAULTS constant of the generated class
+     * @return A future that is done when the stored config has been loaded
+     */
+    public Future<Void> initAsync(Context context, int version, ConfigSnapshot defaults) {
+        return initAsync(context, version, defaults, null);
+    }
+
+    /**
+     * Initializes the remote config in the background with compiled defaults and a custom config location.
+     *
+     * @param context Can be application context
+     * @param version For version control. If this isn't increased with new key/value pairs won't ever be added
+     * @param defaults The DEFAULTS constant of the generated class
+     * @param location The location of the remote config
+     * @return A future that is done when the stored config has been loaded
+     */
+    public synchronized Future<Void> initAsync(final Context context, final int version, final ConfigSnapshot defaults, final String location) {
+        // Serve the defaults right away, on top of whatever is loaded already if this is a re-init
+        mDefaults = defaults!=null ? defaults : ConfigSnapshot.EMPTY;
+        publish(mStoredSnapshot);
+        FutureTask<Void> task = new FutureTask<Void>(new Runnable() {
+            @Override
+            public void run() {
+                String configLocation = location;
+                if(configLocation==null) {
+                    configLocation = context.getString(context.getResources().getIdentifier("rc_config_location", "string", context.getPackageName()));
+                }
+                init(context, version, false, defaults, configLocation);
+            }
+        }, null);
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(task);
+        return task;
+    }
+
+    private void init(Context context, int version, boolean useDefault, ConfigSnapshot defaults, String location) {
+        synchronized (mInitLock) {
+            mContext = context;
+            mVersion = version;
+            mUseDefault = useDefault;
+            mDefaults = defaults!=null ? defaults : ConfigSnapshot.EMPTY;
+            if(mHandler==null) {
+                mHandler = new Handler(Looper.getMainLooper());
+                HandlerThread applyThread = new HandlerThread("RemoteConfig", Process.THREAD_PRIORITY_BACKGROUND);
+                applyThread.start();
+                mApplyHandler = new Handler(applyThread.getLooper());
+                mRefreshCoordinator = new RefreshCoordinator<ConfigFetch.Result>(context, AsyncTask.THREAD_POOL_EXECUTOR, mApplyHandler);
+            }
+            setConfigImpl(location);
+            if(mUpdateInterval>=0) {
+                mUpdateTime = mUpdateInterval;
+            } else {
+                mUpdateTime = context.getResources().getInteger(context.getResources().getIdentifier("rc_config_update_interval", "integer", context.getPackageName()));
+            }
+            if(!ownsStore()) {
+                // Another process fetches and migrates the shared store, this one follows its snapshots
+                scheduleUpdateCheck(mUpdateTime);
+                return;
+            }
+            int oldVersion = mStore.getInt(SP_VERSION_KEY, -1);
+            if(version>oldVersion) {
+                migrateStore(oldVersion, useDefault);
             }
+            checkForUpdate(); // We'll fetch new config on launch
         }
-        checkForUpdate(); // We'll fetch new config on launch
     }
 
     @SuppressLint("NewApi")
-    private void initializeConfigFile() {
-        // Start with parsing the assets/rc.json file into JSONObject
-        JSONObject remoteConfig = initialFileToJsonObject();
-        if(remoteConfig!=null) {
-            jsonObjectIntoPreferences(remoteConfig);
-        } else {
+    private FlatConfig readConfigFile() {
+        // Start with flattening the assets/rc.json file
+        FlatConfig remoteConfig = readInitialFile();
+        if(remoteConfig==null) {
             throw new RuntimeException("Unable to read rc.json file. Are you sure it exists in the assets folder?");
         }
+        return remoteConfig;
+    }
+
+    /**
+     * Brings a store written by an older version of the app in line with this one. Only the keys the
+     * new defaults removed or changed the type of are dropped, unless the downloaded document has
+     * them. The downloaded values, the download time and the cache validators are kept, so there is
+     * nothing to reload or download again, unless a migration changed a downloaded value.
+     */
+    private void migrateStore(int oldVersion, boolean useDefault) {
+        FlatConfig assetDefaults = useDefault ? readConfigFile() : null;
+        Map<String, Object> defaults = assetDefaults!=null ? assetDefaults.getValues() : mDefaults.asMap();
+        if(oldVersion<0) {
+            // Nothing stored yet
+            if(assetDefaults!=null) {
+                flatConfigIntoPreferences(assetDefaults);
+            }
+        } else {
+            HashMap<String, Object> changedValues = new HashMap<String, Object>();
+            synchronized (mApplyLock) {
+                ConfigSnapshot stored = mStoredSnapshot;
+                // Until something is downloaded the stored values are the defaults of the previous version
+                boolean downloaded = mStore.getLong(Freshness.LAST_DOWNLOADED_CONFIG_KEY, 0)!=0;
+                boolean overwrite = assetDefaults!=null && !downloaded;
+                Map<String, Integer> oldSchema = ConfigMigrator.decodeSchema(mStore.getString(ConfigMigrator.SCHEMA_KEY));
+                Set<String> downloadedKeys = downloaded ? documentKeys(mStore) : Collections.<String>emptySet();
+                Map<String, Object> changes = ConfigMigrator.migrate(stored, oldSchema, defaults, assetDefaults!=null, overwrite, downloadedKeys);
+                for(Map.Entry<Integer, Migration> migration : mMigrations.subMap(oldVersion + 1, mVersion + 1).entrySet()) {
+                    migration.getValue().migrate(stored, changes);
+                }
+                if(!Collections.disjoint(changes.keySet(), downloadedKeys)) {
+                    // A migration changed downloaded values, a 304 wouldn't bring them back so the whole document is fetched
+                    ConfigApply.forgetVersion(mStore);
+                }
+                if(!changes.isEmpty()) {
+                    String raw = overwrite ? assetDefaults.getRaw() : mStore.readRawConfig();
+                    ConfigSnapshot written = mStore.write(stored, changes, raw);
+                    mConfigGeneration.incrementAndGet();
+                    // Lazy snapshots read the document, which still has the dropped keys
+                    Map<String, Object> targetingChanges = publish(written);
+                    // The stored values no longer match the document hash, the next download is diffed in full
+                    ConfigApply.forgetHashes(mStore);
+                    mStoredHashTree = null;
+                    changedValues.putAll(visibleChanges(changes));
+                    mergeTargetingChanges(changedValues, targetingChanges);
+                }
+            }
+            if(!changedValues.isEmpty()) {
+                notifyChanges(changedValues);
+            }
+        }
+        mStore.putString(ConfigMigrator.SCHEMA_KEY, ConfigMigrator.encodeSchema(defaults));
+        mStore.putInt(SP_VERSION_KEY, mVersion);
+    }
+
+    /**
+     * Returns the keys of the document in the store, which is the last downloaded one once something has been downloaded
+     */
+    private static Set<String> documentKeys(ConfigStore store) {
+        String document = store.readRawConfig();
+        if(document==null) {
+            return Collections.emptySet();
+        }
+        try {
+            return FlatConfig.read(document, null).getValues().keySet();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return Collections.emptySet();
+        }
     }
 
     private void setConfigImpl(String location) {
@@ -113,12 +531,117 @@ public class RemoteConfig {
         } catch (MalformedURLException e) {
             throw new RuntimeException("Unable to parse config URL");
         }
-        mConfigLocation = locationUrl;
+        // Not while a download is being applied to the previous store
+        synchronized (mApplyLock) {
+            mConfigLocation = locationUrl;
+            String[] storeNames = new String[mNamespaces.size() + 1];
+            storeNames[0] = storeName(mConfigLocation);
+            mStore = mStoreFactory.open(mContext, storeNames[0]);
+            mStoredHashTree = null;
+            int index = 1;
+            for(Namespace namespace : mNamespaces.values()) {
+                storeNames[index] = storeName(namespace.location);
+                namespace.store = mStoreFactory.open(mContext, storeNames[index++]);
+                namespace.stored = namespace.store.load();
+                namespace.hashTree = null;
+            }
+            mStoreNames = storeNames;
+            mConfigGeneration.incrementAndGet();
+            publish(loadSnapshot());
+        }
+        watchStore(mStore);
+        for(Namespace namespace : mNamespaces.values()) {
+            watchStore(namespace.store);
+        }
+    }
+
+    /**
+     * Stops the update checks and the apply thread. The stored values can still be read.
+     */
+    void close() {
+        synchronized (mInitLock) {
+            mClosed = true;
+            if(mHandler!=null) {
+                mHandler.removeCallbacks(mUpdateCheck);
+                mApplyHandler.getLooper().quit();
+            }
+        }
+    }
+
+    private static String storeName(URL location) {
         try {
-            mPreferences = mContext.getSharedPreferences(URLEncoder.encode(mConfigLocation.toString(), "UTF-8"), Context.MODE_PRIVATE);
+            return URLEncoder.encode(location.toString(), "UTF-8");
         } catch (UnsupportedEncodingException e) {
-            e.printStackTrace();
+            // Every JVM has UTF-8
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Returns the names the stores of the config and its namespaces were opened with
+     */
+    String[] getStoreNames() {
+        return mStoreNames;
+    }
+
+    /**
+     * Follows the snapshots other processes write to a store shared with them
+     */
+    private void watchStore(final ConfigStore store) {
+        if(store instanceof MultiProcessConfigStore) {
+            ((MultiProcessConfigStore)store).watch(new MultiProcessConfigStore.Listener() {
+                @Override
+                public void onSnapshotChanged(final ConfigSnapshot snapshot, final Map<String, Object> changes) {
+                    mApplyHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            applySharedSnapshot(store, snapshot, changes);
+                        }
+                    });
+                }
+
+                @Override
+                public void onBecameOwner() {
+                    mApplyHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if(store!=mStore) {
+                                // Namespaces aren't migrated, or the config was switched since
+                                return;
+                            }
+                            // Only the owner migrates, so a process that started as a follower hasn't yet
+                            int oldVersion = store.getInt(SP_VERSION_KEY, -1);
+                            if(mVersion>oldVersion) {
+                                migrateStore(oldVersion, mUseDefault);
+                            }
+                        }
+                    });
+                }
+            });
+        }
+    }
+
+    /**
+     * Fetches the top level key of the config with this name from its own location, with its own
+     * cache validators and freshness. A small section that changes often can then be refreshed
+     * without downloading the rest of the config again. The location serves the value of the key,
+     * a JSON object, and its values win over the ones the config location has for the key. Has to
+     * be called before init.
+     *
+     * @param name The top level key
+     * @param location Where the value of the key is fetched from
+     */
+    public synchronized void addNamespace(String name, String location) {
+        if(name.length()==0 || name.indexOf(JsonFlattener.SEPARATOR)!=-1) {
+            throw new IllegalArgumentException("A namespace has to be a top level key");
+        }
+        URL locationUrl;
+        try {
+            locationUrl = new URL(location);
+        } catch (MalformedURLException e) {
+            throw new RuntimeException("Unable to parse namespace URL");
         }
+        mNamespaces.put(name, new Namespace(name, locationUrl));
     }
 
     public void setConfig(String location) {
@@ -133,108 +656,281 @@ public class RemoteConfig {
         }
     }
 
-    public JSONObject getConfig() {
-        String completeConfig = getString(COMPLETE_CONFIG_KEY);
-        JSONObject completeJSON = null;
+    /**
+     * Returns the last downloaded config document. The document is read-only and shared by every
+     * caller, it is only read from the store, parsed and put together with the namespaces on the first
+     * call after a config update. Copy it with {@code new JSONObject(config.toString())} to change it.
+     */
+    public synchronized JSONObject getConfig() {
         try {
-            if(completeConfig==null) {
-                return null;
+            // Read before the document, so a document replaced while reading isn't cached
+            int generation = mConfigGeneration.get();
+            JSONObject document = mConfigDocument;
+            if(document==null || mConfigDocumentGeneration!=generation) {
+                document = readConfigDocument();
+                if(document==null) {
+                    return null;
+                }
+                document = new ReadOnlyJSONObject(document);
+                mConfigDocument = document;
+                mConfigDocumentGeneration = generation;
             }
-            completeJSON = new JSONObject(completeConfig);
+            return document;
         } catch (JSONException e) {
             e.printStackTrace();
+            RemoteConfigMetrics metrics = mMetrics;
+            if(metrics!=null) {
+                metrics.onError(RemoteConfigMetrics.STAGE_READ, e);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Parses the stored config document with the documents of the namespaces under their keys
+     */
+    private JSONObject readConfigDocument() throws JSONException {
+        ConfigStore store = mStore;
+        if(store==null) {
+            return null;
+        }
+        String completeConfig = store.readRawConfig();
+        JSONObject completeJSON = completeConfig!=null ? new JSONObject(completeConfig) : null;
+        for(Namespace namespace : mNamespaces.values()) {
+            String namespaceConfig = namespace.store!=null ? namespace.store.readRawConfig() : null;
+            if(namespaceConfig!=null) {
+                if(completeJSON==null) {
+                    completeJSON = new JSONObject();
+                }
+                completeJSON.put(namespace.name, new JSONObject(namespaceConfig));
+            }
         }
         return completeJSON;
     }
 
-    @SuppressLint("CommitPrefEdits")
-    private synchronized void jsonObjectIntoPreferences(final JSONObject jsonObject) {
-        Editor editor = mPreferences.edit();
-        editor.putInt(SP_VERSION_KEY, mVersion);
-        editor.putString(COMPLETE_CONFIG_KEY, jsonObject.toString());
-        HashMap<String, Object> changedKeys = new HashMap<String, Object>();
-        ArrayList<String> allKeys = getAllKeysFromJSONObject(jsonObject, null);
-        for(String newKey : allKeys) {
+    /**
+     * Diffs, persists and publishes a config on the calling thread, which is the apply thread for
+     * downloaded configs. Listeners are called on the main thread.
+     */
+    private void flatConfigIntoPreferences(final FlatConfig config) {
+        ConfigApply applied;
+        long applyStart, enqueueStart;
+        synchronized (mApplyLock) {
+            applyStart = System.nanoTime();
+            // The raw document is kept as it was downloaded, getConfig() only builds the JSONObject when asked
+            applied = ConfigApply.document(mStore, mStoredSnapshot, mStoredHashTree, config);
+            mConfigGeneration.incrementAndGet();
+            // The only part readers see, one atomic swap
+            Map<String, Object> targetingChanges = publish(mLazyDecoding ? lazySnapshot(config.getRaw()) : applied.written);
+            mStore.putInt(SP_VERSION_KEY, mVersion);
+            mStoredHashTree = applied.hashTree;
+            mergeTargetingChanges(applied.changes, targetingChanges);
+            enqueueStart = System.nanoTime();
+        }
+        notifyChanges(applied.changes);
+        RemoteConfigMetrics metrics = mMetrics;
+        if(metrics!=null) {
+            metrics.onApply(config.getValues().size(), applied.changes.size(), applied.diffNanos, enqueueStart - applyStart - applied.diffNanos, System.nanoTime() - enqueueStart);
+        }
+    }
+
+    /**
+     * Same as {@link #flatConfigIntoPreferences(FlatConfig)} for a namespace document, whose keys
+     * have the namespace prefix already
+     */
+    private void applyNamespace(Namespace namespace, FlatConfig config) {
+        ConfigApply applied;
+        long applyStart, enqueueStart;
+        synchronized (mApplyLock) {
+            applyStart = System.nanoTime();
+            applied = ConfigApply.document(namespace.store, namespace.stored, namespace.hashTree, config);
+            namespace.stored = applied.written;
+            namespace.hashTree = applied.hashTree;
+            mConfigGeneration.incrementAndGet();
+            // The other namespaces and the rest of the config stay as they are
+            mergeTargetingChanges(applied.changes, publish(mStoredSnapshot));
+            enqueueStart = System.nanoTime();
+        }
+        notifyChanges(applied.changes);
+        RemoteConfigMetrics metrics = mMetrics;
+        if(metrics!=null) {
+            metrics.onApply(config.getValues().size(), applied.changes.size(), applied.diffNanos, enqueueStart - applyStart - applied.diffNanos, System.nanoTime() - enqueueStart);
+        }
+    }
 
-            // If the key is inside an inner JSON dictionary it is defined with
-            // a dot like dictionary1.dictionary2. That's why we split the string
-            // here
-            String[] deepKeys = newKey.split(DEEP_DICTIONARY_SEPARATOR_REGEX);
+    /**
+     * Applies a JSON merge patch to the stored document of the config or a namespace. Only the
+     * patched keys are written and dispatched.
+     *
+     * @param namespace The namespace the patch is for, null for the config itself
+     * @return False if there is no stored document or the patch doesn't apply to it
+     */
+    private boolean applyPatch(Namespace namespace, FlatConfig patch) {
+        ConfigApply applied;
+        Map<String, Object> visibleChanges;
+        long applyStart, enqueueStart;
+        synchronized (mApplyLock) {
+            applyStart = System.nanoTime();
+            ConfigStore store = namespace!=null ? namespace.store : mStore;
+            try {
+                applied = ConfigApply.patch(store, namespace!=null ? namespace.stored : mStoredSnapshot, patch);
+            } catch (IOException e) {
+                e.printStackTrace();
+                RemoteConfigMetrics metrics = mMetrics;
+                if(metrics!=null) {
+                    metrics.onError(RemoteConfigMetrics.STAGE_APPLY, e);
+                }
+                return false;
+            }
+            if(applied==null) {
+                return false;
+            }
+            Map<String, Object> targetingChanges;
+            mConfigGeneration.incrementAndGet();
+            if(namespace!=null) {
+                namespace.stored = applied.written;
+                namespace.hashTree = null;
+                targetingChanges = publish(mStoredSnapshot);
+            } else {
+                mStoredHashTree = null;
+                targetingChanges = publish(mLazyDecoding ? lazySnapshot(applied.raw) : applied.written);
+            }
+            visibleChanges = visibleChanges(applied.changes);
+            mergeTargetingChanges(visibleChanges, targetingChanges);
+            enqueueStart = System.nanoTime();
+        }
+        notifyChanges(visibleChanges);
+        RemoteConfigMetrics metrics = mMetrics;
+        if(metrics!=null) {
+            metrics.onApply(patch.getValues().size(), applied.changes.size(), applied.diffNanos, enqueueStart - applyStart - applied.diffNanos, System.nanoTime() - enqueueStart);
+        }
+        return true;
+    }
 
-            JSONObject deepDictionary = jsonObject;
+    /**
+     * Returns the changes as readers see them now, removed keys with the value they fall back to
+     * and left out if there is none
+     */
+    private Map<String, Object> visibleChanges(Map<String, Object> changes) {
+        HashMap<String, Object> visible = new HashMap<String, Object>();
+        for(String key : changes.keySet()) {
+            Object value = mSnapshot.get(key);
+            if(value!=null) {
+                visible.put(key, value);
+            }
+        }
+        return visible;
+    }
 
-            for(int i=0;i<deepKeys.length-1;i++) {
-                if(deepDictionary.has(deepKeys[i])) {
-                    try {
-                        deepDictionary = deepDictionary.getJSONObject(deepKeys[i]);
-                    } catch (JSONException e) {
-                        e.printStackTrace();
+    /**
+     * Lets listeners, subscribers and broadcast receivers know about changed values
+     */
+    private void notifyChanges(final Map<String, Object> changedKeys) {
+        // Subscriptions run on the executors they were added with
+        mDispatcher.dispatch(changedKeys);
+        runOnMainThread(new Runnable() {
+            @Override
+            public void run() {
+                //Let someone know we have a new value
+                if(mListeners!=null && mListeners.size()>0) {
+                    for(RemoteConfigListener listener : mListeners) {
+                        for(Map.Entry<String, Object> change : changedKeys.entrySet()) {
+                            listener.onValueUpdated(change.getKey(), change.getValue());
+                        }
+                        listener.onConfigComplete();
                     }
                 }
+                LocalBroadcastManager.getInstance(mContext).sendBroadcast(new Intent(LOCAL_BROADCAST_INTENT));
             }
-            String key = deepKeys[deepKeys.length-1];
+        });
+    }
 
-            try {
-                Object value = deepDictionary.get(key);
-                if(value instanceof JSONArray) {
-                    String oldValue = mPreferences.getString(newKey, null);
-                    String newValue = ((JSONArray)value).toString();
-                    if(!newValue.equals(oldValue)){
-                        editor.putString(newKey,newValue);
-                        changedKeys.put(newKey, newValue);
+    private void runOnMainThread(Runnable runnable) {
+        if(Looper.myLooper()==Looper.getMainLooper()) {
+            runnable.run();
+        } else {
+            mHandler.post(runnable);
+        }
+    }
+
+    /**
+     * Follows a snapshot another process wrote to the shared store
+     */
+    private void applySharedSnapshot(ConfigStore store, ConfigSnapshot snapshot, Map<String, Object> changes) {
+        synchronized (mApplyLock) {
+            Namespace namespace = null;
+            if(store!=mStore) {
+                for(Namespace candidate : mNamespaces.values()) {
+                    if(candidate.store==store) {
+                        namespace = candidate;
                     }
-                } else if(value instanceof String) {
-                    String oldValue = mPreferences.getString(newKey, null);
-                    String newValue = (String)value;
-                    if(!newValue.equals(oldValue)){
-                        editor.putString(newKey,newValue);
-                        changedKeys.put(newKey, newValue);
+                }
+                if(namespace==null) {
+                    // The config was switched since
+                    return;
+                }
+            }
+            if(changes==null) {
+                ConfigSnapshot current = namespace!=null ? namespace.stored : mStoredSnapshot;
+                changes = new HashMap<String, Object>();
+                for(Map.Entry<String, Object> entry : snapshot.asMap().entrySet()) {
+                    if(namespace!=null && !entry.getKey().startsWith(namespace.prefix)) continue;
+                    if(!entry.getValue().equals(current.get(entry.getKey()))) {
+                        changes.put(entry.getKey(), entry.getValue());
                     }
-
-                } else if(value instanceof Integer) {
-                    int oldValue = mPreferences.getInt(newKey, -1);
-                    int newValue = ((Integer)value).intValue();
-                    if(newValue != oldValue){
-                        editor.putInt(newKey,newValue);
-                        changedKeys.put(newKey, newValue);
+                }
+                for(String key : current.asMap().keySet()) {
+                    if(namespace!=null && !key.startsWith(namespace.prefix)) continue;
+                    if(snapshot.getType(key)==ConfigSnapshot.TYPE_NONE) {
+                        changes.put(key, null);
                     }
                 }
-            } catch (JSONException e) {
-                e.printStackTrace();
             }
-        }
-        editor.apply();
-        //Let someone know we have a new value
-        Iterator<String> it = changedKeys.keySet().iterator();
-        if(mListeners!=null && mListeners.size()>0) {
-            for(RemoteConfigListener listener : mListeners) {
-                while (it.hasNext()) {
-                    String key = it.next();
-                    listener.onValueUpdated(key, changedKeys.get(key));
+            mConfigGeneration.incrementAndGet();
+            Map<String, Object> targetingChanges;
+            if(namespace!=null) {
+                namespace.stored = snapshot;
+                namespace.hashTree = null;
+                targetingChanges = publish(mStoredSnapshot);
+            } else {
+                mStoredHashTree = null;
+                targetingChanges = publish(mLazyDecoding ? loadSnapshot() : snapshot);
+            }
+            HashMap<String, Object> visible = new HashMap<String, Object>(changes);
+            for(Map.Entry<String, Object> change : visible.entrySet()) {
+                if(change.getValue()==null) {
+                    // A removed key reads its default now, or nothing
+                    change.setValue(mSnapshot.get(change.getKey()));
                 }
-                listener.onConfigComplete();
             }
+            changes = visible;
+            mergeTargetingChanges(changes, targetingChanges);
         }
-        LocalBroadcastManager.getInstance(mContext).sendBroadcast(new Intent(LOCAL_BROADCAST_INTENT));
+        notifyChanges(changes);
+    }
+
+    /**
+     * Returns true if this process fetches and writes the config, which is always the case unless
+     * the store is shared with other processes
+     */
+    private boolean ownsStore() {
+        return ownsStore(mStore);
+    }
+
+    private static boolean ownsStore(ConfigStore store) {
+        return !(store instanceof MultiProcessConfigStore) || ((MultiProcessConfigStore)store).tryBecomeOwner();
     }
 
     public void registerForBroadcast(Context context, BroadcastReceiver receiver) {
         LocalBroadcastManager.getInstance(context).registerReceiver(receiver, new IntentFilter(LOCAL_BROADCAST_INTENT));
     }
 
-    private JSONObject initialFileToJsonObject() {
-        JSONObject remoteConfig = null;
+    private FlatConfig readInitialFile() {
+        FlatConfig remoteConfig = null;
         InputStream is = null;
-        StringBuilder total = new StringBuilder();
         try {
             is = mContext.getResources().getAssets().open(REMOTE_CONFIG_FILE);
-            BufferedReader r = new BufferedReader(new InputStreamReader(is));
-            String line;
-            while ((line = r.readLine()) != null) {
-                total.append(line);
-            }
-            String jsonString = total.toString();
-            remoteConfig = new JSONObject(jsonString);
+            remoteConfig = FlatConfig.read(is);
         } catch (Exception e) {} finally {
             if(is!=null) {
                 try {
@@ -248,40 +944,462 @@ public class RemoteConfig {
     }
 
     /**
-     * Checks if it is time for update based on the updateTime variable.
+     * Makes the stored snapshot, on top of the compiled defaults, the one every getter reads from
+     */
+    private Map<String, Object> publish(ConfigSnapshot snapshot) {
+        synchronized (mPublishLock) {
+            mStoredSnapshot = snapshot;
+            ConfigSnapshot composed = withNamespaces(snapshot).withFallback(mDefaults);
+            Map<String, Object> previousTargeted = mTargetedValues;
+            // Rules are evaluated here, once per snapshot, the getters only see their results
+            Map<String, Object> targeted = resolveTargeting(composed);
+            mTargetedValues = targeted;
+            mSnapshot = composed.withOverrides(targeted);
+            mKeyValues = ConfigKey.Values.resolve(mSnapshot);
+            mArrayCache = new ArrayCache(mSnapshot, mArrayCache);
+            if(targeted==previousTargeted) {
+                return Collections.emptyMap();
+            }
+            HashMap<String, Object> changes = new HashMap<String, Object>();
+            addTargetingChanges(previousTargeted, targeted, changes);
+            addTargetingChanges(targeted, previousTargeted, changes);
+            return changes;
+        }
+    }
+
+    /**
+     * Adds the keys of values whose targeted value isn't in the other map, with what readers see now
+     */
+    private void addTargetingChanges(Map<String, Object> values, Map<String, Object> other, Map<String, Object> changes) {
+        for(Map.Entry<String, Object> entry : values.entrySet()) {
+            if(!entry.getValue().equals(other.get(entry.getKey()))) {
+                Object value = mSnapshot.get(entry.getKey());
+                if(value!=null) {
+                    changes.put(entry.getKey(), value);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the values the targeting rules of the config and its namespaces give this device. The
+     * rules are only compiled and evaluated again when one of the rule documents changed.
+     */
+    private Map<String, Object> resolveTargeting(ConfigSnapshot composed) {
+        ArrayList<String> documents = new ArrayList<String>();
+        ArrayList<String> prefixes = new ArrayList<String>();
+        String rules = composed.getString(TargetingRules.RULES_KEY);
+        if(rules!=null) {
+            documents.add(rules);
+            prefixes.add("");
+        }
+        for(Namespace namespace : mNamespaces.values()) {
+            rules = composed.getString(namespace.prefix + TargetingRules.RULES_KEY);
+            if(rules!=null) {
+                documents.add(rules);
+                prefixes.add(namespace.prefix);
+            }
+        }
+        if(documents.equals(mTargetingDocuments)) {
+            return mTargetedValues;
+        }
+        mTargetingDocuments = documents;
+        if(documents.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        if(mTargetingContext==null) {
+            if(mContext==null) {
+                // An async init hasn't got this far, the rules are evaluated when it publishes the stored config
+                mTargetingDocuments = null;
+                return Collections.emptyMap();
+            }
+            mTargetingContext = TargetingContext.forDevice(mContext);
+        }
+        HashMap<String, Object> targeted = new HashMap<String, Object>();
+        for(int i=0;i<documents.size();i++) {
+            try {
+                TargetingRules.compile(documents.get(i), prefixes.get(i), mMetrics).evaluate(mTargetingContext, targeted);
+            } catch (IOException e) {
+                e.printStackTrace();
+                RemoteConfigMetrics metrics = mMetrics;
+                if(metrics!=null) {
+                    metrics.onError(RemoteConfigMetrics.STAGE_APPLY, e);
+                }
+            }
+        }
+        return targeted;
+    }
+
+    /**
+     * Merges the changes publishing made to targeted values into the changes of an update. Changed
+     * keys that a rule overrides are left out, readers still see the targeted value.
+     */
+    private void mergeTargetingChanges(Map<String, Object> changes, Map<String, Object> targetingChanges) {
+        Map<String, Object> targeted = mTargetedValues;
+        if(!targeted.isEmpty()) {
+            Iterator<String> keys = changes.keySet().iterator();
+            while(keys.hasNext()) {
+                if(targeted.containsKey(keys.next())) {
+                    keys.remove();
+                }
+            }
+        }
+        changes.putAll(targetingChanges);
+    }
+
+    private ConfigSnapshot withNamespaces(ConfigSnapshot snapshot) {
+        if(mNamespaces.isEmpty()) {
+            return snapshot;
+        }
+        LinkedHashMap<String, ConfigSnapshot> namespaces = new LinkedHashMap<String, ConfigSnapshot>();
+        for(Namespace namespace : mNamespaces.values()) {
+            namespaces.put(namespace.prefix, namespace.stored);
+        }
+        return snapshot.withNamespaces(namespaces);
+    }
+
+    /**
+     * Resolves the declared keys again, so keys created after the last publish get their fast slots
+     */
+    private void republishKeys() {
+        synchronized (mPublishLock) {
+            mKeyValues = ConfigKey.Values.resolve(mSnapshot);
+        }
+    }
+
+    /**
+     * Starts a fetch of the config and of every namespace whose last response is no longer fresh.
+     * A response is fresh for its Cache-Control max-age, or the update interval if it had none.
+     * The getters keep returning the stored values while they are fetched.
+     *
+     * @return True if the config or a namespace is being fetched
      */
     public boolean checkForUpdate() {
-        if(RemoteConfig.shouldUpdate(mPreferences, mUpdateTime)) {
-            // Fetch the config
-            new FetchConfigAsyncTask().execute();
-            return true;
+        if(mClosed) {
+            return false;
         }
-        return false;
+        if(mStore==null) {
+            // An async init hasn't loaded the store yet, it checks when it's done
+            return false;
+        }
+        if(!ownsStore()) {
+            // Look again later in case the owner process has gone away
+            scheduleUpdateCheck(mUpdateTime);
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        // Parts that expire within the stale-while-revalidate window of an expired part are fetched
+        // with it, instead of waking up again on their own right after
+        long window = batchWindow(mStore, now);
+        for(Namespace namespace : mNamespaces.values()) {
+            if(namespace.store!=null && ownsStore(namespace.store)) {
+                window = Math.max(window, batchWindow(namespace.store, now));
+            }
+        }
+        boolean updating = refreshIfExpired(mStore, mConfigLocation, null, mFetchCallback, now + window);
+        for(Namespace namespace : mNamespaces.values()) {
+            if(namespace.store!=null && ownsStore(namespace.store)) {
+                updating |= refreshIfExpired(namespace.store, namespace.location, namespace.name, namespace.callback, now + window);
+            }
+        }
+        scheduleUpdateCheck();
+        return updating;
+    }
+
+    /**
+     * Returns the stale-while-revalidate window of the stored config if it has expired, 0 otherwise
+     */
+    private long batchWindow(ConfigStore store, long now) {
+        if(expiryTime(store) >= now) {
+            return 0;
+        }
+        return Math.max(0, store.getLong(Freshness.STALE_WHILE_REVALIDATE_KEY, -1)) * 1000;
     }
 
+    private boolean refreshIfExpired(ConfigStore store, URL location, String prefix, FetchCallback callback, long deadline) {
+        if(expiryTime(store) >= deadline) {
+            return false;
+        }
+        // Fetch the config, or wait for the fetch already running for this location
+        int status = mRefreshCoordinator.refresh(location.toString(), new ConfigFetch(transport(), location, prefix, store, mMetrics), callback);
+        return status==RefreshCoordinator.REFRESH_STARTED || status==RefreshCoordinator.REFRESH_JOINED;
+    }
+
+    /**
+     * Returns when the stored config stops being fresh
+     */
+    private long expiryTime(ConfigStore store) {
+        return Freshness.expiryTime(store, mUpdateTime);
+    }
+
+    /**
+     * Schedules the next staleness check for when the config or a namespace first expires, so the
+     * getters never have to look at the clock. The check also revalidates the parts that expire
+     * within the stale-while-revalidate window of the expired one.
+     */
+    private void scheduleUpdateCheck() {
+        long now = System.currentTimeMillis();
+        long delay = checkDelay(mStore, mConfigLocation, now);
+        for(Namespace namespace : mNamespaces.values()) {
+            if(namespace.store!=null && ownsStore(namespace.store)) {
+                delay = Math.min(delay, checkDelay(namespace.store, namespace.location, now));
+            }
+        }
+        if(delay!=Long.MAX_VALUE) {
+            scheduleUpdateCheck(delay);
+        }
+    }
+
+    private long checkDelay(ConfigStore store, URL location, long now) {
+        if(mRefreshCoordinator.isRefreshing(location.toString())) {
+            // Checked again when the fetch is done
+            return Long.MAX_VALUE;
+        }
+        long untilExpiry = expiryTime(store) - now;
+        if(untilExpiry>=0) {
+            return untilExpiry;
+        }
+        // Offline or backing off after a failure, look again when that's over
+        return mRefreshCoordinator.getRetryDelay(location.toString());
+    }
+
+    private void scheduleUpdateCheck(long delay) {
+        if(mHandler==null) return;
+        mHandler.removeCallbacks(mUpdateCheck);
+        mHandler.postDelayed(mUpdateCheck, Math.max(0, delay));
+    }
 
     /**
      * Takes in the map parameter and returns the mapping if available. If the mapping is not available it
-     * returns the default value. If the user has never used this before or there has been a long time since
-     * last check for updated config, new config will be downloaded.
+     * returns the default value. This is a single lookup in the current in-memory snapshot, new config
+     * is downloaded in the background when the update interval runs out.
      *
      * @param mapping The map parameter to fetch something that should be in the remote config
      * @return Returns the mapping for the parameter from the shared defaults
      */
     public String getString(String mapping) {
-        checkForUpdate();
-        return mPreferences.getString(mapping, null);
+        String value = mSnapshot.getString(mapping);
+        RemoteConfigMetrics metrics = mMetrics;
+        if(metrics!=null) {
+            metrics.onRead(mapping, value!=null);
+        }
+        return value;
     }
 
+    /**
+     * Returns the int for the mapping or -1 if there is none. Use {@link #getInt(String, int)} if -1 is a valid value.
+     */
     public int getInt(String mapping) {
-        checkForUpdate();
-        return mPreferences.getInt(mapping, -1);
+        recordRead(mapping);
+        return mSnapshot.getInt(mapping, -1);
     }
 
-    @SuppressLint("NewApi")
-    private synchronized static boolean shouldUpdate(SharedPreferences preferences, long updateTime) {
-        long lastDownloadedConfig = preferences.getLong(RemoteConfig.LAST_DOWNLOADED_CONFIG_KEY, 0);
-        return (lastDownloadedConfig + updateTime < System.currentTimeMillis());
+    /**
+     * Returns the int for the mapping, or the default value if the mapping is missing or isn't an int
+     */
+    public int getInt(String mapping, int defaultValue) {
+        recordRead(mapping);
+        return mSnapshot.getInt(mapping, defaultValue);
+    }
+
+    /**
+     * Returns the long for the mapping, or the default value if the mapping is missing or isn't an integer number
+     */
+    public long getLong(String mapping, long defaultValue) {
+        recordRead(mapping);
+        return mSnapshot.getLong(mapping, defaultValue);
+    }
+
+    /**
+     * Returns the double for the mapping, or the default value if the mapping is missing or isn't a number
+     */
+    public double getDouble(String mapping, double defaultValue) {
+        recordRead(mapping);
+        return mSnapshot.getDouble(mapping, defaultValue);
+    }
+
+    /**
+     * Returns the boolean for the mapping, or the default value if the mapping is missing or isn't a boolean
+     */
+    public boolean getBoolean(String mapping, boolean defaultValue) {
+        recordRead(mapping);
+        return mSnapshot.getBoolean(mapping, defaultValue);
+    }
+
+    /**
+     * Returns one of the ConfigSnapshot.TYPE_* constants for the value of the mapping
+     */
+    public int getType(String mapping) {
+        return mSnapshot.getType(mapping);
+    }
+
+    /**
+     * Returns the array for the mapping, or null if the mapping is missing or isn't an array. The
+     * array is parsed on the first read after a config update and shared by every reader until the
+     * next one, arrays that didn't change in the update aren't parsed again.
+     */
+    public ConfigArray getArray(String mapping) {
+        ArrayCache cache = mArrayCache;
+        ConfigArray array = cache.mArrays.get(mapping);
+        if(array==null) {
+            array = cache.parse(mapping);
+        }
+        RemoteConfigMetrics metrics = mMetrics;
+        if(metrics!=null) {
+            metrics.onRead(mapping, array!=NOT_AN_ARRAY);
+        }
+        return array!=NOT_AN_ARRAY ? array : null;
+    }
+
+    // Cached for values that are missing or aren't arrays, so they aren't parsed on every read
+    private static final ConfigArray NOT_AN_ARRAY = new ConfigArray("", new ArrayList<Object>());
+
+    private static final class ArrayCache {
+        final ConfigSnapshot mCacheSnapshot;
+        final ConcurrentHashMap<String, ConfigArray> mArrays = new ConcurrentHashMap<String, ConfigArray>();
+        // The arrays of the snapshot before, only the map is kept so old caches don't pile up
+        final Map<String, ConfigArray> mPreviousArrays;
+
+        ArrayCache(ConfigSnapshot snapshot, ArrayCache previous) {
+            mCacheSnapshot = snapshot;
+            mPreviousArrays = previous!=null ? previous.mArrays : Collections.<String, ConfigArray>emptyMap();
+        }
+
+        ConfigArray parse(String mapping) {
+            String json = mCacheSnapshot.getString(mapping);
+            ConfigArray array = NOT_AN_ARRAY;
+            if(json!=null) {
+                ConfigArray previous = mPreviousArrays.get(mapping);
+                if(previous!=null && previous!=NOT_AN_ARRAY && previous.toString().equals(json)) {
+                    array = previous;
+                } else if(json.startsWith("[")) {
+                    try {
+                        array = JsonFlattener.parseArray(json);
+                    } catch (IOException e) {
+                        // A string that only looks like an array
+                    }
+                }
+            }
+            // Racing readers may both parse, either result is fine to keep
+            mArrays.put(mapping, array);
+            return array;
+        }
+    }
+
+    private void recordRead(String mapping) {
+        RemoteConfigMetrics metrics = mMetrics;
+        if(metrics!=null) {
+            metrics.onRead(mapping, mSnapshot.getType(mapping)!=ConfigSnapshot.TYPE_NONE);
+        }
+    }
+
+    /**
+     * Declares a string key
+     *
+     * @param path The dotted path of the key
+     * @param defaultValue Returned when the config doesn't have a string for the key
+     */
+    public static ConfigKey<String> stringKey(String path, String defaultValue) {
+        return declare(ConfigKey.<String>register(path, ConfigSnapshot.TYPE_STRING, defaultValue, 0));
+    }
+
+    /**
+     * Declares an int key
+     *
+     * @param path The dotted path of the key
+     * @param defaultValue Returned when the config doesn't have an int for the key
+     */
+    public static ConfigKey<Integer> intKey(String path, int defaultValue) {
+        return declare(ConfigKey.<Integer>register(path, ConfigSnapshot.TYPE_INT, null, defaultValue));
+    }
+
+    /**
+     * Declares a long key
+     *
+     * @param path The dotted path of the key
+     * @param defaultValue Returned when the config doesn't have an integer number for the key
+     */
+    public static ConfigKey<Long> longKey(String path, long defaultValue) {
+        return declare(ConfigKey.<Long>register(path, ConfigSnapshot.TYPE_LONG, null, defaultValue));
+    }
+
+    /**
+     * Declares a double key
+     *
+     * @param path The dotted path of the key
+     * @param defaultValue Returned when the config doesn't have a number for the key
+     */
+    public static ConfigKey<Double> doubleKey(String path, double defaultValue) {
+        return declare(ConfigKey.<Double>register(path, ConfigSnapshot.TYPE_DOUBLE, null, Double.doubleToRawLongBits(defaultValue)));
+    }
+
+    /**
+     * Declares a boolean key
+     *
+     * @param path The dotted path of the key
+     * @param defaultValue Returned when the config doesn't have a boolean for the key
+     */
+    public static ConfigKey<Boolean> booleanKey(String path, boolean defaultValue) {
+        return declare(ConfigKey.<Boolean>register(path, ConfigSnapshot.TYPE_BOOLEAN, null, defaultValue ? 1 : 0));
+    }
+
+    private static <T> ConfigKey<T> declare(ConfigKey<T> key) {
+        ArrayList<RemoteConfig> configs;
+        synchronized (sLiveConfigs) {
+            configs = new ArrayList<RemoteConfig>(sLiveConfigs.keySet());
+        }
+        // Not under the registry lock, each config takes its own publish lock
+        for(RemoteConfig remoteConfig : configs) {
+            remoteConfig.republishKeys();
+        }
+        return key;
+    }
+
+    public String getString(ConfigKey<String> key) {
+        recordRead(key.getPath());
+        ConfigKey.Values values = mKeyValues;
+        if(values.covers(key)) {
+            return values.strings[key.getSlot()];
+        }
+        // Declared after the current snapshot was resolved
+        String value = mSnapshot.getString(key.getPath());
+        return value!=null ? value : key.defaultString();
+    }
+
+    public int getInt(ConfigKey<Integer> key) {
+        recordRead(key.getPath());
+        ConfigKey.Values values = mKeyValues;
+        if(values.covers(key)) {
+            return values.ints[key.getSlot()];
+        }
+        return mSnapshot.getInt(key.getPath(), key.defaultInt());
+    }
+
+    public long getLong(ConfigKey<Long> key) {
+        recordRead(key.getPath());
+        ConfigKey.Values values = mKeyValues;
+        if(values.covers(key)) {
+            return values.longs[key.getSlot()];
+        }
+        return mSnapshot.getLong(key.getPath(), key.defaultLong());
+    }
+
+    public double getDouble(ConfigKey<Double> key) {
+        recordRead(key.getPath());
+        ConfigKey.Values values = mKeyValues;
+        if(values.covers(key)) {
+            return values.doubles[key.getSlot()];
+        }
+        return mSnapshot.getDouble(key.getPath(), key.defaultDouble());
+    }
+
+    public boolean getBoolean(ConfigKey<Boolean> key) {
+        recordRead(key.getPath());
+        ConfigKey.Values values = mKeyValues;
+        if(values.covers(key)) {
+            return values.ints[key.getSlot()]!=0;
+        }
+        return mSnapshot.getBoolean(key.getPath(), key.defaultBoolean());
     }
 
     public interface RemoteConfigListener {
@@ -289,7 +1407,7 @@ public class RemoteConfig {
          * This method is called when the config has been downloaded and it's values are being put into shared preferences
          *
          * @param key The key for the new value in shared preferences
-         * @param value The updated value
+         * @param value The updated value, a String, Integer, Long, Double or Boolean. Arrays are given as their JSON text.
          */
         public void onValueUpdated(String key, Object value);
 
@@ -306,31 +1424,6 @@ public class RemoteConfig {
         public void onConfigError(String string);
     }
 
-    private ArrayList<String> getAllKeysFromJSONObject(JSONObject jsonObject, String prefix) {
-        ArrayList<String> allKeys = new ArrayList<String>();
-        Iterator<?> iter = jsonObject.keys();
-        while (iter.hasNext()) {
-            try {
-                String key = (String)iter.next();
-                Object value = jsonObject.get(key);
-                String newKey = null;
-                if(prefix!=null) {
-                    newKey = prefix + DEEP_DICTIONARY_SEPARATOR + key;
-                } else {
-                    newKey = key;
-                }
-                if(value instanceof JSONObject) {
-                    allKeys.addAll(getAllKeysFromJSONObject(((JSONObject)jsonObject.get(key)), newKey));
-                } else {
-                    allKeys.add(newKey);
-                }
-            } catch (JSONException e) {
-                e.printStackTrace();
-            }
-        }
-        return allKeys;
-    }
-
     /**
      * Adds a listener to the remote config that can react to new values being downloaded
      *
@@ -342,6 +1435,32 @@ public class RemoteConfig {
         mListeners.add(listener);
     }
 
+    /**
+     * Subscribes a listener to the changes of every key starting with the prefix. The listener gets one
+     * change set per config update, holding only its keys, and isn't called for updates that don't touch them.
+     *
+     * @param prefix The key prefix, for example "remoteObject.", an empty prefix matches every key
+     * @param listener The listener to call
+     * @param executor The executor the listener is called on, for example {@link #MAIN_THREAD}
+     */
+    public void addConfigChangeListener(String prefix, ConfigChangeListener listener, Executor executor) {
+        mDispatcher.subscribe(prefix, listener, executor);
+    }
+
+    /**
+     * Same as {@link #addConfigChangeListener(String, ConfigChangeListener, Executor)} with the listener called on the main thread
+     */
+    public void addConfigChangeListener(String prefix, ConfigChangeListener listener) {
+        mDispatcher.subscribe(prefix, listener, MAIN_THREAD);
+    }
+
+    /**
+     * Removes every subscription of the listener
+     */
+    public void removeConfigChangeListener(ConfigChangeListener listener) {
+        mDispatcher.unsubscribe(listener);
+    }
+
     /**
      * Removes a listener
      *
@@ -353,28 +1472,95 @@ public class RemoteConfig {
         }
     }
 
-    private class FetchConfigAsyncTask extends AsyncTask<Void, Void, JSONObject> {
+    private final FetchCallback mFetchCallback = new FetchCallback(null);
 
-        @Override
-        protected JSONObject doInBackground(Void... params) {
-            return Utils.readJSONFeed(mConfigLocation.toString(), null);
+    /**
+     * Stores and applies a fetched config or namespace. Called on the apply thread, so persisting and
+     * applying the download stays off the main thread.
+     */
+    private class FetchCallback implements RefreshCoordinator.Callback<ConfigFetch.Result> {
+        // Null for the config itself
+        private final Namespace mNamespace;
+
+        FetchCallback(Namespace namespace) {
+            mNamespace = namespace;
         }
 
         @Override
-        protected void onPostExecute(JSONObject config) {
-            if(config!=null) {
-                Editor editor = mPreferences.edit();
-                editor.putLong(RemoteConfig.LAST_DOWNLOADED_CONFIG_KEY, System.currentTimeMillis());
-                editor.apply();
-                jsonObjectIntoPreferences(config);
-            } else {
-                if(mListeners!=null) {
-                    for (int i = 0; i < mListeners.size(); i++) {
-                        mListeners.get(i).onConfigError("Unable to read remote config");
+        public void onRefreshComplete(ConfigFetch.Result result) {
+            if(result!=null) {
+                ConfigStore store = mNamespace!=null ? mNamespace.store : mStore;
+                URL location = mNamespace!=null ? mNamespace.location : mConfigLocation;
+                if(!result.location.equals(location)) {
+                    // The config was switched while this one was downloading
+                    return;
+                }
+                if(result.config==null) {
+                    // 304, what we have is still current so there is nothing to parse or diff
+                    ConfigApply.storeNotModified(store, result.response, Freshness.drawJitter(mRefreshJitter, mJitterRandom));
+                    scheduleUpdateCheck();
+                    runOnMainThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            if(mListeners!=null) {
+                                for(RemoteConfigListener listener : mListeners) {
+                                    listener.onConfigComplete();
+                                }
+                            }
+                        }
+                    });
+                    return;
+                }
+                if(result.response.isPatch()) {
+                    if(!applyPatch(mNamespace, result.config)) {
+                        // The stored document couldn't be patched, forget its version so the whole document is fetched
+                        ConfigApply.forgetVersion(store);
+                        mHandler.post(mUpdateCheck);
+                        return;
                     }
+                } else if(mNamespace!=null) {
+                    applyNamespace(mNamespace, result.config);
+                } else {
+                    flatConfigIntoPreferences(result.config);
                 }
+                // Only once the document is written
+                ConfigApply.storeDownload(store, result.response, Freshness.drawJitter(mRefreshJitter, mJitterRandom));
+                scheduleUpdateCheck();
+            } else {
+                scheduleUpdateCheck();
+                runOnMainThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if(mListeners!=null) {
+                            for (int i = 0; i < mListeners.size(); i++) {
+                                mListeners.get(i).onConfigError("Unable to read remote config");
+                            }
+                        }
+                    }
+                });
             }
         }
     }
-}
 
+    /**
+     * A top level key of the config that is fetched from its own location and kept in its own store
+     */
+    private class Namespace {
+        final String name;
+        // The name and the separator, every key of the namespace starts with it
+        final String prefix;
+        final URL location;
+        final FetchCallback callback;
+        // Set when the stores are opened, the rest is guarded by mApplyLock
+        ConfigStore store;
+        ConfigSnapshot stored = ConfigSnapshot.EMPTY;
+        ConfigHashTree hashTree;
+
+        Namespace(String name, URL location) {
+            this.name = name;
+            this.prefix = name + JsonFlattener.SEPARATOR;
+            this.location = location;
+            this.callback = new FetchCallback(this);
+        }
+    }
+}
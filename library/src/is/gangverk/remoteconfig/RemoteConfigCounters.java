@@ -0,0 +1,130 @@
+package is.gangverk.remoteconfig;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Keeps running totals of everything {@link RemoteConfigMetrics} reports, for apps that want to
+ * log or upload them now and then rather than handle every event.
+ */
+public class RemoteConfigCounters implements RemoteConfigMetrics {
+    public static final int FETCHES = 0;
+    public static final int NOT_MODIFIED = 1;
+    public static final int TRANSFERRED_BYTES = 2;
+    public static final int BODY_BYTES = 3;
+    public static final int NETWORK_NANOS = 4;
+    public static final int PARSE_NANOS = 5;
+    public static final int APPLIES = 6;
+    public static final int CHANGED_KEYS = 7;
+    public static final int DIFF_NANOS = 8;
+    public static final int PERSIST_NANOS = 9;
+    public static final int ENQUEUE_NANOS = 10;
+    public static final int READS = 11;
+    public static final int READ_MISSES = 12;
+    public static final int ERRORS = 13;
+    public static final int LARGEST_CONFIG_KEYS = 14;
+    private static final int COUNTER_COUNT = 15;
+
+    private final AtomicLongArray mCounters = new AtomicLongArray(COUNTER_COUNT);
+    private final boolean mCountKeys;
+    private final ConcurrentHashMap<String, AtomicLong> mKeyReads = new ConcurrentHashMap<String, AtomicLong>();
+    private volatile Throwable mLastError;
+
+    /**
+     * @param countKeys If true the reads of every key are counted as well, which costs a map lookup per read
+     */
+    public RemoteConfigCounters(boolean countKeys) {
+        mCountKeys = countKeys;
+    }
+
+    @Override
+    public void onFetch(String location, int statusCode, long transferredBytes, long bodyBytes, long networkNanos, long parseNanos) {
+        mCounters.incrementAndGet(FETCHES);
+        if(statusCode==304) {
+            mCounters.incrementAndGet(NOT_MODIFIED);
+        }
+        if(transferredBytes>0) {
+            mCounters.addAndGet(TRANSFERRED_BYTES, transferredBytes);
+        }
+        mCounters.addAndGet(BODY_BYTES, bodyBytes);
+        mCounters.addAndGet(NETWORK_NANOS, networkNanos);
+        mCounters.addAndGet(PARSE_NANOS, parseNanos);
+    }
+
+    @Override
+    public void onApply(int keys, int changedKeys, long diffNanos, long persistNanos, long enqueueNanos) {
+        mCounters.incrementAndGet(APPLIES);
+        mCounters.addAndGet(CHANGED_KEYS, changedKeys);
+        mCounters.addAndGet(DIFF_NANOS, diffNanos);
+        mCounters.addAndGet(PERSIST_NANOS, persistNanos);
+        mCounters.addAndGet(ENQUEUE_NANOS, enqueueNanos);
+        long largest;
+        while((largest = mCounters.get(LARGEST_CONFIG_KEYS))<keys && !mCounters.compareAndSet(LARGEST_CONFIG_KEYS, largest, keys));
+    }
+
+    @Override
+    public void onRead(String key, boolean hit) {
+        mCounters.incrementAndGet(READS);
+        if(!hit) {
+            mCounters.incrementAndGet(READ_MISSES);
+        }
+        if(mCountKeys) {
+            AtomicLong reads = mKeyReads.get(key);
+            if(reads==null) {
+                AtomicLong created = new AtomicLong();
+                reads = mKeyReads.putIfAbsent(key, created);
+                if(reads==null) {
+                    reads = created;
+                }
+            }
+            reads.incrementAndGet();
+        }
+    }
+
+    @Override
+    public void onError(String stage, Throwable error) {
+        mCounters.incrementAndGet(ERRORS);
+        mLastError = error;
+    }
+
+    /**
+     * Returns the current value of a counter
+     *
+     * @param counter One of the counter constants
+     */
+    public long get(int counter) {
+        return mCounters.get(counter);
+    }
+
+    /**
+     * Returns the read count of every key read since the last reset, empty unless keys are counted
+     */
+    public Map<String, Long> getKeyReads() {
+        HashMap<String, Long> reads = new HashMap<String, Long>();
+        for(Map.Entry<String, AtomicLong> entry : mKeyReads.entrySet()) {
+            reads.put(entry.getKey(), entry.getValue().get());
+        }
+        return reads;
+    }
+
+    /**
+     * Returns the last error reported or null if there was none
+     */
+    public Throwable getLastError() {
+        return mLastError;
+    }
+
+    /**
+     * Sets every counter back to zero
+     */
+    public void reset() {
+        for(int i=0;i<COUNTER_COUNT;i++) {
+            mCounters.set(i, 0);
+        }
+        mKeyReads.clear();
+        mLastError = null;
+    }
+}
@@ -0,0 +1,220 @@
+package is.gangverk.remoteconfig;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.SharedPreferences.Editor;
+
+/**
+ * Holds several named configs side by side, each a {@link RemoteConfig} with its own location,
+ * update interval and listeners. Every store the configs open is recorded with its size and when
+ * it was last used, which is the last time the manager opened stores, trimmed or let go of a
+ * config while a held config had the store open. When a store is opened the least recently used
+ * ones are deleted until there are no more than maxStores of them and they take no more than maxBytes. The stores of the
+ * configs held by the manager are never deleted, and switching back to a config used recently
+ * reads its stored values instead of downloading it again.
+ *
+ * <pre>
+ * RemoteConfig config = manager.get("staging");
+ * config.setUpdateInterval(15 * 60 * 1000);
+ * config.init(context, version, RemoteConfigDefaults.DEFAULTS, "https://staging.example.com/rc.json");
+ * </pre>
+ */
+public class RemoteConfigManager {
+    // Where the stores are recorded, every entry is the store name with its "lastUsed size" as value
+    private static final String INDEX_NAME = "rc_stores";
+
+    private final Context mContext;
+    private final RemoteConfig.StoreFactory mStoreFactory;
+    private final int mMaxStores;
+    private final long mMaxBytes;
+    private final SharedPreferences mIndex;
+    private final LinkedHashMap<String, RemoteConfig> mConfigs = new LinkedHashMap<String, RemoteConfig>();
+    // The stores opened by this process, so their size is measured and they aren't opened again to be deleted
+    private final HashMap<String, ConfigStore> mOpenStores = new HashMap<String, ConfigStore>();
+    // Given to every config, records the stores they open
+    private final RemoteConfig.StoreFactory mTrackingFactory = new RemoteConfig.StoreFactory() {
+        @Override
+        public ConfigStore open(Context context, String name) {
+            ConfigStore store = mStoreFactory.open(context, name);
+            opened(name, store);
+            return store;
+        }
+    };
+
+    /**
+     * Creates a manager whose configs are kept in SharedPreferences files
+     *
+     * @param context Can be application context
+     * @param maxStores How many stores are kept at most
+     * @param maxBytes How many bytes the stores take at most
+     */
+    public RemoteConfigManager(Context context, int maxStores, long maxBytes) {
+        this(context, RemoteConfig.SHARED_PREFERENCES_STORE, maxStores, maxBytes);
+    }
+
+    /**
+     * @param context Can be application context
+     * @param storeFactory How the configs are persisted
+     * @param maxStores How many stores are kept at most
+     * @param maxBytes How many bytes the stores take at most
+     */
+    public RemoteConfigManager(Context context, RemoteConfig.StoreFactory storeFactory, int maxStores, long maxBytes) {
+        if(maxStores<1) {
+            throw new IllegalArgumentException("At least one store has to be kept");
+        }
+        if(maxBytes<0) {
+            throw new IllegalArgumentException("The byte budget can't be negative");
+        }
+        mContext = context.getApplicationContext()!=null ? context.getApplicationContext() : context;
+        mStoreFactory = storeFactory;
+        mMaxStores = maxStores;
+        mMaxBytes = maxBytes;
+        mIndex = mContext.getSharedPreferences(INDEX_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Returns the config with this name, it's created the first time. A new config has to be set
+     * up, as {@link RemoteConfig#getInstance()} would be, and initialized with one of its init methods.
+     *
+     * @param name The name of the config, like an environment or a cohort
+     */
+    public synchronized RemoteConfig get(String name) {
+        RemoteConfig config = mConfigs.get(name);
+        if(config==null) {
+            config = new RemoteConfig();
+            config.setStoreFactory(mTrackingFactory);
+            mConfigs.put(name, config);
+        }
+        return config;
+    }
+
+    /**
+     * Returns the config with this name or null if the manager doesn't hold one
+     */
+    public synchronized RemoteConfig peek(String name) {
+        return mConfigs.get(name);
+    }
+
+    /**
+     * Lets go of the config with this name. It stops checking for updates and its stores are kept
+     * until they are the least recently used ones over the budget, so getting it again later doesn't
+     * download anything the stores still have.
+     *
+     * @param name The name of the config
+     */
+    public void remove(String name) {
+        RemoteConfig config;
+        synchronized (this) {
+            config = mConfigs.remove(name);
+            if(config==null) {
+                return;
+            }
+            // Its stores were in use until now
+            long now = System.currentTimeMillis();
+            Editor editor = mIndex.edit();
+            for(String storeName : config.getStoreNames()) {
+                editor.putString(storeName, entry(now, size(storeName)));
+            }
+            editor.apply();
+        }
+        // Not under the manager lock, an apply in progress may be opening a store
+        config.close();
+    }
+
+    /**
+     * Deletes the least recently used stores until the budget is met
+     */
+    public synchronized void trim() {
+        trim(null);
+    }
+
+    private synchronized void opened(String name, ConfigStore store) {
+        mOpenStores.put(name, store);
+        mIndex.edit().putString(name, entry(System.currentTimeMillis(), store.sizeOnDisk())).apply();
+        trim(name);
+    }
+
+    /**
+     * @param keep A store that was just opened and must stay, null if there is none
+     */
+    private void trim(String keep) {
+        HashSet<String> inUse = new HashSet<String>();
+        if(keep!=null) {
+            inUse.add(keep);
+        }
+        for(RemoteConfig config : mConfigs.values()) {
+            Collections.addAll(inUse, config.getStoreNames());
+        }
+        final HashMap<String, Long> lastUsed = new HashMap<String, Long>();
+        ArrayList<String> candidates = new ArrayList<String>();
+        int count = 0;
+        long totalBytes = 0;
+        long now = System.currentTimeMillis();
+        Editor editor = mIndex.edit();
+        for(Map.Entry<String, ?> entry : mIndex.getAll().entrySet()) {
+            if(!(entry.getValue() instanceof String)) continue;
+            String value = (String)entry.getValue();
+            int space = value.indexOf(' ');
+            long used, size;
+            try {
+                used = Long.parseLong(value.substring(0, space));
+                size = Long.parseLong(value.substring(space + 1));
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+                continue;
+            }
+            String name = entry.getKey();
+            count++;
+            ConfigStore open = mOpenStores.get(name);
+            totalBytes += open!=null ? open.sizeOnDisk() : size;
+            if(!inUse.contains(name)) {
+                lastUsed.put(name, used);
+                candidates.add(name);
+            } else {
+                // Used until now, so a store the config switches away from later isn't dated by when it was opened
+                editor.putString(name, entry(now, open!=null ? open.sizeOnDisk() : size));
+            }
+        }
+        if(count<=mMaxStores && totalBytes<=mMaxBytes) {
+            editor.apply();
+            return;
+        }
+        Collections.sort(candidates, new Comparator<String>() {
+            @Override
+            public int compare(String lhs, String rhs) {
+                long left = lastUsed.get(lhs);
+                long right = lastUsed.get(rhs);
+                return left<right ? -1 : (left==right ? 0 : 1);
+            }
+        });
+        for(String name : candidates) {
+            if(count<=mMaxStores && totalBytes<=mMaxBytes) break;
+            ConfigStore store = mOpenStores.remove(name);
+            if(store==null) {
+                store = mStoreFactory.open(mContext, name);
+            }
+            totalBytes -= store.sizeOnDisk();
+            store.delete();
+            editor.remove(name);
+            count--;
+        }
+        editor.apply();
+    }
+
+    private long size(String name) {
+        ConfigStore store = mOpenStores.get(name);
+        return store!=null ? store.sizeOnDisk() : 0;
+    }
+
+    private static String entry(long lastUsed, long size) {
+        return lastUsed + " " + size;
+    }
+}
@@ -0,0 +1,53 @@
+package is.gangverk.remoteconfig;
+
+/**
+ * Receives timings, counts and errors from every stage a config goes through. Set one with
+ * {@link RemoteConfig#setMetrics(RemoteConfigMetrics)}, without one nothing is measured or recorded.
+ * The fetch callbacks come from a background thread and reads from whatever thread reads, so
+ * implementations have to be thread safe and cheap. {@link RemoteConfigCounters} is a ready made one.
+ */
+public interface RemoteConfigMetrics {
+    public static final String STAGE_FETCH = "fetch";
+    public static final String STAGE_APPLY = "apply";
+    public static final String STAGE_READ = "read";
+
+    /**
+     * Called when a fetch got a response
+     *
+     * @param location The config location
+     * @param statusCode The HTTP status code, 304 when the cached config is still current
+     * @param transferredBytes The Content-Length of the response or -1 if the server didn't send it
+     * @param bodyBytes The bytes of the body after decompression, 0 if there was no body
+     * @param networkNanos The time until the response headers arrived
+     * @param parseNanos The time spent streaming the body through decompression and the flattener
+     */
+    public void onFetch(String location, int statusCode, long transferredBytes, long bodyBytes, long networkNanos, long parseNanos);
+
+    /**
+     * Called when a new config has been applied
+     *
+     * @param keys The number of keys in the new config
+     * @param changedKeys The number of keys that were added or changed
+     * @param diffNanos The time spent finding the changes
+     * @param persistNanos The time spent writing to the store
+     * @param enqueueNanos The time spent handing the changes to the listener threads and executors,
+     *                     not the time the listeners take to run
+     */
+    public void onApply(int keys, int changedKeys, long diffNanos, long persistNanos, long enqueueNanos);
+
+    /**
+     * Called on every read of a key
+     *
+     * @param key The key
+     * @param hit True if the config had a value for the key, false if a default was returned
+     */
+    public void onRead(String key, boolean hit);
+
+    /**
+     * Called when a stage fails
+     *
+     * @param stage One of the STAGE_* constants
+     * @param error What went wrong
+     */
+    public void onError(String stage, Throwable error);
+}
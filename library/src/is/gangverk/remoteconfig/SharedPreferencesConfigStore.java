@@ -0,0 +1,229 @@
+package is.gangverk.remoteconfig;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import android.annotation.SuppressLint;
+import android.content.SharedPreferences;
+import android.content.SharedPreferences.Editor;
+
+/**
+ * Keeps the config in a SharedPreferences file, every value under its own key. The metadata, like
+ * the download time and the cache validators, is kept in a second preferences file, so it never
+ * reads as a config value.
+ */
+public class SharedPreferencesConfigStore implements ConfigStore {
+    private static final String COMPLETE_CONFIG_KEY = "rc_complete_config";
+    // SharedPreferences has no doubles, they are stored as their long bits and their keys are listed here
+    private static final String DOUBLE_KEYS_KEY = "rc_double_keys";
+    // The metadata older versions kept next to the values, moved to the metadata file when found
+    private static final String[] VALUE_FILE_METADATA_KEYS = {
+            Freshness.LAST_DOWNLOADED_CONFIG_KEY, Freshness.MAX_AGE_KEY, Freshness.STALE_WHILE_REVALIDATE_KEY, Freshness.JITTER_KEY,
+            ConfigFetch.ETAG_KEY, ConfigFetch.LAST_MODIFIED_KEY, ConfigApply.CONFIG_HASH_KEY, ConfigMigrator.SCHEMA_KEY, RemoteConfig.SP_VERSION_KEY,
+    };
+
+    private final SharedPreferences mPreferences;
+    private final SharedPreferences mMetadata;
+    // The files the preferences are kept in, null if they aren't known
+    private final File mFile;
+    private final File mMetadataFile;
+
+    public SharedPreferencesConfigStore(SharedPreferences preferences, SharedPreferences metadata) {
+        this(preferences, metadata, null, null);
+    }
+
+    /**
+     * @param preferences The preferences to keep the config values in
+     * @param metadata The preferences to keep the metadata in
+     * @param file The file of the values, so the store can measure and delete it
+     * @param metadataFile The file of the metadata
+     */
+    public SharedPreferencesConfigStore(SharedPreferences preferences, SharedPreferences metadata, File file, File metadataFile) {
+        mPreferences = preferences;
+        mMetadata = metadata;
+        mFile = file;
+        mMetadataFile = metadataFile;
+    }
+
+    @Override
+    public ConfigSnapshot load() {
+        moveMetadata();
+        HashMap<String, Object> values = new HashMap<String, Object>(mPreferences.getAll());
+        values.remove(COMPLETE_CONFIG_KEY);
+        values.remove(DOUBLE_KEYS_KEY);
+        for(String key : doubleKeys()) {
+            Object bits = values.get(key);
+            if(bits instanceof Long) {
+                values.put(key, Double.longBitsToDouble(((Long)bits).longValue()));
+            }
+        }
+        return ConfigSnapshot.from(values);
+    }
+
+    @SuppressLint("CommitPrefEdits")
+    @Override
+    public ConfigSnapshot write(ConfigSnapshot current, Map<String, Object> changes, String rawConfig) {
+        Editor editor = mPreferences.edit();
+        editor.putString(COMPLETE_CONFIG_KEY, rawConfig);
+        HashSet<String> doubleKeys = new HashSet<String>(doubleKeys());
+        boolean doubleKeysChanged = false;
+        for(Map.Entry<String, Object> entry : changes.entrySet()) {
+            String key = entry.getKey();
+            Object value = entry.getValue();
+            if(value==null) {
+                editor.remove(key);
+                doubleKeysChanged |= doubleKeys.remove(key);
+                continue;
+            }
+            if(value instanceof Double) {
+                editor.putLong(key, Double.doubleToRawLongBits(((Double)value).doubleValue()));
+                doubleKeysChanged |= doubleKeys.add(key);
+                continue;
+            }
+            doubleKeysChanged |= doubleKeys.remove(key);
+            if(value instanceof String) {
+                editor.putString(key, (String)value);
+            } else if(value instanceof Integer) {
+                editor.putInt(key, ((Integer)value).intValue());
+            } else if(value instanceof Long) {
+                editor.putLong(key, ((Long)value).longValue());
+            } else if(value instanceof Boolean) {
+                editor.putBoolean(key, ((Boolean)value).booleanValue());
+            }
+        }
+        if(doubleKeysChanged) {
+            editor.putStringSet(DOUBLE_KEYS_KEY, doubleKeys);
+        }
+        editor.apply();
+        return current.with(changes);
+    }
+
+    /**
+     * Moves the metadata a store written by an older version has in the values file to the
+     * metadata file
+     */
+    @SuppressLint("CommitPrefEdits")
+    private void moveMetadata() {
+        Map<String, ?> all = null;
+        Editor values = null;
+        Editor metadata = null;
+        for(String key : VALUE_FILE_METADATA_KEYS) {
+            if(!mPreferences.contains(key)) continue;
+            if(values==null) {
+                all = mPreferences.getAll();
+                values = mPreferences.edit();
+                metadata = mMetadata.edit();
+            }
+            Object value = all.get(key);
+            if(!mMetadata.contains(key)) {
+                if(value instanceof String) {
+                    metadata.putString(key, (String)value);
+                } else if(value instanceof Integer) {
+                    metadata.putInt(key, ((Integer)value).intValue());
+                } else if(value instanceof Long) {
+                    metadata.putLong(key, ((Long)value).longValue());
+                }
+            }
+            values.remove(key);
+        }
+        if(values!=null) {
+            // The metadata goes first, so a crash in between leaves it in one of the files
+            metadata.commit();
+            values.apply();
+        }
+    }
+
+    private Set<String> doubleKeys() {
+        Set<String> keys = mPreferences.getStringSet(DOUBLE_KEYS_KEY, null);
+        return keys!=null ? keys : Collections.<String>emptySet();
+    }
+
+    @Override
+    public String readRawConfig() {
+        return mPreferences.getString(COMPLETE_CONFIG_KEY, null);
+    }
+
+    @Override
+    public int getInt(String key, int defaultValue) {
+        return mMetadata.getInt(key, defaultValue);
+    }
+
+    @Override
+    public void putInt(String key, int value) {
+        mMetadata.edit().putInt(key, value).apply();
+    }
+
+    @Override
+    public long getLong(String key, long defaultValue) {
+        return mMetadata.getLong(key, defaultValue);
+    }
+
+    @Override
+    public void putLong(String key, long value) {
+        mMetadata.edit().putLong(key, value).apply();
+    }
+
+    @Override
+    public String getString(String key) {
+        return mMetadata.getString(key, null);
+    }
+
+    @Override
+    public void putString(String key, String value) {
+        if(value!=null) {
+            mMetadata.edit().putString(key, value).apply();
+        } else {
+            mMetadata.edit().remove(key).apply();
+        }
+    }
+
+    @Override
+    public void putMetadata(Map<String, Object> metadata) {
+        Editor editor = mMetadata.edit();
+        for(Map.Entry<String, Object> entry : metadata.entrySet()) {
+            String key = entry.getKey();
+            Object value = entry.getValue();
+            if(value==null) {
+                editor.remove(key);
+            } else if(value instanceof Integer) {
+                editor.putInt(key, ((Integer)value).intValue());
+            } else if(value instanceof Long) {
+                editor.putLong(key, ((Long)value).longValue());
+            } else {
+                editor.putString(key, value.toString());
+            }
+        }
+        editor.apply();
+    }
+
+    @Override
+    public void clear() {
+        mPreferences.edit().clear().apply();
+        mMetadata.edit().clear().apply();
+    }
+
+    @Override
+    public long sizeOnDisk() {
+        return (mFile!=null ? mFile.length() : 0) + (mMetadataFile!=null ? mMetadataFile.length() : 0);
+    }
+
+    @Override
+    public void delete() {
+        // Written right away, so a pending apply() can't bring the files back
+        mPreferences.edit().clear().commit();
+        mMetadata.edit().clear().commit();
+        deleteFile(mFile);
+        deleteFile(mMetadataFile);
+    }
+
+    private static void deleteFile(File file) {
+        if(file!=null) {
+            file.delete();
+            new File(file.getPath() + ".bak").delete();
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package is.gangverk.remoteconfig;
+
+import java.util.Locale;
+import java.util.UUID;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.pm.PackageManager;
+
+/**
+ * What targeting rules in the config are evaluated against: a stable device id for percentage
+ * rollouts, the app version code and the locale. Rules are evaluated once per config update, not
+ * on every read, so the context is fixed for the lifetime of the process.
+ */
+public final class TargetingContext {
+    private static final String PREFERENCES_NAME = "rc_targeting";
+    private static final String DEVICE_ID_KEY = "device_id";
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    // Rollout percentages are matched in steps of a hundredth of a percent
+    static final int BUCKETS = 10000;
+
+    private final String mDeviceId;
+    private final int mAppVersion;
+    private final Locale mLocale;
+
+    /**
+     * @param deviceId A stable id of the device or install, rollouts are bucketed on it
+     * @param appVersion The version code of the app
+     * @param locale The locale the locale rules are matched against
+     */
+    public TargetingContext(String deviceId, int appVersion, Locale locale) {
+        mDeviceId = deviceId;
+        mAppVersion = appVersion;
+        mLocale = locale;
+    }
+
+    /**
+     * Returns the context of this install. The device id is generated once and kept in its own
+     * SharedPreferences file, so a device stays in the same rollout buckets across app updates.
+     */
+    public static TargetingContext forDevice(Context context) {
+        SharedPreferences preferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+        String deviceId = preferences.getString(DEVICE_ID_KEY, null);
+        if(deviceId==null) {
+            deviceId = UUID.randomUUID().toString();
+            preferences.edit().putString(DEVICE_ID_KEY, deviceId).apply();
+        }
+        int appVersion = 0;
+        try {
+            appVersion = context.getPackageManager().getPackageInfo(context.getPackageName(), 0).versionCode;
+        } catch (PackageManager.NameNotFoundException e) {
+            e.printStackTrace();
+        }
+        return new TargetingContext(deviceId, appVersion, Locale.getDefault());
+    }
+
+    public String getDeviceId() {
+        return mDeviceId;
+    }
+
+    public int getAppVersion() {
+        return mAppVersion;
+    }
+
+    public Locale getLocale() {
+        return mLocale;
+    }
+
+    /**
+     * Returns the rollout bucket of this device for the salt, from 0 to BUCKETS - 1. Different salts
+     * put the device in independent buckets.
+     */
+    int getBucket(String salt) {
+        long hash = FNV_OFFSET;
+        for(int i=0;i<salt.length();i++) {
+            hash = (hash ^ salt.charAt(i)) * FNV_PRIME;
+        }
+        hash = (hash ^ ':') * FNV_PRIME;
+        for(int i=0;i<mDeviceId.length();i++) {
+            hash = (hash ^ mDeviceId.charAt(i)) * FNV_PRIME;
+        }
+        // Spread the last characters over the high bits too, ids often differ only at the end
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        return (int)((hash >>> 1) % BUCKETS);
+    }
+}
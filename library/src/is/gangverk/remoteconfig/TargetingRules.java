@@ -0,0 +1,258 @@
+package is.gangverk.remoteconfig;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Conditional values from the "$rules" array of a config, compiled into predicate trees. Every rule
+ * names a key, the value it gives the key and the conditions the device has to meet. The first
+ * matching rule for a key wins, when none matches the key keeps its plain value.
+ *
+ * <pre>
+ * "$rules": [
+ *   {"key": "welcome.text", "value": "Hi", "rollout": 20, "minVersion": 230, "locales": ["en", "pt_BR"]},
+ *   {"key": "limits.maxItems", "value": 100, "any": [{"locales": ["de"]}, {"rollout": 5, "salt": "limits"}]}
+ * ]
+ * </pre>
+ *
+ * A rule matches when all of its conditions do:
+ * <ul>
+ * <li>rollout: the percentage of devices it applies to, bucketed on the device id and the salt,
+ * which is the key unless given</li>
+ * <li>minVersion, maxVersion: an inclusive range of app version codes</li>
+ * <li>locales: locales like "en" or "pt_BR", a language matches all of its countries</li>
+ * <li>any, all, none: arrays of nested condition objects</li>
+ * </ul>
+ * Unknown conditions are ignored, so older apps skip what they don't understand. The value can be
+ * an object, which gives every leaf under the key. A rule without a key or a value, or with a
+ * malformed condition, is skipped.
+ */
+final class TargetingRules {
+    static final String RULES_KEY = "$rules";
+
+    private final String[] mKeys;
+    private final Object[] mValues;
+    private final Condition[] mConditions;
+
+    private TargetingRules(String[] keys, Object[] values, Condition[] conditions) {
+        mKeys = keys;
+        mValues = values;
+        mConditions = conditions;
+    }
+
+    /**
+     * Compiles a rules array. A rule that can't be compiled is skipped and reported, the others
+     * still apply.
+     *
+     * @param json The "$rules" array as JSON text
+     * @param prefix Put in front of the rule keys, for the rules of a namespace
+     * @param metrics Gets the rules that are skipped, can be null
+     * @throws IOException If the rules aren't a JSON array
+     */
+    static TargetingRules compile(String json, String prefix, RemoteConfigMetrics metrics) throws IOException {
+        ConfigArray rules = JsonFlattener.parseArray(json);
+        ArrayList<String> keys = new ArrayList<String>();
+        ArrayList<Object> values = new ArrayList<Object>();
+        ArrayList<Condition> conditions = new ArrayList<Condition>();
+        for(int i=0;i<rules.size();i++) {
+            try {
+                Map<String, Object> rule = readObject(rules, i);
+                Object key = rule.get("key");
+                Object value = rule.get("value");
+                if(!(key instanceof String) || value==null) {
+                    throw new IOException("Rule " + i + " needs a key and a value");
+                }
+                Condition condition = compileCondition(rule, (String)key);
+                if(value instanceof ConfigArray.JsonObject) {
+                    // An object value sets every leaf under the key, like a document would
+                    for(Map.Entry<String, Object> leaf : FlatConfig.read(((ConfigArray.JsonObject)value).json, prefix + key).getValues().entrySet()) {
+                        keys.add(leaf.getKey());
+                        values.add(leaf.getValue());
+                        conditions.add(condition);
+                    }
+                } else {
+                    keys.add(prefix + key);
+                    // Arrays are stored as their JSON text
+                    values.add(value instanceof ConfigArray ? value.toString() : value);
+                    conditions.add(condition);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                if(metrics!=null) {
+                    metrics.onError(RemoteConfigMetrics.STAGE_APPLY, e);
+                }
+            }
+        }
+        return new TargetingRules(keys.toArray(new String[keys.size()]), values.toArray(), conditions.toArray(new Condition[conditions.size()]));
+    }
+
+    /**
+     * Puts the value of the first matching rule of every key that doesn't have a value yet
+     */
+    void evaluate(TargetingContext context, Map<String, Object> values) {
+        for(int i=0;i<mKeys.length;i++) {
+            if(!values.containsKey(mKeys[i]) && mConditions[i].matches(context)) {
+                values.put(mKeys[i], mValues[i]);
+            }
+        }
+    }
+
+    private static Map<String, Object> readObject(ConfigArray array, int index) throws IOException {
+        if(array.getType(index)!=ConfigArray.TYPE_OBJECT) {
+            throw new IOException("Expected a rule object at " + index);
+        }
+        return JsonFlattener.parseObject(array.getString(index));
+    }
+
+    private static Condition compileCondition(Map<String, Object> members, String defaultSalt) throws IOException {
+        ArrayList<Condition> conditions = new ArrayList<Condition>();
+        Object rollout = members.get("rollout");
+        if(rollout instanceof Number) {
+            Object salt = members.get("salt");
+            conditions.add(new Rollout(((Number)rollout).doubleValue(), salt instanceof String ? (String)salt : defaultSalt));
+        }
+        Object minVersion = members.get("minVersion");
+        Object maxVersion = members.get("maxVersion");
+        if(minVersion instanceof Number || maxVersion instanceof Number) {
+            conditions.add(new VersionRange(minVersion instanceof Number ? ((Number)minVersion).intValue() : Integer.MIN_VALUE,
+                    maxVersion instanceof Number ? ((Number)maxVersion).intValue() : Integer.MAX_VALUE));
+        }
+        Object locales = members.get("locales");
+        if(locales instanceof ConfigArray) {
+            conditions.add(new LocaleMatch(((ConfigArray)locales).toStringArray()));
+        }
+        Object any = members.get("any");
+        if(any instanceof ConfigArray) {
+            conditions.add(new Any(compileConditions((ConfigArray)any, defaultSalt)));
+        }
+        Object all = members.get("all");
+        if(all instanceof ConfigArray) {
+            conditions.add(new All(compileConditions((ConfigArray)all, defaultSalt)));
+        }
+        Object none = members.get("none");
+        if(none instanceof ConfigArray) {
+            conditions.add(new None(compileConditions((ConfigArray)none, defaultSalt)));
+        }
+        return conditions.size()==1 ? conditions.get(0) : new All(conditions.toArray(new Condition[conditions.size()]));
+    }
+
+    private static Condition[] compileConditions(ConfigArray array, String defaultSalt) throws IOException {
+        Condition[] conditions = new Condition[array.size()];
+        for(int i=0;i<conditions.length;i++) {
+            conditions[i] = compileCondition(readObject(array, i), defaultSalt);
+        }
+        return conditions;
+    }
+
+    private interface Condition {
+        public boolean matches(TargetingContext context);
+    }
+
+    private static final class Rollout implements Condition {
+        private final int mBuckets;
+        private final String mSalt;
+
+        Rollout(double percentage, String salt) {
+            mBuckets = (int)Math.round(percentage * TargetingContext.BUCKETS / 100);
+            mSalt = salt;
+        }
+
+        @Override
+        public boolean matches(TargetingContext context) {
+            return context.getBucket(mSalt) < mBuckets;
+        }
+    }
+
+    private static final class VersionRange implements Condition {
+        private final int mMin;
+        private final int mMax;
+
+        VersionRange(int min, int max) {
+            mMin = min;
+            mMax = max;
+        }
+
+        @Override
+        public boolean matches(TargetingContext context) {
+            return context.getAppVersion()>=mMin && context.getAppVersion()<=mMax;
+        }
+    }
+
+    private static final class LocaleMatch implements Condition {
+        private final String[] mLocales;
+
+        LocaleMatch(String[] locales) {
+            mLocales = new String[locales.length];
+            for(int i=0;i<locales.length;i++) {
+                mLocales[i] = locales[i]!=null ? locales[i].replace('-', '_').toLowerCase(Locale.US) : "";
+            }
+        }
+
+        @Override
+        public boolean matches(TargetingContext context) {
+            String locale = context.getLocale().toString().toLowerCase(Locale.US);
+            for(String candidate : mLocales) {
+                if(locale.equals(candidate) || (candidate.length()>0 && locale.startsWith(candidate + "_"))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private static final class All implements Condition {
+        private final Condition[] mConditions;
+
+        All(Condition[] conditions) {
+            mConditions = conditions;
+        }
+
+        @Override
+        public boolean matches(TargetingContext context) {
+            for(Condition condition : mConditions) {
+                if(!condition.matches(context)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static final class Any implements Condition {
+        private final Condition[] mConditions;
+
+        Any(Condition[] conditions) {
+            mConditions = conditions;
+        }
+
+        @Override
+        public boolean matches(TargetingContext context) {
+            for(Condition condition : mConditions) {
+                if(condition.matches(context)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private static final class None implements Condition {
+        private final Condition[] mConditions;
+
+        None(Condition[] conditions) {
+            mConditions = conditions;
+        }
+
+        @Override
+        public boolean matches(TargetingContext context) {
+            for(Condition condition : mConditions) {
+                if(condition.matches(context)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -4,8 +4,8 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.PushbackInputStream;
 import java.net.Socket;
-import java.net.URI;
 import java.net.UnknownHostException;
 import java.security.KeyManagementException;
 import java.security.KeyStore;
@@ -15,17 +15,21 @@ import java.security.UnrecoverableKeyException;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.X509TrustManager;
 
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
-import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
 import org.apache.http.HttpVersion;
-import org.apache.http.StatusLine;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.client.methods.HttpRequestBase;
 import org.apache.http.conn.ClientConnectionManager;
 import org.apache.http.conn.scheme.PlainSocketFactory;
 import org.apache.http.conn.scheme.Scheme;
@@ -95,31 +99,242 @@ public class Utils {
 	}
 
 	public static String readJSONFeedString(String urlString, ArrayList<Pair<String, String>> headers) {
+		FeedResponse<String> response = readFeed(urlString, headers);
+		if(response==null || response.statusCode!=HttpStatus.SC_OK)
+			return null;
+		return response.body;
+	}
+
+	/**
+	 * Reads the feed at the given url and keeps the status code and the cache validators of the
+	 * response, so the caller can make conditional requests with If-None-Match/If-Modified-Since.
+	 * The body is only read when the server answers with 200.
+	 * @param urlString The url to read
+	 * @param headers Extra request headers, may be null
+	 * @return The response or null if the request failed
+	 */
+	public static FeedResponse<String> readFeed(String urlString, ArrayList<Pair<String, String>> headers) {
+		return readFeed(urlString, headers, STRING_BODY);
+	}
+
+	/**
+	 * Same as {@link Utils#readFeed(String, ArrayList)} but hands the body stream to the body reader
+	 * instead of reading it into a string first.
+	 * @param bodyReader Reads the body of a 200 response
+	 * @return The response or null if the request or the body reader failed
+	 */
+	public static <T> FeedResponse<T> readFeed(String urlString, ArrayList<Pair<String, String>> headers, BodyReader<T> bodyReader) {
 		if(urlString==null)
 			return null;
-		String stringResponse = null;
-		DefaultHttpClient httpClient = getDefaultHttpClient();
-		Utils.setHttpTimeoutParams(httpClient);
+		HashMap<String, String> requestHeaders = new HashMap<String, String>();
+		if(headers != null) {
+			for(int i = 0; i<headers.size() ;i++) {
+				requestHeaders.put(headers.get(i).first, headers.get(i).second);
+			}
+		}
+		try {
+			return readFeed(HttpConfigTransport.getDefault(), urlString, requestHeaders, bodyReader);
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+		return null;
+	}
+
+	/**
+	 * Reads the feed at the given url through the transport. The body reader is given the
+	 * decompressed body of a 200 response, other responses are released without reading the body.
+	 * @param transport The transport to fetch with
+	 * @param headers Extra request headers, may be null
+	 * @param bodyReader Reads the body of a 200 response
+	 * @return The response
+	 * @throws IOException If the request or the body reader fails
+	 */
+	public static <T> FeedResponse<T> readFeed(ConfigTransport transport, String urlString, Map<String, String> headers, BodyReader<T> bodyReader) throws IOException {
+		ConfigTransport.Response response = transport.fetch(urlString, headers);
 		try {
-			HttpRequestBase httpRequest = new HttpGet();
-			httpRequest.addHeader("Accept", "application/json");
-			if(headers != null) {
-				for(int i = 0; i<headers.size() ;i++) {
-					httpRequest.addHeader(headers.get(i).first, headers.get(i).second);
+			int statusCode = response.getStatusCode();
+			T body = null;
+			if(statusCode==HttpStatus.SC_OK || statusCode==SC_IM_USED) {
+				InputStream content = response.getBody();
+				if(content!=null) {
+					try {
+						body = bodyReader.read(content);
+					} finally {
+						content.close();
+					}
 				}
 			}
-			httpRequest.setURI(URI.create(urlString));
-			HttpResponse response = httpClient.execute(httpRequest);
-			StatusLine statusLine = response.getStatusLine();
-			int statusCode = statusLine.getStatusCode();
-			if(statusCode==200) {
-				HttpEntity entity = response.getEntity();
-				stringResponse = Utils.stringFromStream(entity.getContent());
+			return new FeedResponse<T>(statusCode, body, response.getHeader(HEADER_ETAG), response.getHeader(HEADER_LAST_MODIFIED), contentLength(response.getHeader(HEADER_CONTENT_LENGTH)), response.getHeader(HEADER_CACHE_CONTROL), response.getHeader(HEADER_DELTA_BASE));
+		} finally {
+			response.close();
+		}
+	}
+
+	/**
+	 * Returns the entity content, decompressed if the server used gzip or deflate content encoding
+	 */
+	public static InputStream decodedContent(HttpEntity entity) throws IOException {
+		InputStream content = entity.getContent();
+		Header encoding = entity.getContentEncoding();
+		if(encoding==null) {
+			return content;
+		}
+		return decodedStream(content, encoding.getValue());
+	}
+
+	/**
+	 * Wraps the stream in a decompressing stream for the given content encoding
+	 * @param contentEncoding The Content-Encoding header value, may be null
+	 */
+	public static InputStream decodedStream(InputStream content, String contentEncoding) throws IOException {
+		if(contentEncoding==null) {
+			return content;
+		}
+		String value = contentEncoding.trim();
+		if("gzip".equalsIgnoreCase(value) || "x-gzip".equalsIgnoreCase(value)) {
+			return new GZIPInputStream(content, DECODE_BUFFER_SIZE);
+		}
+		if("deflate".equalsIgnoreCase(value)) {
+			// Deflate is supposed to be zlib wrapped but some servers send raw deflate data
+			PushbackInputStream pushback = new PushbackInputStream(content, 2);
+			int first = pushback.read();
+			int second = first!=-1 ? pushback.read() : -1;
+			if(second!=-1) {
+				pushback.unread(second);
+			}
+			if(first!=-1) {
+				pushback.unread(first);
+			}
+			// A zlib header has deflate as compression method and is a multiple of 31
+			boolean zlibWrapped = second!=-1 && (first & 0x0f)==8 && ((first << 8) | second) % 31==0;
+			return new InflaterInputStream(pushback, new Inflater(!zlibWrapped), DECODE_BUFFER_SIZE);
+		}
+		return content;
+	}
+
+	private static final int DECODE_BUFFER_SIZE = 8192;
+
+	public static final String HEADER_ETAG = "ETag";
+	public static final String HEADER_LAST_MODIFIED = "Last-Modified";
+	public static final String HEADER_IF_NONE_MATCH = "If-None-Match";
+	public static final String HEADER_IF_MODIFIED_SINCE = "If-Modified-Since";
+	public static final String HEADER_ACCEPT_ENCODING = "Accept-Encoding";
+	public static final String HEADER_CONTENT_LENGTH = "Content-Length";
+	public static final String HEADER_CACHE_CONTROL = "Cache-Control";
+	// Delta encoding (RFC 3229), the client offers merge patches and the server names the version a patch applies to
+	public static final String HEADER_A_IM = "A-IM";
+	public static final String HEADER_DELTA_BASE = "Delta-Base";
+	public static final String IM_MERGE_PATCH = "merge-patch";
+	public static final int SC_IM_USED = 226;
+
+	private static long seconds(String value) {
+		try {
+			return Math.max(0, Long.parseLong(value.replace("\"", "").trim()));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private static long contentLength(String header) {
+		if(header==null) {
+			return -1;
+		}
+		try {
+			return Long.parseLong(header.trim());
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Turns a response body stream into something useful. The stream is closed by the caller.
+	 */
+	public interface BodyReader<T> {
+		public T read(InputStream stream) throws IOException;
+	}
+
+	private static final BodyReader<String> STRING_BODY = new BodyReader<String>() {
+		@Override
+		public String read(InputStream stream) throws IOException {
+			return Utils.stringFromStream(stream);
+		}
+	};
+
+	/**
+	 * The result of {@link Utils#readFeed(String, ArrayList)}. The body is null unless the status code is 200, or 226 for a patch.
+	 */
+	public static class FeedResponse<T> {
+		public final int statusCode;
+		public final T body;
+		public final String eTag;
+		public final String lastModified;
+		// The Content-Length header, -1 if there was none
+		public final long contentLength;
+		// The Cache-Control max-age and stale-while-revalidate directives in seconds, -1 if there were none
+		public final long maxAge;
+		public final long staleWhileRevalidate;
+		// The ETag of the version a 226 patch applies to
+		public final String deltaBase;
+
+		/**
+		 * @param contentLength The Content-Length header, -1 if there was none
+		 * @param cacheControl The Cache-Control header, null if there was none
+		 * @param deltaBase The Delta-Base header of a 226 patch, null otherwise
+		 */
+		public FeedResponse(int statusCode, T body, String eTag, String lastModified, long contentLength, String cacheControl, String deltaBase) {
+			this.statusCode = statusCode;
+			this.deltaBase = deltaBase;
+			this.body = body;
+			this.eTag = eTag;
+			this.lastModified = lastModified;
+			this.contentLength = contentLength;
+			long maxAge = -1;
+			long staleWhileRevalidate = -1;
+			if(cacheControl!=null) {
+				for(String directive : cacheControl.split(",")) {
+					directive = directive.trim().toLowerCase(Locale.US);
+					if(directive.equals("no-cache") || directive.equals("no-store")) {
+						maxAge = 0;
+					} else if(directive.startsWith("max-age=") && maxAge!=0) {
+						maxAge = seconds(directive.substring(8));
+					} else if(directive.startsWith("stale-while-revalidate=")) {
+						staleWhileRevalidate = seconds(directive.substring(23));
+					}
+				}
 			}
+			this.maxAge = maxAge;
+			this.staleWhileRevalidate = staleWhileRevalidate;
+		}
+
+		public boolean isNotModified() {
+			return statusCode==HttpStatus.SC_NOT_MODIFIED;
+		}
+
+		/**
+		 * Returns true if the body is a merge patch to the version named by the delta base
+		 */
+		public boolean isPatch() {
+			return statusCode==SC_IM_USED;
+		}
+	}
+
+	/**
+	 * Returns the socket factory for https connections. On android <2.3.3 phones it's one that doesn't
+	 * verify the ssl hostname, see {@link Utils#getDefaultHttpClient()}.
+	 */
+	static SSLSocketFactory getSSLSocketFactory() {
+		if(android.os.Build.VERSION.SDK_INT > Build.VERSION_CODES.GINGERBREAD_MR1) {
+			return SSLSocketFactory.getSocketFactory();
+		}
+		try {
+			KeyStore trustStore = KeyStore.getInstance(KeyStore.getDefaultType());
+			trustStore.load(null, null);
+			SSLSocketFactory sf = new MySSLSocketFactory(trustStore);
+			sf.setHostnameVerifier(SSLSocketFactory.ALLOW_ALL_HOSTNAME_VERIFIER);
+			return sf;
 		} catch (Exception e) {
-			e.printStackTrace();
-		} 
-		return stringResponse;
+			return SSLSocketFactory.getSocketFactory();
+		}
 	}
 
 	/**
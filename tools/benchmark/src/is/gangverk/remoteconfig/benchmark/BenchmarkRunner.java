@@ -0,0 +1,226 @@
+package is.gangverk.remoteconfig.benchmark;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Measures an operation on one or more threads and prints one JSON object per result. Operations
+ * run in batches sized so a batch takes at least a few microseconds, and the latency percentiles
+ * are over the per-operation time of each batch. Allocation is read from the HotSpot thread
+ * allocation counters and reported as -1 on VMs without them.
+ */
+public class BenchmarkRunner {
+    private static final long MIN_BATCH_NANOS = 20000;
+    private static final int MAX_SAMPLES = 1 << 16;
+
+    /**
+     * The code being measured
+     */
+    public interface Operation {
+        /**
+         * Runs the operation once and returns something derived from the result, so the JIT
+         * can't drop the work
+         *
+         * @param iteration Counts up from 0 on each thread, for picking keys
+         */
+        public int run(int iteration) throws Exception;
+    }
+
+    private final PrintStream mOut;
+    private final long mWarmupMillis;
+    private final long mIterationMillis;
+    private final int mIterations;
+    private volatile int mSink;
+
+    /**
+     * @param out Where the JSON results go
+     * @param warmupMillis How long to run before measuring
+     * @param iterationMillis How long every measurement iteration runs
+     * @param iterations How many measurement iterations to run
+     */
+    public BenchmarkRunner(PrintStream out, long warmupMillis, long iterationMillis, int iterations) {
+        mOut = out;
+        mWarmupMillis = warmupMillis;
+        mIterationMillis = iterationMillis;
+        mIterations = iterations;
+    }
+
+    /**
+     * Measures the operation and prints the result
+     *
+     * @param benchmark The name of the benchmark
+     * @param params The parameters of this run, printed with the result
+     * @param threads How many threads run the operation at the same time
+     * @param operation The operation, it has to be safe to run on several threads when threads is more than 1
+     */
+    public void measure(String benchmark, Map<String, Object> params, int threads, Operation operation) throws Exception {
+        int batch = calibrate(operation);
+        run(operation, threads, batch, mWarmupMillis);
+        Worker[] workers = null;
+        long operations = 0;
+        long elapsed = 0;
+        long allocated = 0;
+        long[] samples = new long[0];
+        for(int i=0;i<mIterations;i++) {
+            long start = System.nanoTime();
+            workers = run(operation, threads, batch, mIterationMillis);
+            elapsed += System.nanoTime() - start;
+            for(Worker worker : workers) {
+                operations += worker.mOperations;
+                allocated = allocated<0 || worker.mAllocated<0 ? -1 : allocated + worker.mAllocated;
+                int offset = samples.length;
+                samples = Arrays.copyOf(samples, offset + worker.mSampleCount);
+                System.arraycopy(worker.mSamples, 0, samples, offset, worker.mSampleCount);
+            }
+        }
+        Arrays.sort(samples);
+
+        LinkedHashMap<String, Object> result = new LinkedHashMap<String, Object>();
+        result.put("benchmark", benchmark);
+        result.putAll(params);
+        result.put("threads", threads);
+        result.put("operations", operations);
+        result.put("opsPerSecond", operations * 1e9 / elapsed);
+        result.put("nsPerOpP50", percentile(samples, 0.5));
+        result.put("nsPerOpP90", percentile(samples, 0.9));
+        result.put("nsPerOpP99", percentile(samples, 0.99));
+        result.put("bytesPerOp", allocated<0 ? -1 : (double)allocated / operations);
+        print(result);
+    }
+
+    /**
+     * Finds a batch size where one batch takes at least MIN_BATCH_NANOS
+     */
+    private int calibrate(Operation operation) throws Exception {
+        int batch = 1;
+        while(true) {
+            long start = System.nanoTime();
+            int sink = 0;
+            for(int i=0;i<batch;i++) {
+                sink += operation.run(i);
+            }
+            mSink += sink;
+            if(System.nanoTime() - start>=MIN_BATCH_NANOS || batch>=1 << 20) {
+                return batch;
+            }
+            batch <<= 1;
+        }
+    }
+
+    private Worker[] run(Operation operation, int threads, int batch, long millis) throws Exception {
+        CountDownLatch start = new CountDownLatch(1);
+        Worker[] workers = new Worker[threads];
+        for(int i=0;i<threads;i++) {
+            workers[i] = new Worker(operation, batch, start);
+            workers[i].start();
+        }
+        long deadline = System.nanoTime() + millis * 1000000L;
+        for(Worker worker : workers) {
+            worker.mDeadline = deadline;
+        }
+        start.countDown();
+        for(Worker worker : workers) {
+            worker.join();
+            if(worker.mError!=null) {
+                throw worker.mError;
+            }
+        }
+        return workers;
+    }
+
+    private final class Worker extends Thread {
+        private final Operation mOperation;
+        private final int mBatch;
+        private final CountDownLatch mStart;
+        private final long[] mSamples = new long[MAX_SAMPLES];
+        private volatile long mDeadline;
+        private int mSampleCount;
+        private long mOperations;
+        private long mAllocated;
+        private Exception mError;
+
+        Worker(Operation operation, int batch, CountDownLatch start) {
+            mOperation = operation;
+            mBatch = batch;
+            mStart = start;
+        }
+
+        @Override
+        public void run() {
+            try {
+                mStart.await();
+                long allocatedBefore = allocatedBytes();
+                int iteration = 0;
+                int sink = 0;
+                long deadline = mDeadline;
+                long now = System.nanoTime();
+                do {
+                    long batchStart = now;
+                    for(int i=0;i<mBatch;i++) {
+                        sink += mOperation.run(iteration++);
+                    }
+                    now = System.nanoTime();
+                    if(mSampleCount<mSamples.length) {
+                        mSamples[mSampleCount++] = (now - batchStart) / mBatch;
+                    }
+                    mOperations += mBatch;
+                } while(now<deadline);
+                long allocatedAfter = allocatedBytes();
+                mAllocated = allocatedBefore<0 ? -1 : allocatedAfter - allocatedBefore;
+                mSink += sink;
+            } catch (Exception e) {
+                mError = e;
+            }
+        }
+    }
+
+    /**
+     * Returns the bytes the current thread has allocated so far, -1 on VMs that don't count them
+     */
+    public static long allocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if(bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean)bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the value at the fraction of a sorted array, -1 if it's empty
+     */
+    public static long percentile(long[] sorted, double fraction) {
+        if(sorted.length==0) return -1;
+        return sorted[Math.min(sorted.length - 1, (int)(sorted.length * fraction))];
+    }
+
+    private void print(Map<String, Object> result) {
+        mOut.println(toJson(result));
+        mOut.flush();
+    }
+
+    /**
+     * Formats a result as the one line JSON object the benchmarks print
+     */
+    public static String toJson(Map<String, Object> result) {
+        StringBuilder line = new StringBuilder("{");
+        for(Map.Entry<String, Object> entry : result.entrySet()) {
+            if(line.length()>1) line.append(',');
+            line.append('"').append(entry.getKey()).append("\":");
+            Object value = entry.getValue();
+            if(value instanceof String) {
+                line.append('"').append(value).append('"');
+            } else if(value instanceof Double) {
+                line.append(String.format(Locale.US, "%.2f", (Double)value));
+            } else {
+                line.append(value);
+            }
+        }
+        return line.append('}').toString();
+    }
+}
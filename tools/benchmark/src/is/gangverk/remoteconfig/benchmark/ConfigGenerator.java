@@ -0,0 +1,156 @@
+package is.gangverk.remoteconfig.benchmark;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Builds synthetic config documents of a given size and shape. Leaves cycle through strings, ints,
+ * longs, doubles and booleans and are spread over nested objects of 16 entries each.
+ */
+public class ConfigGenerator {
+    private static final int FAN_OUT = 16;
+    // Every ARRAY_EVERY-th leaf is an array when arrays are requested
+    private static final int ARRAY_EVERY = 10;
+
+    private final int mKeys;
+    private final int mDepth;
+    private final int mArraySize;
+
+    /**
+     * @param keys The number of leaf values
+     * @param depth The number of object levels a leaf is nested in, 1 for a flat config
+     * @param arraySize The length of the array leaves, 0 for no arrays
+     */
+    public ConfigGenerator(int keys, int depth, int arraySize) {
+        mKeys = keys;
+        mDepth = Math.max(1, depth);
+        mArraySize = arraySize;
+    }
+
+    /**
+     * Returns the flattened key of a leaf
+     */
+    public String keyOf(int leaf) {
+        StringBuilder key = new StringBuilder();
+        int group = leaf / FAN_OUT;
+        for(int level=mDepth-1;level>0;level--) {
+            key.insert(0, "g" + (group % FAN_OUT) + ".");
+            group /= FAN_OUT;
+        }
+        if(mDepth>1 && group>0) {
+            // Wider than FAN_OUT^depth, the first level takes the rest
+            key.insert(0, "w" + group + "_");
+        }
+        return key.append("k").append(leaf).toString();
+    }
+
+    /**
+     * Returns true if the leaf holds an array
+     */
+    public boolean isArray(int leaf) {
+        return mArraySize>0 && leaf % ARRAY_EVERY==ARRAY_EVERY - 1;
+    }
+
+    /**
+     * Returns the keys of the leaves holding strings or ints, for the read benchmarks
+     */
+    public String[] keysOfKind(boolean strings) {
+        ArrayList<String> keys = new ArrayList<String>();
+        for(int leaf=0;leaf<mKeys;leaf++) {
+            if(isArray(leaf)) continue;
+            if(strings ? leaf % 5==0 : leaf % 5==1) {
+                keys.add(keyOf(leaf));
+            }
+        }
+        return keys.toArray(new String[keys.size()]);
+    }
+
+    /**
+     * Returns the document as JSON
+     *
+     * @param revision Changes every tenth value, so two revisions differ like two downloads would
+     */
+    public String generate(int revision) {
+        return build(revision, false);
+    }
+
+    /**
+     * Returns a JSON merge patch that turns any other revision into this one, it has only the
+     * leaves that change between revisions
+     */
+    public String generatePatch(int revision) {
+        return build(revision, true);
+    }
+
+    private String build(int revision, boolean changedOnly) {
+        LinkedHashMap<String, Object> root = new LinkedHashMap<String, Object>();
+        for(int leaf=0;leaf<mKeys;leaf++) {
+            if(changedOnly && leaf % 10!=0) continue;
+            String[] path = keyOf(leaf).split("\\.");
+            Map<String, Object> parent = root;
+            for(int i=0;i<path.length-1;i++) {
+                @SuppressWarnings("unchecked")
+                Map<String, Object> child = (Map<String, Object>)parent.get(path[i]);
+                if(child==null) {
+                    child = new LinkedHashMap<String, Object>();
+                    parent.put(path[i], child);
+                }
+                parent = child;
+            }
+            parent.put(path[path.length-1], valueOf(leaf, leaf % 10==0 ? revision : 0));
+        }
+        StringBuilder json = new StringBuilder();
+        append(json, root);
+        return json.toString();
+    }
+
+    private Object valueOf(int leaf, int revision) {
+        if(isArray(leaf)) {
+            StringBuilder array = new StringBuilder("[");
+            for(int i=0;i<mArraySize;i++) {
+                if(i>0) array.append(',');
+                array.append(leaf + i + revision);
+            }
+            return new RawJson(array.append(']').toString());
+        }
+        switch(leaf % 5) {
+            case 0: return "value " + leaf + " of revision " + revision;
+            case 1: return Integer.valueOf(leaf + revision);
+            case 2: return Long.valueOf(10000000000L + leaf + revision);
+            case 3: return Double.valueOf(leaf + revision + 0.5);
+            default: return Boolean.valueOf((leaf + revision) % 2==0);
+        }
+    }
+
+    private static void append(StringBuilder json, Object value) {
+        if(value instanceof Map) {
+            json.append('{');
+            boolean first = true;
+            for(Map.Entry<?, ?> entry : ((Map<?, ?>)value).entrySet()) {
+                if(!first) json.append(',');
+                first = false;
+                json.append('"').append(entry.getKey()).append("\":");
+                append(json, entry.getValue());
+            }
+            json.append('}');
+        } else if(value instanceof String) {
+            json.append('"').append(value).append('"');
+        } else {
+            json.append(value);
+        }
+    }
+
+    private static final class RawJson {
+        private final String mJson;
+
+        RawJson(String json) {
+            mJson = json;
+        }
+
+        @Override
+        public String toString() {
+            return mJson;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package is.gangverk.remoteconfig.benchmark;
+
+import is.gangverk.remoteconfig.ConfigSnapshot;
+import is.gangverk.remoteconfig.ConfigStore;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Stands in for the SharedPreferences store on a plain JVM. Like SharedPreferences it keeps
+ * everything on the heap and builds the new snapshot by copying the current one with the changes.
+ */
+public class InMemoryConfigStore implements ConfigStore {
+    private final HashMap<String, Object> mMetadata = new HashMap<String, Object>();
+    private ConfigSnapshot mSnapshot = ConfigSnapshot.EMPTY;
+    private String mRawConfig;
+
+    @Override
+    public synchronized ConfigSnapshot load() {
+        return mSnapshot;
+    }
+
+    @Override
+    public synchronized ConfigSnapshot write(ConfigSnapshot current, Map<String, Object> changes, String rawConfig) {
+        mRawConfig = rawConfig;
+        mSnapshot = current.with(changes);
+        return mSnapshot;
+    }
+
+    @Override
+    public synchronized String readRawConfig() {
+        return mRawConfig;
+    }
+
+    @Override
+    public synchronized int getInt(String key, int defaultValue) {
+        Object value = mMetadata.get(key);
+        return value instanceof Integer ? ((Integer)value).intValue() : defaultValue;
+    }
+
+    @Override
+    public synchronized void putInt(String key, int value) {
+        mMetadata.put(key, value);
+    }
+
+    @Override
+    public synchronized long getLong(String key, long defaultValue) {
+        Object value = mMetadata.get(key);
+        return value instanceof Long ? ((Long)value).longValue() : defaultValue;
+    }
+
+    @Override
+    public synchronized void putLong(String key, long value) {
+        mMetadata.put(key, value);
+    }
+
+    @Override
+    public synchronized String getString(String key) {
+        Object value = mMetadata.get(key);
+        return value instanceof String ? (String)value : null;
+    }
+
+    @Override
+    public synchronized void putString(String key, String value) {
+        if(value!=null) {
+            mMetadata.put(key, value);
+        } else {
+            mMetadata.remove(key);
+        }
+    }
+
+    @Override
+    public synchronized void putMetadata(Map<String, Object> metadata) {
+        for(Map.Entry<String, Object> entry : metadata.entrySet()) {
+            if(entry.getValue()!=null) {
+                mMetadata.put(entry.getKey(), entry.getValue());
+            } else {
+                mMetadata.remove(entry.getKey());
+            }
+        }
+    }
+
+    @Override
+    public synchronized void clear() {
+        mMetadata.clear();
+        mSnapshot = ConfigSnapshot.EMPTY;
+        mRawConfig = null;
+    }
+
+    @Override
+    public long sizeOnDisk() {
+        return 0;
+    }
+
+    @Override
+    public void delete() {
+        clear();
+    }
+}
@@ -0,0 +1,211 @@
+package is.gangverk.remoteconfig.benchmark;
+
+import is.gangverk.remoteconfig.ConfigSnapshot;
+import is.gangverk.remoteconfig.ConfigStore;
+import is.gangverk.remoteconfig.FlatConfig;
+import is.gangverk.remoteconfig.MappedConfigStore;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.lang.reflect.Constructor;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Benchmarks the read, flatten and apply paths of the library on a plain JVM. The Android parts
+ * are left out: the SharedPreferences store is replaced by {@link InMemoryConfigStore} and the
+ * apply benchmark does the same diff and write RemoteConfig does when a config is downloaded.
+ * getConfig() is measured by parsing the raw document with org.json when it's on the class path.
+ *
+ * <pre>
+ * java is.gangverk.remoteconfig.benchmark.RemoteConfigBenchmark [--keys 10,1000,10000,100000]
+ *     [--depth 1,4] [--arrays 0,32] [--threads 1,4] [--warmup 1000] [--iteration 1000]
+ *     [--iterations 5] [--filter regex] [--out results.jsonl]
+ * </pre>
+ *
+ * Every result is printed as a JSON object on its own line.
+ */
+public class RemoteConfigBenchmark {
+    private static final int READ_KEYS = 1024;
+
+    public static void main(String[] args) throws Exception {
+        HashMap<String, String> options = new HashMap<String, String>();
+        options.put("keys", "10,1000,10000,100000");
+        options.put("depth", "1,4");
+        options.put("arrays", "0,32");
+        options.put("threads", "1,4");
+        options.put("warmup", "1000");
+        options.put("iteration", "1000");
+        options.put("iterations", "5");
+        options.put("filter", ".*");
+        for(int i=0;i+1<args.length;i+=2) {
+            if(!args[i].startsWith("--") || !options.containsKey(args[i].substring(2)) && !args[i].equals("--out")) {
+                System.err.println("Unknown option " + args[i]);
+                System.exit(1);
+            }
+            options.put(args[i].substring(2), args[i+1]);
+        }
+        PrintStream out = options.containsKey("out") ? new PrintStream(new FileOutputStream(options.get("out"), true), true, "UTF-8") : System.out;
+        BenchmarkRunner runner = new BenchmarkRunner(out, Long.parseLong(options.get("warmup")), Long.parseLong(options.get("iteration")), Integer.parseInt(options.get("iterations")));
+        RemoteConfigBenchmark benchmark = new RemoteConfigBenchmark(runner, Pattern.compile(options.get("filter")), ints(options.get("threads")));
+        for(int keys : ints(options.get("keys"))) {
+            for(int depth : ints(options.get("depth"))) {
+                for(int arraySize : ints(options.get("arrays"))) {
+                    benchmark.run(keys, depth, arraySize);
+                }
+            }
+        }
+        if(out!=System.out) {
+            out.close();
+        }
+    }
+
+    private static int[] ints(String list) {
+        String[] parts = list.split(",");
+        int[] values = new int[parts.length];
+        for(int i=0;i<parts.length;i++) {
+            values[i] = Integer.parseInt(parts[i].trim());
+        }
+        return values;
+    }
+
+    private final BenchmarkRunner mRunner;
+    private final Pattern mFilter;
+    private final int[] mThreads;
+    private final Constructor<?> mJsonObject;
+
+    public RemoteConfigBenchmark(BenchmarkRunner runner, Pattern filter, int[] threads) {
+        mRunner = runner;
+        mFilter = filter;
+        mThreads = threads;
+        Constructor<?> jsonObject = null;
+        try {
+            jsonObject = Class.forName("org.json.JSONObject").getConstructor(String.class);
+        } catch (Exception e) {
+            System.err.println("org.json isn't on the class path, skipping getConfig");
+        }
+        mJsonObject = jsonObject;
+    }
+
+    /**
+     * Runs every benchmark for one config shape
+     */
+    public void run(int keys, int depth, int arraySize) throws Exception {
+        if(keys<5) {
+            throw new IllegalArgumentException("A config needs at least 5 keys to have every value type");
+        }
+        ConfigGenerator generator = new ConfigGenerator(keys, depth, arraySize);
+        final String[] revisions = new String[] {generator.generate(0), generator.generate(1)};
+        final FlatConfig[] configs = new FlatConfig[] {FlatConfig.read(new StringReader(revisions[0])), FlatConfig.read(new StringReader(revisions[1]))};
+        final String[] stringKeys = sample(generator.keysOfKind(true));
+        final String[] intKeys = sample(generator.keysOfKind(false));
+
+        LinkedHashMap<String, Object> params = new LinkedHashMap<String, Object>();
+        params.put("keys", keys);
+        params.put("depth", depth);
+        params.put("arraySize", arraySize);
+        params.put("documentBytes", revisions[0].length());
+
+        if(enabled("flatten")) {
+            mRunner.measure("flatten", params, 1, new BenchmarkRunner.Operation() {
+                @Override
+                public int run(int iteration) throws Exception {
+                    return FlatConfig.read(new StringReader(revisions[iteration & 1])).getValues().size();
+                }
+            });
+        }
+        if(mJsonObject!=null && enabled("getConfig")) {
+            mRunner.measure("getConfig", params, 1, new BenchmarkRunner.Operation() {
+                @Override
+                public int run(int iteration) throws Exception {
+                    return mJsonObject.newInstance(revisions[iteration & 1]).hashCode();
+                }
+            });
+        }
+
+        File directory = createTempDirectory();
+        try {
+            runStore("memory", new InMemoryConfigStore(), configs, stringKeys, intKeys, params);
+            runStore("mapped", new MappedConfigStore(directory, "benchmark"), configs, stringKeys, intKeys, params);
+        } finally {
+            for(File file : directory.listFiles()) {
+                file.delete();
+            }
+            directory.delete();
+        }
+    }
+
+    private void runStore(String name, final ConfigStore store, final FlatConfig[] configs, final String[] stringKeys, final String[] intKeys, Map<String, Object> params) throws Exception {
+        LinkedHashMap<String, Object> storeParams = new LinkedHashMap<String, Object>(params);
+        storeParams.put("store", name);
+        final ConfigSnapshot[] current = new ConfigSnapshot[] {store.write(store.load(), configs[0].getValues(), configs[0].getRaw())};
+
+        if(enabled("apply")) {
+            // Flip between the two revisions, so every apply has the changes a download would have
+            mRunner.measure("apply", storeParams, 1, new BenchmarkRunner.Operation() {
+                @Override
+                public int run(int iteration) throws Exception {
+                    FlatConfig config = configs[(iteration + 1) & 1];
+                    HashMap<String, Object> changes = new HashMap<String, Object>();
+                    for(Map.Entry<String, Object> entry : config.getValues().entrySet()) {
+                        Object value = entry.getValue();
+                        if(ConfigSnapshot.typeOf(value)!=ConfigSnapshot.TYPE_NONE && !value.equals(current[0].get(entry.getKey()))) {
+                            changes.put(entry.getKey(), value);
+                        }
+                    }
+                    current[0] = store.write(current[0], changes, config.getRaw());
+                    return changes.size();
+                }
+            });
+        }
+
+        final ConfigSnapshot snapshot = store.load();
+        for(int threads : mThreads) {
+            if(enabled("getString")) {
+                mRunner.measure("getString", storeParams, threads, new BenchmarkRunner.Operation() {
+                    @Override
+                    public int run(int iteration) {
+                        String value = snapshot.getString(stringKeys[iteration & (READ_KEYS - 1)]);
+                        return value!=null ? value.length() : 0;
+                    }
+                });
+            }
+            if(enabled("getInt")) {
+                mRunner.measure("getInt", storeParams, threads, new BenchmarkRunner.Operation() {
+                    @Override
+                    public int run(int iteration) {
+                        return snapshot.getInt(intKeys[iteration & (READ_KEYS - 1)], -1);
+                    }
+                });
+            }
+        }
+    }
+
+    private boolean enabled(String benchmark) {
+        return mFilter.matcher(benchmark).matches();
+    }
+
+    /**
+     * Spreads the keys over a READ_KEYS long array, so reads can pick one with a mask
+     */
+    private static String[] sample(String[] keys) {
+        String[] sample = new String[READ_KEYS];
+        for(int i=0;i<READ_KEYS;i++) {
+            sample[i] = keys[(int)((long)i * 7919 % keys.length)];
+        }
+        return sample;
+    }
+
+    private static File createTempDirectory() throws IOException {
+        File directory = File.createTempFile("remoteconfig", "benchmark");
+        if(!directory.delete() || !directory.mkdir()) {
+            throw new IOException("Unable to create " + directory);
+        }
+        return directory;
+    }
+}
@@ -0,0 +1,203 @@
+package is.gangverk.remoteconfig.tools;
+
+import is.gangverk.remoteconfig.ConfigSnapshot;
+import is.gangverk.remoteconfig.FlatConfig;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Compiles an rc.json defaults file into a Java class holding the flattened defaults as static
+ * sorted arrays, for {@link is.gangverk.remoteconfig.RemoteConfig#init(android.content.Context, int, is.gangverk.remoteconfig.ConfigSnapshot, String)}.
+ * Run it as a build step before compiling the app:
+ *
+ * <pre>
+ * java is.gangverk.remoteconfig.tools.DefaultsGenerator assets/rc.json gen com.example.app.RemoteConfigDefaults
+ * </pre>
+ *
+ * The generated class has a single DEFAULTS constant. Array contents are assigned in chunks so
+ * big configs don't run into the method size limit of the class initializer.
+ */
+public class DefaultsGenerator {
+    private static final int CHUNK_SIZE = 500;
+    // Keeps string constants well below the 64k constant pool limit
+    private static final int MAX_LITERAL_LENGTH = 8192;
+
+    public static void main(String[] args) throws IOException {
+        if(args.length!=3) {
+            System.err.println("Usage: DefaultsGenerator <rc.json> <output directory> <fully qualified class name>");
+            System.exit(1);
+        }
+        InputStream is = new FileInputStream(args[0]);
+        FlatConfig config;
+        try {
+            config = FlatConfig.read(is);
+        } finally {
+            is.close();
+        }
+        String className = args[2];
+        int dot = className.lastIndexOf('.');
+        String packageName = dot>0 ? className.substring(0, dot) : null;
+        String simpleName = className.substring(dot + 1);
+        File directory = new File(args[1], packageName!=null ? packageName.replace('.', File.separatorChar) : "");
+        directory.mkdirs();
+        Writer writer = new OutputStreamWriter(new FileOutputStream(new File(directory, simpleName + ".java")), "UTF-8");
+        try {
+            writer.write(generate(config.getValues(), packageName, simpleName, new File(args[0]).getName()));
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Returns the source of the defaults class
+     *
+     * @param values The flattened defaults
+     * @param packageName The package of the class, null for the default package
+     * @param simpleName The name of the class
+     * @param source The name of the file the defaults came from, for the header comment
+     */
+    public static String generate(Map<String, Object> values, String packageName, String simpleName, String source) {
+        TreeMap<String, Object> sorted = new TreeMap<String, Object>();
+        for(Map.Entry<String, Object> entry : values.entrySet()) {
+            if(ConfigSnapshot.typeOf(entry.getValue())!=ConfigSnapshot.TYPE_NONE) {
+                sorted.put(entry.getKey(), entry.getValue());
+            }
+        }
+        String[] keys = sorted.keySet().toArray(new String[sorted.size()]);
+        Object[] entries = sorted.values().toArray();
+
+        StringBuilder out = new StringBuilder();
+        out.append("// Generated by DefaultsGenerator from ").append(source).append(", do not edit\n");
+        if(packageName!=null) {
+            out.append("package ").append(packageName).append(";\n\n");
+        }
+        out.append("import is.gangverk.remoteconfig.CompiledDefaults;\n\n");
+        out.append("public final class ").append(simpleName).append(" {\n");
+        out.append("    public static final CompiledDefaults DEFAULTS = new CompiledDefaults(keys(), types(), primitives(), strings());\n\n");
+        out.append("    private ").append(simpleName).append("() {}\n");
+
+        int chunks = (keys.length + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        appendArray(out, "keys", "String", keys.length, chunks);
+        appendArray(out, "types", "byte", keys.length, chunks);
+        appendArray(out, "primitives", "long", keys.length, chunks);
+        appendArray(out, "strings", "String", keys.length, chunks);
+        boolean needsJoin = false;
+        for(int chunk=0;chunk<chunks;chunk++) {
+            int start = chunk * CHUNK_SIZE;
+            int end = Math.min(keys.length, start + CHUNK_SIZE);
+            out.append("\n    private static void keys").append(chunk).append("(String[] a) {\n");
+            for(int i=start;i<end;i++) {
+                out.append("        a[").append(i).append("] = ");
+                needsJoin |= appendString(out, keys[i]);
+                out.append(";\n");
+            }
+            out.append("    }\n");
+            out.append("\n    private static void types").append(chunk).append("(byte[] a) {\n");
+            for(int i=start;i<end;i++) {
+                out.append("        a[").append(i).append("] = ").append(ConfigSnapshot.typeOf(entries[i])).append(";\n");
+            }
+            out.append("    }\n");
+            out.append("\n    private static void primitives").append(chunk).append("(long[] a) {\n");
+            for(int i=start;i<end;i++) {
+                Object value = entries[i];
+                long bits;
+                if(value instanceof Integer || value instanceof Long) {
+                    bits = ((Number)value).longValue();
+                } else if(value instanceof Double) {
+                    bits = Double.doubleToRawLongBits(((Double)value).doubleValue());
+                } else if(value instanceof Boolean) {
+                    bits = ((Boolean)value).booleanValue() ? 1 : 0;
+                } else {
+                    continue;
+                }
+                out.append("        a[").append(i).append("] = ").append(bits).append("L;");
+                if(value instanceof Double) {
+                    out.append(" // ").append(value);
+                }
+                out.append("\n");
+            }
+            out.append("    }\n");
+            out.append("\n    private static void strings").append(chunk).append("(String[] a) {\n");
+            for(int i=start;i<end;i++) {
+                if(entries[i] instanceof String) {
+                    out.append("        a[").append(i).append("] = ");
+                    needsJoin |= appendString(out, (String)entries[i]);
+                    out.append(";\n");
+                }
+            }
+            out.append("    }\n");
+        }
+        if(needsJoin) {
+            out.append("\n    private static String join(String... parts) {\n");
+            out.append("        StringBuilder builder = new StringBuilder();\n");
+            out.append("        for(String part : parts) {\n");
+            out.append("            builder.append(part);\n");
+            out.append("        }\n");
+            out.append("        return builder.toString();\n");
+            out.append("    }\n");
+        }
+        out.append("}\n");
+        return out.toString();
+    }
+
+    private static void appendArray(StringBuilder out, String name, String type, int length, int chunks) {
+        out.append("\n    private static ").append(type).append("[] ").append(name).append("() {\n");
+        out.append("        ").append(type).append("[] a = new ").append(type).append("[").append(length).append("];\n");
+        for(int chunk=0;chunk<chunks;chunk++) {
+            out.append("        ").append(name).append(chunk).append("(a);\n");
+        }
+        out.append("        return a;\n");
+        out.append("    }\n");
+    }
+
+    /**
+     * Appends the string as a Java expression, returns true if it had to be split into a join call
+     */
+    private static boolean appendString(StringBuilder out, String value) {
+        if(value.length()<=MAX_LITERAL_LENGTH) {
+            appendLiteral(out, value);
+            return false;
+        }
+        out.append("join(");
+        for(int start=0;start<value.length();start+=MAX_LITERAL_LENGTH) {
+            if(start>0) {
+                out.append(", ");
+            }
+            appendLiteral(out, value.substring(start, Math.min(value.length(), start + MAX_LITERAL_LENGTH)));
+        }
+        out.append(")");
+        return true;
+    }
+
+    private static void appendLiteral(StringBuilder out, String value) {
+        out.append('"');
+        for(int i=0;i<value.length();i++) {
+            char c = value.charAt(i);
+            switch(c) {
+                case '"': out.append("\\\""); break;
+                case '\\': out.append("\\\\"); break;
+                case '\n': out.append("\\n"); break;
+                case '\r': out.append("\\r"); break;
+                case '\t': out.append("\\t"); break;
+                default:
+                    if(c<0x20) {
+                        // Octal, unicode escapes of line breaks would end the literal
+                        out.append(String.format("\\%03o", (int)c));
+                    } else if(c>0x7e) {
+                        out.append(String.format("\\u%04x", (int)c));
+                    } else {
+                        out.append(c);
+                    }
+            }
+        }
+        out.append('"');
+    }
+}
@@ -0,0 +1,98 @@
+package is.gangverk.remoteconfig;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.Random;
+
+/**
+ * One simulated install for the fleet load test. It fetches with the same {@link ConfigFetch}
+ * RemoteConfig uses, applies full documents and merge patches to its store with the same
+ * {@link ConfigApply}, and works out its next refresh the same way, refresh jitter included.
+ * Listeners, the snapshot readers see and everything else that needs Android are left out. It's in
+ * the library package to reach those package private parts.
+ */
+public class FleetClient {
+    private final ConfigTransport mTransport;
+    private final URL mLocation;
+    private final ConfigStore mStore;
+    private final RemoteConfigMetrics mMetrics;
+    private final double mJitter;
+    private final Random mRandom;
+    private ConfigSnapshot mStored;
+    // The object hashes of the last full document, null after a patch
+    private ConfigHashTree mHashTree;
+
+    /**
+     * @param transport What the client fetches with
+     * @param location The config location
+     * @param store Where the client keeps its config
+     * @param metrics Where the fetch and apply timings go, may be null
+     * @param jitter The refresh jitter, as given to {@link RemoteConfig#setRefreshJitter(double)}
+     * @param random Draws the jitter
+     */
+    public FleetClient(ConfigTransport transport, String location, ConfigStore store, RemoteConfigMetrics metrics, double jitter, Random random) throws IOException {
+        mTransport = transport;
+        mLocation = new URL(location);
+        mStore = store;
+        mMetrics = metrics;
+        mJitter = jitter;
+        mRandom = random;
+        mStored = store.load();
+    }
+
+    /**
+     * Fetches the config and applies it, as RemoteConfig does when its config has expired
+     *
+     * @return The status code of the response
+     * @throws IOException If the fetch fails, the body can't be parsed or a patch doesn't apply
+     */
+    public synchronized int refresh() throws IOException {
+        ConfigFetch.Result result = new ConfigFetch(mTransport, mLocation, null, mStore, mMetrics).call();
+        if(result==null) {
+            throw new IOException("Unable to read remote config");
+        }
+        long jitter = Freshness.drawJitter(mJitter, mRandom);
+        if(result.config==null) {
+            ConfigApply.storeNotModified(mStore, result.response, jitter);
+            return result.response.statusCode;
+        }
+        ConfigApply applied;
+        if(result.response.isPatch()) {
+            try {
+                applied = ConfigApply.patch(mStore, mStored, result.config);
+            } catch (IOException e) {
+                ConfigApply.forgetVersion(mStore);
+                throw e;
+            }
+            if(applied==null) {
+                ConfigApply.forgetVersion(mStore);
+                throw new IOException("A patch without a stored document");
+            }
+        } else {
+            applied = ConfigApply.document(mStore, mStored, mHashTree, result.config);
+        }
+        mStored = applied.written;
+        mHashTree = applied.hashTree;
+        ConfigApply.storeDownload(mStore, result.response, jitter);
+        if(mMetrics!=null) {
+            mMetrics.onApply(result.config.getValues().size(), applied.changes.size(), applied.diffNanos, applied.persistNanos, 0);
+        }
+        return result.response.statusCode;
+    }
+
+    /**
+     * Returns when the stored config expires and the client refreshes again
+     *
+     * @param updateInterval The lifetime of a response without a max-age, in milliseconds
+     */
+    public synchronized long expiryTime(long updateInterval) {
+        return Freshness.expiryTime(mStore, updateInterval);
+    }
+
+    /**
+     * Returns the number of values the client has stored
+     */
+    public synchronized int size() {
+        return mStored.size();
+    }
+}
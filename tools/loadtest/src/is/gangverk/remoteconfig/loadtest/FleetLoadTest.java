@@ -0,0 +1,281 @@
+package is.gangverk.remoteconfig.loadtest;
+
+import is.gangverk.remoteconfig.FleetClient;
+import is.gangverk.remoteconfig.RemoteConfigMetrics;
+import is.gangverk.remoteconfig.benchmark.BenchmarkRunner;
+import is.gangverk.remoteconfig.benchmark.ConfigGenerator;
+import is.gangverk.remoteconfig.benchmark.InMemoryConfigStore;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Simulates a fleet of installs refreshing their config against a {@link StubConfigServer} on
+ * localhost. Every client runs the library's fetch, parse and apply code through
+ * {@link FleetClient}, and schedules its next refresh for when its config expires, refresh jitter
+ * included. All clients start at the same time, like a fleet picking up a release, and the server
+ * publishes a new revision every release interval.
+ *
+ * <pre>
+ * java is.gangverk.remoteconfig.loadtest.FleetLoadTest [--clients 2000] [--threads 64]
+ *     [--duration 20000] [--lifetime 4000] [--release 6000] [--jitter 0,0.5] [--keys 1000]
+ *     [--depth 2] [--gzip true] [--patches true] [--window 100] [--out results.jsonl]
+ * </pre>
+ *
+ * One JSON result is printed per jitter value. Next to the throughput, latency percentiles, bytes
+ * and allocation per refresh it has the request count of the busiest window and of the busiest
+ * window after the first lifetime, which is where jitter makes the difference.
+ */
+public class FleetLoadTest {
+    public static void main(String[] args) throws Exception {
+        HashMap<String, String> options = new HashMap<String, String>();
+        options.put("clients", "2000");
+        options.put("threads", "64");
+        options.put("duration", "20000");
+        options.put("lifetime", "4000");
+        options.put("release", "6000");
+        options.put("jitter", "0,0.5");
+        options.put("keys", "1000");
+        options.put("depth", "2");
+        options.put("gzip", "true");
+        options.put("patches", "true");
+        options.put("window", "100");
+        for(int i=0;i+1<args.length;i+=2) {
+            if(!args[i].startsWith("--") || !options.containsKey(args[i].substring(2)) && !args[i].equals("--out")) {
+                System.err.println("Unknown option " + args[i]);
+                System.exit(1);
+            }
+            options.put(args[i].substring(2), args[i+1]);
+        }
+        int threads = Integer.parseInt(options.get("threads"));
+        // The JDK keeps 5 idle connections per host unless told otherwise
+        System.setProperty("http.maxConnections", String.valueOf(threads));
+        PrintStream out = options.containsKey("out") ? new PrintStream(new FileOutputStream(options.get("out"), true), true, "UTF-8") : System.out;
+        FleetLoadTest loadTest = new FleetLoadTest(out, Integer.parseInt(options.get("clients")), threads,
+                Long.parseLong(options.get("duration")), Long.parseLong(options.get("lifetime")), Long.parseLong(options.get("release")),
+                new ConfigGenerator(Integer.parseInt(options.get("keys")), Integer.parseInt(options.get("depth")), 0),
+                Boolean.parseBoolean(options.get("gzip")), Boolean.parseBoolean(options.get("patches")), Long.parseLong(options.get("window")));
+        LinkedHashMap<String, Object> params = new LinkedHashMap<String, Object>();
+        params.put("keys", Integer.parseInt(options.get("keys")));
+        params.put("depth", Integer.parseInt(options.get("depth")));
+        params.put("gzip", Boolean.parseBoolean(options.get("gzip")));
+        params.put("patches", Boolean.parseBoolean(options.get("patches")));
+        for(String jitter : options.get("jitter").split(",")) {
+            loadTest.run(Double.parseDouble(jitter.trim()), params);
+        }
+        if(out!=System.out) {
+            out.close();
+        }
+    }
+
+    private final PrintStream mOut;
+    private final int mClients;
+    private final int mThreads;
+    private final long mDuration;
+    private final long mLifetime;
+    private final long mRelease;
+    private final ConfigGenerator mGenerator;
+    private final boolean mGzip;
+    private final boolean mPatches;
+    private final long mWindow;
+
+    /**
+     * @param out Where the JSON results go
+     * @param clients How many installs to simulate
+     * @param threads How many refreshes run at the same time, on the clients and on the server
+     * @param duration How long a run takes in milliseconds
+     * @param lifetime How long a download is fresh in milliseconds, the update interval of the clients
+     * @param release How often the server publishes a new revision in milliseconds
+     * @param generator Generates the documents the server serves
+     * @param gzip True to have the server gzip its responses
+     * @param patches True to have the server send merge patches
+     * @param window The length of the windows requests are counted in, in milliseconds
+     */
+    public FleetLoadTest(PrintStream out, int clients, int threads, long duration, long lifetime, long release, ConfigGenerator generator, boolean gzip, boolean patches, long window) {
+        mOut = out;
+        mClients = clients;
+        mThreads = threads;
+        mDuration = duration;
+        mLifetime = lifetime;
+        mRelease = release;
+        mGenerator = generator;
+        mGzip = gzip;
+        mPatches = patches;
+        mWindow = window;
+    }
+
+    /**
+     * Runs the fleet with one jitter and prints the result
+     *
+     * @param jitter The refresh jitter every client uses
+     * @param params The parameters of this run, printed with the result
+     */
+    public void run(double jitter, LinkedHashMap<String, Object> params) throws Exception {
+        final StubConfigServer server = new StubConfigServer(mGenerator, mGzip, mPatches, -1, mThreads, mWindow, (int)(mDuration / mWindow) + 1);
+        final FleetMetrics metrics = new FleetMetrics();
+        final Samples latencies = new Samples();
+        final AtomicLong allocated = new AtomicLong();
+        final AtomicInteger errors = new AtomicInteger();
+        final ScheduledExecutorService clientExecutor = Executors.newScheduledThreadPool(mThreads);
+        ScheduledExecutorService releaseExecutor = Executors.newSingleThreadScheduledExecutor();
+        UrlConnectionTransport transport = new UrlConnectionTransport(30000);
+        server.start();
+        final long end = System.currentTimeMillis() + mDuration;
+        try {
+            Random seeds = new Random(42);
+            for(int i=0;i<mClients;i++) {
+                final FleetClient client = new FleetClient(transport, server.getLocation(), new InMemoryConfigStore(), metrics, jitter, new Random(seeds.nextLong()));
+                clientExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        long allocatedBefore = BenchmarkRunner.allocatedBytes();
+                        long start = System.nanoTime();
+                        long next;
+                        try {
+                            client.refresh();
+                            next = client.expiryTime(mLifetime) - System.currentTimeMillis();
+                        } catch (IOException e) {
+                            errors.incrementAndGet();
+                            next = mLifetime;
+                        } catch (RuntimeException e) {
+                            // The executor would drop it without a word
+                            e.printStackTrace();
+                            errors.incrementAndGet();
+                            next = mLifetime;
+                        }
+                        latencies.add(System.nanoTime() - start);
+                        long allocatedAfter = BenchmarkRunner.allocatedBytes();
+                        allocated.addAndGet(allocatedBefore<0 ? 0 : allocatedAfter - allocatedBefore);
+                        if(System.currentTimeMillis() + next<end) {
+                            clientExecutor.schedule(this, Math.max(0, next), TimeUnit.MILLISECONDS);
+                        }
+                    }
+                });
+            }
+            releaseExecutor.scheduleAtFixedRate(new Runnable() {
+                private int mRevision;
+
+                @Override
+                public void run() {
+                    try {
+                        server.publish(++mRevision);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }, mRelease, mRelease, TimeUnit.MILLISECONDS);
+            Thread.sleep(mDuration);
+        } finally {
+            releaseExecutor.shutdownNow();
+            clientExecutor.shutdown();
+            clientExecutor.awaitTermination(1, TimeUnit.MINUTES);
+            server.stop();
+        }
+
+        long[] samples = latencies.sorted();
+        int[] windows = server.getWindows();
+        int requests = samples.length;
+        LinkedHashMap<String, Object> result = new LinkedHashMap<String, Object>();
+        result.put("benchmark", "fleet");
+        result.putAll(params);
+        result.put("clients", mClients);
+        result.put("threads", mThreads);
+        result.put("lifetimeMillis", mLifetime);
+        result.put("releaseMillis", mRelease);
+        result.put("jitter", jitter);
+        result.put("refreshes", requests);
+        result.put("errors", errors.get());
+        result.put("fullResponses", server.getFullResponses());
+        result.put("notModifiedResponses", server.getNotModifiedResponses());
+        result.put("patchResponses", server.getPatchResponses());
+        result.put("refreshesPerSecond", requests * 1000.0 / mDuration);
+        result.put("nsPerRefreshP50", BenchmarkRunner.percentile(samples, 0.5));
+        result.put("nsPerRefreshP90", BenchmarkRunner.percentile(samples, 0.9));
+        result.put("nsPerRefreshP99", BenchmarkRunner.percentile(samples, 0.99));
+        result.put("transferredBytes", server.getBytesSent());
+        result.put("bodyBytes", metrics.mBodyBytes.get());
+        result.put("changedKeys", metrics.mChangedKeys.get());
+        result.put("bytesAllocatedPerRefresh", requests>0 ? (double)allocated.get() / requests : 0.0);
+        result.put("windowMillis", mWindow);
+        result.put("peakRequestsPerWindow", max(windows, 0));
+        // The first wave is every client at once whatever the jitter, the waves after it are what jitter spreads
+        result.put("peakRequestsPerWindowAfterFirstLifetime", max(windows, (int)(mLifetime / mWindow)));
+        result.put("meanRequestsPerWindow", (double)sum(windows) / windows.length);
+        result.put("peakInFlight", server.getPeakInFlight());
+        mOut.println(BenchmarkRunner.toJson(result));
+        mOut.flush();
+    }
+
+    private static int max(int[] values, int from) {
+        int max = 0;
+        for(int i=from;i<values.length;i++) {
+            max = Math.max(max, values[i]);
+        }
+        return max;
+    }
+
+    private static long sum(int[] values) {
+        long sum = 0;
+        for(int value : values) {
+            sum += value;
+        }
+        return sum;
+    }
+
+    /**
+     * Collects latencies from every client thread
+     */
+    private static final class Samples {
+        private long[] mSamples = new long[1024];
+        private int mCount;
+
+        synchronized void add(long sample) {
+            if(mCount==mSamples.length) {
+                mSamples = Arrays.copyOf(mSamples, mCount * 2);
+            }
+            mSamples[mCount++] = sample;
+        }
+
+        synchronized long[] sorted() {
+            long[] sorted = Arrays.copyOf(mSamples, mCount);
+            Arrays.sort(sorted);
+            return sorted;
+        }
+    }
+
+    /**
+     * Adds up what the clients report
+     */
+    private static final class FleetMetrics implements RemoteConfigMetrics {
+        final AtomicLong mBodyBytes = new AtomicLong();
+        final AtomicLong mChangedKeys = new AtomicLong();
+
+        @Override
+        public void onFetch(String location, int statusCode, long transferredBytes, long bodyBytes, long networkNanos, long parseNanos) {
+            mBodyBytes.addAndGet(bodyBytes);
+        }
+
+        @Override
+        public void onApply(int keys, int changedKeys, long diffNanos, long persistNanos, long enqueueNanos) {
+            mChangedKeys.addAndGet(changedKeys);
+        }
+
+        @Override
+        public void onRead(String key, boolean hit) {
+        }
+
+        @Override
+        public void onError(String stage, Throwable error) {
+        }
+    }
+}
@@ -0,0 +1,258 @@
+package is.gangverk.remoteconfig.loadtest;
+
+import is.gangverk.remoteconfig.benchmark.ConfigGenerator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves generated config documents on localhost the way a config endpoint would. A request whose
+ * If-None-Match names the current revision gets a 304, one that names an older revision and sends
+ * "A-IM: merge-patch" gets a 226 merge patch when patches are on, and everything else gets the full
+ * document. Bodies are gzipped for clients that accept it when gzip is on, or deflated when the
+ * encoding is set to deflate. Every request is counted in time windows, so the load a fleet puts on
+ * the endpoint can be seen over time.
+ */
+public class StubConfigServer {
+    public static final int ENCODING_IDENTITY = 0;
+    public static final int ENCODING_GZIP = 1;
+    // Deflate data in a zlib wrapper, as the spec says
+    public static final int ENCODING_DEFLATE = 2;
+    // Raw deflate data, which some servers send as deflate
+    public static final int ENCODING_RAW_DEFLATE = 3;
+
+    private static final String PATH = "/rc.json";
+
+    private final ConfigGenerator mGenerator;
+    private volatile int mEncoding;
+    private final boolean mPatches;
+    private final long mMaxAge;
+    private final long mWindowMillis;
+    private final HttpServer mServer;
+    private final ExecutorService mExecutor;
+    private volatile Revision mRevision;
+    private volatile String mDeltaBase;
+    private volatile long mStart;
+    private final AtomicIntegerArray mWindows;
+    private final AtomicInteger mInFlight = new AtomicInteger();
+    private final AtomicInteger mPeakInFlight = new AtomicInteger();
+    private final AtomicLong mBytesSent = new AtomicLong();
+    private final AtomicInteger mFull = new AtomicInteger();
+    private final AtomicInteger mNotModified = new AtomicInteger();
+    private final AtomicInteger mPatched = new AtomicInteger();
+
+    /**
+     * @param generator Generates the documents and patches
+     * @param gzip True to gzip bodies for clients that accept it
+     * @param patches True to answer with merge patches when the client asks for them
+     * @param maxAge The Cache-Control max-age in seconds, -1 to send none
+     * @param threads How many requests are handled at the same time
+     * @param windowMillis How long the windows requests are counted in are
+     * @param windows How many windows to count, requests after the last one are counted in it
+     */
+    public StubConfigServer(ConfigGenerator generator, boolean gzip, boolean patches, long maxAge, int threads, long windowMillis, int windows) throws IOException {
+        mGenerator = generator;
+        mEncoding = gzip ? ENCODING_GZIP : ENCODING_IDENTITY;
+        mPatches = patches;
+        mMaxAge = maxAge;
+        mWindowMillis = windowMillis;
+        mWindows = new AtomicIntegerArray(Math.max(1, windows));
+        publish(0);
+        mServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1024);
+        mExecutor = Executors.newFixedThreadPool(threads);
+        mServer.setExecutor(mExecutor);
+        mServer.createContext(PATH, new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                serve(exchange);
+            }
+        });
+    }
+
+    public void start() {
+        mStart = System.currentTimeMillis();
+        mServer.start();
+    }
+
+    public void stop() {
+        mServer.stop(0);
+        mExecutor.shutdownNow();
+    }
+
+    public String getLocation() {
+        return "http://127.0.0.1:" + mServer.getAddress().getPort() + PATH;
+    }
+
+    /**
+     * Makes the revision the one served, like a release of a new config
+     */
+    public void publish(int revision) throws IOException {
+        mRevision = new Revision(revision, mGenerator.generate(revision), mGenerator.generatePatch(revision), mEncoding);
+    }
+
+    /**
+     * Sets how bodies are encoded for clients that accept it, one of the ENCODING_* constants
+     */
+    public void setEncoding(int encoding) throws IOException {
+        mEncoding = encoding;
+        publish(mRevision.mNumber);
+    }
+
+    /**
+     * Sends this Delta-Base with patches instead of the ETag the client has, like a server that
+     * answers with a patch to some other version. Null to send the ETag the client has.
+     */
+    public void setDeltaBase(String deltaBase) {
+        mDeltaBase = deltaBase;
+    }
+
+    /**
+     * Returns the ETag of the revision being served
+     */
+    public String getETag() {
+        return mRevision.mETag;
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        int inFlight = mInFlight.incrementAndGet();
+        try {
+            int peak;
+            while(inFlight>(peak = mPeakInFlight.get()) && !mPeakInFlight.compareAndSet(peak, inFlight));
+            int window = (int)((System.currentTimeMillis() - mStart) / mWindowMillis);
+            mWindows.incrementAndGet(Math.min(Math.max(0, window), mWindows.length() - 1));
+
+            Revision revision = mRevision;
+            String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+            String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+            String acceptIm = exchange.getRequestHeaders().getFirst("A-IM");
+            String encoding = revision.mEncoding;
+            boolean encoded = encoding!=null && acceptEncoding!=null && acceptEncoding.contains(encoding);
+            exchange.getResponseHeaders().set("ETag", revision.mETag);
+            if(mMaxAge>=0) {
+                exchange.getResponseHeaders().set("Cache-Control", "max-age=" + mMaxAge);
+            }
+            if(revision.mETag.equals(ifNoneMatch)) {
+                mNotModified.incrementAndGet();
+                exchange.sendResponseHeaders(304, -1);
+                return;
+            }
+            byte[] body;
+            int status;
+            if(mPatches && ifNoneMatch!=null && acceptIm!=null && acceptIm.contains("merge-patch")) {
+                // A patch of a revision has every changing leaf, so it applies to any older revision
+                mPatched.incrementAndGet();
+                status = 226;
+                exchange.getResponseHeaders().set("IM", "merge-patch");
+                String deltaBase = mDeltaBase;
+                exchange.getResponseHeaders().set("Delta-Base", deltaBase!=null ? deltaBase : ifNoneMatch);
+                body = encoded ? revision.mEncodedPatch : revision.mPatch;
+            } else {
+                mFull.incrementAndGet();
+                status = 200;
+                body = encoded ? revision.mEncodedDocument : revision.mDocument;
+            }
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            if(encoded) {
+                exchange.getResponseHeaders().set("Content-Encoding", encoding);
+            }
+            exchange.sendResponseHeaders(status, body.length);
+            OutputStream out = exchange.getResponseBody();
+            out.write(body);
+            out.close();
+            mBytesSent.addAndGet(body.length);
+        } finally {
+            mInFlight.decrementAndGet();
+            exchange.close();
+        }
+    }
+
+    /**
+     * Returns the number of requests in each window since the server was started
+     */
+    public int[] getWindows() {
+        int[] windows = new int[mWindows.length()];
+        for(int i=0;i<windows.length;i++) {
+            windows[i] = mWindows.get(i);
+        }
+        return windows;
+    }
+
+    public int getPeakInFlight() {
+        return mPeakInFlight.get();
+    }
+
+    /**
+     * Returns the body bytes sent, compressed when an encoding was used
+     */
+    public long getBytesSent() {
+        return mBytesSent.get();
+    }
+
+    public int getFullResponses() {
+        return mFull.get();
+    }
+
+    public int getNotModifiedResponses() {
+        return mNotModified.get();
+    }
+
+    public int getPatchResponses() {
+        return mPatched.get();
+    }
+
+    private static final class Revision {
+        final int mNumber;
+        final String mETag;
+        // The Content-Encoding of the encoded bodies, null for none
+        final String mEncoding;
+        final byte[] mDocument;
+        final byte[] mEncodedDocument;
+        final byte[] mPatch;
+        final byte[] mEncodedPatch;
+
+        Revision(int revision, String document, String patch, int encoding) throws IOException {
+            mNumber = revision;
+            mETag = "\"r" + revision + "\"";
+            mEncoding = encoding==ENCODING_GZIP ? "gzip" : encoding==ENCODING_IDENTITY ? null : "deflate";
+            mDocument = document.getBytes("UTF-8");
+            mEncodedDocument = encode(mDocument, encoding);
+            mPatch = patch.getBytes("UTF-8");
+            mEncodedPatch = encode(mPatch, encoding);
+        }
+
+        private static byte[] encode(byte[] bytes, int encoding) throws IOException {
+            if(encoding==ENCODING_IDENTITY) {
+                return bytes;
+            }
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream(bytes.length / 4);
+            if(encoding==ENCODING_GZIP) {
+                GZIPOutputStream out = new GZIPOutputStream(buffer);
+                out.write(bytes);
+                out.close();
+            } else {
+                Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, encoding==ENCODING_RAW_DEFLATE);
+                DeflaterOutputStream out = new DeflaterOutputStream(buffer, deflater);
+                out.write(bytes);
+                out.close();
+                // A deflater that was handed in isn't ended by the stream
+                deflater.end();
+            }
+            return buffer.toByteArray();
+        }
+    }
+}
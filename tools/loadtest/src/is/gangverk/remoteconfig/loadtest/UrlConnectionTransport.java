@@ -0,0 +1,93 @@
+package is.gangverk.remoteconfig.loadtest;
+
+import is.gangverk.remoteconfig.ConfigTransport;
+import is.gangverk.remoteconfig.Utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Map;
+
+/**
+ * Stands in for {@link is.gangverk.remoteconfig.HttpConfigTransport} on a plain JVM, which has no
+ * Android build info for its socket factory. Connections are kept alive and pooled by the JDK, and
+ * bodies are decompressed with the same code the library uses.
+ */
+public class UrlConnectionTransport implements ConfigTransport {
+    private final int mTimeout;
+
+    /**
+     * @param timeout Milliseconds to wait for a connection and for data
+     */
+    public UrlConnectionTransport(int timeout) {
+        mTimeout = timeout;
+    }
+
+    @Override
+    public Response fetch(String location, Map<String, String> headers) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection)new URL(location).openConnection();
+        connection.setConnectTimeout(mTimeout);
+        connection.setReadTimeout(mTimeout);
+        connection.setRequestProperty("Accept", "application/json");
+        connection.setRequestProperty(Utils.HEADER_ACCEPT_ENCODING, "gzip, deflate");
+        if(headers!=null) {
+            for(Map.Entry<String, String> header : headers.entrySet()) {
+                connection.setRequestProperty(header.getKey(), header.getValue());
+            }
+        }
+        return new ConnectionResponse(connection, connection.getResponseCode());
+    }
+
+    private static class ConnectionResponse implements Response {
+        private final HttpURLConnection mConnection;
+        private final int mStatusCode;
+        private InputStream mBody;
+
+        ConnectionResponse(HttpURLConnection connection, int statusCode) {
+            mConnection = connection;
+            mStatusCode = statusCode;
+        }
+
+        @Override
+        public int getStatusCode() {
+            return mStatusCode;
+        }
+
+        @Override
+        public String getHeader(String name) {
+            return mConnection.getHeaderField(name);
+        }
+
+        @Override
+        public InputStream getBody() throws IOException {
+            if(mBody==null) {
+                InputStream content = mStatusCode<400 ? mConnection.getInputStream() : mConnection.getErrorStream();
+                if(content==null) {
+                    return null;
+                }
+                mBody = Utils.decodedStream(content, mConnection.getContentEncoding());
+            }
+            return mBody;
+        }
+
+        @Override
+        public void close() {
+            try {
+                if(mBody==null) {
+                    // Nobody read the body, read it so the connection can go back to the pool
+                    InputStream body = getBody();
+                    if(body!=null) {
+                        byte[] buffer = new byte[4096];
+                        while(body.read(buffer)!=-1);
+                    }
+                }
+                if(mBody!=null) {
+                    mBody.close();
+                }
+            } catch (IOException e) {
+                mConnection.disconnect();
+            }
+        }
+    }
+}
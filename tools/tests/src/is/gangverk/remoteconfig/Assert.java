@@ -0,0 +1,38 @@
+package is.gangverk.remoteconfig;
+
+/**
+ * The checks the tests make. A failed check throws an AssertionError, which {@link RunTests}
+ * reports with the test it failed in.
+ */
+public final class Assert {
+    private Assert() {
+    }
+
+    public static void assertEquals(Object expected, Object actual) {
+        if(expected==null ? actual!=null : !expected.equals(actual)) {
+            fail("Expected <" + expected + "> but was <" + actual + ">");
+        }
+    }
+
+    public static void assertEquals(long expected, long actual) {
+        if(expected!=actual) {
+            fail("Expected <" + expected + "> but was <" + actual + ">");
+        }
+    }
+
+    public static void assertTrue(String message, boolean condition) {
+        if(!condition) {
+            fail(message);
+        }
+    }
+
+    public static void assertNull(Object actual) {
+        if(actual!=null) {
+            fail("Expected null but was <" + actual + ">");
+        }
+    }
+
+    public static void fail(String message) {
+        throw new AssertionError(message);
+    }
+}
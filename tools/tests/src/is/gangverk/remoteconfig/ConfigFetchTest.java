@@ -0,0 +1,225 @@
+package is.gangverk.remoteconfig;
+
+import static is.gangverk.remoteconfig.Assert.assertEquals;
+import static is.gangverk.remoteconfig.Assert.assertTrue;
+import static is.gangverk.remoteconfig.Assert.fail;
+
+import is.gangverk.remoteconfig.benchmark.ConfigGenerator;
+import is.gangverk.remoteconfig.benchmark.InMemoryConfigStore;
+import is.gangverk.remoteconfig.loadtest.StubConfigServer;
+import is.gangverk.remoteconfig.loadtest.UrlConnectionTransport;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Tests fetching and applying a config against a {@link StubConfigServer} on localhost, with the
+ * {@link ConfigFetch} and {@link ConfigApply} RemoteConfig uses, through {@link FleetClient}
+ */
+public class ConfigFetchTest {
+    private static final int MAX_AGE = 60;
+
+    private final ConfigGenerator mGenerator = new ConfigGenerator(100, 2, 0);
+    private final UrlConnectionTransport mTransport = new UrlConnectionTransport(10000);
+
+    private StubConfigServer startServer(boolean patches) throws IOException {
+        StubConfigServer server = new StubConfigServer(mGenerator, false, patches, MAX_AGE, 2, 1000, 1);
+        server.start();
+        return server;
+    }
+
+    private FleetClient client(StubConfigServer server, ConfigStore store, RemoteConfigMetrics metrics) throws IOException {
+        return new FleetClient(mTransport, server.getLocation(), store, metrics, 0, new Random(1));
+    }
+
+    private void assertStored(int revision, ConfigStore store) throws IOException {
+        Map<String, Object> expected = FlatConfig.read(new StringReader(mGenerator.generate(revision))).getValues();
+        assertEquals(expected, store.load().asMap());
+    }
+
+    public void testFullResponseStoresTheValidators() throws IOException {
+        StubConfigServer server = startServer(false);
+        try {
+            InMemoryConfigStore store = new InMemoryConfigStore();
+            long before = System.currentTimeMillis();
+            assertEquals(200, client(server, store, null).refresh());
+            assertStored(0, store);
+            assertEquals(server.getETag(), store.getString(ConfigFetch.ETAG_KEY));
+            assertTrue("The object hashes are stored", store.getString(ConfigApply.CONFIG_HASHES_KEY)!=null);
+            assertEquals(MAX_AGE, store.getLong(Freshness.MAX_AGE_KEY, -1));
+            assertTrue("The download time is stored", store.getLong(Freshness.LAST_DOWNLOADED_CONFIG_KEY, 0)>=before);
+        } finally {
+            server.stop();
+        }
+    }
+
+    public void testNotModifiedSkipsTheApply() throws IOException {
+        StubConfigServer server = startServer(false);
+        try {
+            InMemoryConfigStore store = new InMemoryConfigStore();
+            CountingMetrics metrics = new CountingMetrics();
+            FleetClient client = client(server, store, metrics);
+            assertEquals(200, client.refresh());
+            String raw = store.readRawConfig();
+            assertEquals(304, client.refresh());
+            assertEquals(1, server.getNotModifiedResponses());
+            assertEquals(1, metrics.mApplies);
+            assertTrue("The stored document is kept", raw==store.readRawConfig());
+            assertStored(0, store);
+        } finally {
+            server.stop();
+        }
+    }
+
+    public void testValidatorsRoundTrip() throws IOException {
+        StubConfigServer server = startServer(false);
+        try {
+            InMemoryConfigStore store = new InMemoryConfigStore();
+            assertEquals(200, client(server, store, null).refresh());
+            server.publish(1);
+            // A new client on the same store, like the app starting again
+            FleetClient client = client(server, store, null);
+            assertEquals(200, client.refresh());
+            assertStored(1, store);
+            assertEquals(server.getETag(), store.getString(ConfigFetch.ETAG_KEY));
+            assertEquals(304, client(server, store, null).refresh());
+            assertEquals(2, server.getFullResponses());
+        } finally {
+            server.stop();
+        }
+    }
+
+    public void testValidatorsWaitForTheWrite() throws IOException {
+        StubConfigServer server = startServer(true);
+        try {
+            FailingStore store = new FailingStore();
+            FleetClient client = client(server, store, null);
+            assertEquals(200, client.refresh());
+            String eTag = store.getString(ConfigFetch.ETAG_KEY);
+            long downloaded = store.getLong(Freshness.LAST_DOWNLOADED_CONFIG_KEY, 0);
+            server.publish(1);
+            store.mFail = true;
+            try {
+                client.refresh();
+                fail("The write didn't fail");
+            } catch (IllegalStateException e) {
+                // Expected
+            }
+            assertEquals(eTag, store.getString(ConfigFetch.ETAG_KEY));
+            assertEquals(downloaded, store.getLong(Freshness.LAST_DOWNLOADED_CONFIG_KEY, 0));
+            // The old validators get the document again instead of a 304
+            store.mFail = false;
+            assertEquals(226, client.refresh());
+            assertStored(1, store);
+        } finally {
+            server.stop();
+        }
+    }
+
+    public void testGzip() throws IOException {
+        assertEncoding(StubConfigServer.ENCODING_GZIP);
+    }
+
+    public void testDeflate() throws IOException {
+        assertEncoding(StubConfigServer.ENCODING_DEFLATE);
+    }
+
+    public void testRawDeflate() throws IOException {
+        assertEncoding(StubConfigServer.ENCODING_RAW_DEFLATE);
+    }
+
+    private void assertEncoding(int encoding) throws IOException {
+        StubConfigServer server = startServer(false);
+        try {
+            server.setEncoding(encoding);
+            InMemoryConfigStore store = new InMemoryConfigStore();
+            assertEquals(200, client(server, store, null).refresh());
+            assertStored(0, store);
+            assertTrue("The body was compressed", server.getBytesSent()<mGenerator.generate(0).length());
+        } finally {
+            server.stop();
+        }
+    }
+
+    public void testPatchWithMatchingDeltaBase() throws IOException {
+        StubConfigServer server = startServer(true);
+        try {
+            InMemoryConfigStore store = new InMemoryConfigStore();
+            CountingMetrics metrics = new CountingMetrics();
+            FleetClient client = client(server, store, metrics);
+            assertEquals(200, client.refresh());
+            int fullChanges = metrics.mChangedKeys;
+            server.publish(1);
+            assertEquals(226, client.refresh());
+            assertStored(1, store);
+            assertEquals(server.getETag(), store.getString(ConfigFetch.ETAG_KEY));
+            assertEquals(1, server.getPatchResponses());
+            // Every tenth leaf changes between revisions
+            assertEquals(10, metrics.mChangedKeys - fullChanges);
+            // The hashes of the full document no longer describe the patched one
+            assertEquals(0, store.getLong(ConfigApply.CONFIG_HASH_KEY, -1));
+            assertEquals(null, store.getString(ConfigApply.CONFIG_HASHES_KEY));
+        } finally {
+            server.stop();
+        }
+    }
+
+    public void testPatchWithMismatchedDeltaBase() throws IOException {
+        StubConfigServer server = startServer(true);
+        try {
+            InMemoryConfigStore store = new InMemoryConfigStore();
+            FleetClient client = client(server, store, null);
+            assertEquals(200, client.refresh());
+            server.publish(1);
+            server.setDeltaBase("\"some other version\"");
+            // The patch is thrown away and the whole document fetched instead
+            assertEquals(200, client.refresh());
+            assertStored(1, store);
+            assertEquals(1, server.getPatchResponses());
+            assertEquals(2, server.getFullResponses());
+            assertEquals(server.getETag(), store.getString(ConfigFetch.ETAG_KEY));
+        } finally {
+            server.stop();
+        }
+    }
+
+    /**
+     * A store whose config writes can be made to fail
+     */
+    private static final class FailingStore extends InMemoryConfigStore {
+        volatile boolean mFail;
+
+        @Override
+        public synchronized ConfigSnapshot write(ConfigSnapshot current, Map<String, Object> changes, String rawConfig) {
+            if(mFail) {
+                throw new IllegalStateException("Disk full");
+            }
+            return super.write(current, changes, rawConfig);
+        }
+    }
+
+    private static final class CountingMetrics implements RemoteConfigMetrics {
+        int mApplies;
+        int mChangedKeys;
+
+        @Override
+        public void onFetch(String location, int statusCode, long transferredBytes, long bodyBytes, long networkNanos, long parseNanos) {
+        }
+
+        @Override
+        public void onApply(int keys, int changedKeys, long diffNanos, long persistNanos, long enqueueNanos) {
+            mApplies++;
+            mChangedKeys += changedKeys;
+        }
+
+        @Override
+        public void onRead(String key, boolean hit) {
+        }
+
+        @Override
+        public void onError(String stage, Throwable error) {
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package is.gangverk.remoteconfig;
+
+import static is.gangverk.remoteconfig.Assert.assertEquals;
+import static is.gangverk.remoteconfig.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Tests diffing documents with their {@link ConfigHashTree}
+ */
+public class ConfigHashTreeTest {
+    private static final String DOCUMENT = "{\"a\": {\"x\": 1, \"y\": \"s\"}, \"b\": {\"c\": {\"z\": true}}, \"d\": 2}";
+
+    private static FlatConfig read(String json) throws IOException {
+        return FlatConfig.read(new StringReader(json));
+    }
+
+    public void testSameDocumentSameRootHash() throws IOException {
+        // Whitespace isn't content
+        FlatConfig compact = read("{\"a\":{\"x\":1,\"y\":\"s\"},\"b\":{\"c\":{\"z\":true}},\"d\":2}");
+        assertEquals(read(DOCUMENT).getHashTree().getRootHash(), compact.getHashTree().getRootHash());
+        assertTrue("A changed leaf changes the root hash",
+                read(DOCUMENT).getHashTree().getRootHash()!=read(DOCUMENT.replace("true", "false")).getHashTree().getRootHash());
+    }
+
+    public void testOnlyChangedObjectsAreCompared() throws IOException {
+        FlatConfig previous = read(DOCUMENT);
+        FlatConfig next = read(DOCUMENT.replace("true", "false"));
+        // The current values say a.x is 5, a diff that looked into "a" would report it
+        HashMap<String, Object> stored = new HashMap<String, Object>(previous.getValues());
+        stored.put("a.x", 5);
+        HashMap<String, Object> changes = new HashMap<String, Object>();
+        next.getHashTree().diff(previous.getHashTree(), ConfigSnapshot.from(stored), changes);
+        assertEquals(1, changes.size());
+        assertEquals(Boolean.FALSE, changes.get("b.c.z"));
+    }
+
+    public void testDecodedHashesSkipUnchangedObjects() throws IOException {
+        // Keys with the separators of the encoding in them
+        String document = "{\"a\": {\"x\": 1}, \"b c:\": {\"d\": {\"z\": true}}, \"e\": 2}";
+        FlatConfig previous = read(document);
+        ConfigHashTree decoded = ConfigHashTree.decodeHashes(previous.getHashTree().encodeHashes());
+        assertEquals(previous.getHashTree().getRootHash(), decoded.getRootHash());
+        HashMap<String, Object> stored = new HashMap<String, Object>(previous.getValues());
+        stored.put("a.x", 5);
+        HashMap<String, Object> changes = new HashMap<String, Object>();
+        read(document.replace("true", "false")).getHashTree().diff(decoded, ConfigSnapshot.from(stored), changes);
+        assertEquals(1, changes.size());
+        assertEquals(Boolean.FALSE, changes.get("b c:.d.z"));
+    }
+
+    public void testMalformedHashesAreIgnored() throws IOException {
+        String encoded = read(DOCUMENT).getHashTree().encodeHashes();
+        assertTrue("Cut short", ConfigHashTree.decodeHashes(encoded.substring(0, encoded.length() - 1) + "x 9:")==null);
+        assertTrue("Not hex", ConfigHashTree.decodeHashes("xyz")==null);
+        assertTrue("Missing", ConfigHashTree.decodeHashes(null)==null);
+        assertEquals(read("{\"a\": 1}").getHashTree().getRootHash(), ConfigHashTree.decodeHashes(read("{\"a\": 1}").getHashTree().encodeHashes()).getRootHash());
+    }
+
+    public void testNoPreviousTreeComparesEveryLeaf() throws IOException {
+        FlatConfig next = read(DOCUMENT.replace("\"s\"", "\"t\""));
+        HashMap<String, Object> stored = new HashMap<String, Object>(read(DOCUMENT).getValues());
+        stored.put("a.x", 5);
+        HashMap<String, Object> changes = new HashMap<String, Object>();
+        next.getHashTree().diff(null, ConfigSnapshot.from(stored), changes);
+        assertEquals(2, changes.size());
+        assertEquals(1, changes.get("a.x"));
+        assertEquals("t", changes.get("a.y"));
+    }
+
+    public void testChangedTypeIsAChange() throws IOException {
+        FlatConfig previous = read("{\"a\": {\"x\": 1}}");
+        FlatConfig next = read("{\"a\": {\"x\": 1.0}}");
+        HashMap<String, Object> changes = new HashMap<String, Object>();
+        next.getHashTree().diff(previous.getHashTree(), ConfigSnapshot.from(previous.getValues()), changes);
+        assertEquals(Double.valueOf(1.0), changes.get("a.x"));
+    }
+
+    public void testNewLeavesAreChanges() throws IOException {
+        FlatConfig previous = read(DOCUMENT);
+        FlatConfig next = read("{\"a\": {\"x\": 1, \"y\": \"s\", \"w\": [1]}, \"b\": {\"c\": {\"z\": true}}, \"d\": 2, \"e\": 3}");
+        Map<String, Object> changes = new HashMap<String, Object>();
+        next.getHashTree().diff(previous.getHashTree(), ConfigSnapshot.from(previous.getValues()), changes);
+        assertEquals(2, changes.size());
+        assertEquals("[1]", changes.get("a.w"));
+        assertEquals(3, changes.get("e"));
+    }
+}
@@ -0,0 +1,84 @@
+package is.gangverk.remoteconfig;
+
+import static is.gangverk.remoteconfig.Assert.assertEquals;
+import static is.gangverk.remoteconfig.Assert.assertNull;
+import static is.gangverk.remoteconfig.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Tests bringing a stored config in line with new defaults with {@link ConfigMigrator}
+ */
+public class ConfigMigratorTest {
+    private static final Set<String> NONE = Collections.emptySet();
+
+    private static Map<String, Object> values(Object... keysAndValues) {
+        LinkedHashMap<String, Object> values = new LinkedHashMap<String, Object>();
+        for(int i=0;i<keysAndValues.length;i+=2) {
+            values.put((String)keysAndValues[i], keysAndValues[i+1]);
+        }
+        return values;
+    }
+
+    public void testSchemaRoundTrip() {
+        Map<String, Integer> schema = ConfigMigrator.decodeSchema(ConfigMigrator.encodeSchema(values("a", 1, "b.c", "x", "d", 2.5, "e", 3L, "f", true)));
+        assertEquals(5, schema.size());
+        assertEquals(ConfigSnapshot.TYPE_INT, schema.get("a").intValue());
+        assertEquals(ConfigSnapshot.TYPE_STRING, schema.get("b.c").intValue());
+        assertEquals(ConfigSnapshot.TYPE_DOUBLE, schema.get("d").intValue());
+        assertEquals(ConfigSnapshot.TYPE_LONG, schema.get("e").intValue());
+        assertEquals(ConfigSnapshot.TYPE_BOOLEAN, schema.get("f").intValue());
+        assertNull(ConfigMigrator.decodeSchema(null));
+    }
+
+    public void testRemovedKeysAreDropped() {
+        Map<String, Object> defaults = values("a", 2);
+        Map<String, Object> changes = ConfigMigrator.migrate(ConfigSnapshot.from(values("a", 1, "b", "x")),
+                ConfigMigrator.decodeSchema(ConfigMigrator.encodeSchema(values("a", 1, "b", "x"))), defaults, true, false, NONE);
+        // The stored value of a key the defaults still have is kept
+        assertEquals(1, changes.size());
+        assertTrue("b is removed", changes.containsKey("b") && changes.get("b")==null);
+    }
+
+    public void testDownloadedKeysAreKept() {
+        Map<String, Object> changes = ConfigMigrator.migrate(ConfigSnapshot.from(values("a", "x", "b", "y")),
+                ConfigMigrator.decodeSchema(ConfigMigrator.encodeSchema(values("a", 1, "b", "y"))), values("a", 2), true, false,
+                Collections.singleton("a"));
+        // a has the wrong type and b is gone from the defaults, only b didn't come from the server
+        assertEquals(1, changes.size());
+        assertTrue("b is removed", changes.containsKey("b"));
+    }
+
+    public void testChangedTypeTakesTheNewDefault() {
+        Map<String, Integer> schema = ConfigMigrator.decodeSchema(ConfigMigrator.encodeSchema(values("a", "x")));
+        Map<String, Object> stored = ConfigMigrator.migrate(ConfigSnapshot.from(values("a", "x")), schema, values("a", 1), true, false, NONE);
+        assertEquals(1, stored.get("a"));
+        // Compiled defaults aren't written to the store, the stored value is removed so the default shows through
+        Map<String, Object> compiled = ConfigMigrator.migrate(ConfigSnapshot.from(values("a", "x")), schema, values("a", 1), false, false, NONE);
+        assertTrue("a is removed", compiled.containsKey("a") && compiled.get("a")==null);
+    }
+
+    public void testWiderNumbersAreCompatible() {
+        Map<String, Object> changes = ConfigMigrator.migrate(ConfigSnapshot.from(values("a", 1, "b", 2L)),
+                null, values("a", 5L, "b", 2.5), true, false, NONE);
+        assertEquals(0, changes.size());
+        assertTrue("A double can't be read as an int", !ConfigMigrator.isCompatible(ConfigSnapshot.TYPE_DOUBLE, ConfigSnapshot.TYPE_INT));
+    }
+
+    public void testNewKeysAreAddedWhenDefaultsAreStored() {
+        ConfigSnapshot stored = ConfigSnapshot.from(values("a", 1));
+        Map<String, Object> defaults = values("a", 1, "b", "new");
+        assertEquals(values("b", "new"), ConfigMigrator.migrate(stored, null, defaults, true, false, NONE));
+        assertEquals(new HashMap<String, Object>(), ConfigMigrator.migrate(stored, null, defaults, false, false, NONE));
+    }
+
+    public void testOverwriteReplacesChangedDefaults() {
+        Map<String, Object> changes = ConfigMigrator.migrate(ConfigSnapshot.from(values("a", 1, "b", "x")),
+                null, values("a", 2, "b", "x"), true, true, NONE);
+        assertEquals(values("a", 2), changes);
+    }
+}
@@ -0,0 +1,90 @@
+package is.gangverk.remoteconfig;
+
+import static is.gangverk.remoteconfig.Assert.assertEquals;
+import static is.gangverk.remoteconfig.Assert.assertTrue;
+import static is.gangverk.remoteconfig.Assert.fail;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Tests flattening config documents with {@link FlatConfig} and {@link JsonFlattener}
+ */
+public class FlatConfigTest {
+    private static FlatConfig read(String json) throws IOException {
+        return FlatConfig.read(new StringReader(json));
+    }
+
+    public void testNestedObjectsBecomeDottedKeys() throws IOException {
+        Map<String, Object> values = read("{\"a\": {\"b\": 1, \"c\": {\"d\": \"x\"}}, \"e\": true}").getValues();
+        assertEquals(3, values.size());
+        assertEquals(1, values.get("a.b"));
+        assertEquals("x", values.get("a.c.d"));
+        assertEquals(Boolean.TRUE, values.get("e"));
+    }
+
+    public void testNumbersKeepTheirType() throws IOException {
+        Map<String, Object> values = read("{\"int\": 7, \"long\": 12345678901, \"double\": 1.5, \"exponent\": 1e3}").getValues();
+        assertEquals(Integer.valueOf(7), values.get("int"));
+        assertEquals(Long.valueOf(12345678901L), values.get("long"));
+        assertEquals(Double.valueOf(1.5), values.get("double"));
+        assertEquals(Double.valueOf(1000), values.get("exponent"));
+    }
+
+    public void testArraysAreKeptAsCompactJson() throws IOException {
+        Map<String, Object> values = read("{\"a\": [1, {\"b\": 2}, \"x\", [true]]}").getValues();
+        assertEquals(1, values.size());
+        assertEquals("[1,{\"b\":2},\"x\",[true]]", values.get("a"));
+    }
+
+    public void testStringEscapes() throws IOException {
+        Map<String, Object> values = read("{\"s\": \"a\\\"b\\\\c\\u00e9\\n\"}").getValues();
+        assertEquals("a\"b\\c\u00e9\n", values.get("s"));
+    }
+
+    public void testNullsAreListedApart() throws IOException {
+        FlatConfig config = read("{\"a\": null, \"b\": {\"c\": null}, \"d\": 1}");
+        assertEquals(1, config.getValues().size());
+        assertEquals(Arrays.asList("a", "b.c"), config.getNullKeys());
+        assertEquals(Arrays.asList("b"), config.getObjectKeys());
+    }
+
+    public void testPrefixIsPutInFrontOfEveryKey() throws IOException {
+        String json = "{\"a\": {\"b\": 1}}";
+        FlatConfig config = FlatConfig.read(new StringReader(json), "flags");
+        assertEquals(1, config.getValues().get("flags.a.b"));
+        assertEquals(json, config.getRaw());
+    }
+
+    public void testRawDocumentIsKept() throws IOException {
+        String json = "{\"a\": [1, 2], \"b\": {\"c\": \"d\"}}";
+        assertEquals(json, read(json).getRaw());
+    }
+
+    public void testInMemoryDocumentIsNotCopied() throws IOException {
+        String json = "{\"a\": {\"b\": 1}}";
+        FlatConfig config = FlatConfig.read(json, "p");
+        assertTrue("The string is kept as the raw document", config.getRaw()==json);
+        assertEquals(1, config.getValues().get("p.a.b"));
+    }
+
+    public void testMalformedDocumentThrows() {
+        String[] documents = {"", "[1]", "{\"a\": }", "{\"a\": 1", "{\"a\" 1}", "{\"a\": 1} x"};
+        for(String document : documents) {
+            try {
+                read(document);
+                fail("Read " + document);
+            } catch (IOException e) {
+                assertTrue(document, e.getMessage()!=null);
+            }
+        }
+    }
+
+    public void testMergePatch() throws IOException {
+        String patched = JsonFlattener.mergePatch("{\"a\": 1, \"b\": {\"c\": 2, \"d\": 3}, \"e\": 4}",
+                "{\"a\": 5, \"b\": {\"c\": null}, \"f\": [6]}");
+        assertEquals("{\"a\":5,\"b\":{\"d\":3},\"e\":4,\"f\":[6]}", patched);
+    }
+}
@@ -0,0 +1,113 @@
+package is.gangverk.remoteconfig;
+
+import static is.gangverk.remoteconfig.Assert.assertEquals;
+import static is.gangverk.remoteconfig.Assert.assertNull;
+import static is.gangverk.remoteconfig.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Tests reading values straight from the document with {@link LazyConfigSnapshot}
+ */
+public class LazyConfigSnapshotTest {
+    private static final String DOCUMENT = "{\"a\": {\"b\": 1, \"c\": \"x\\ny\"}, \"l\": 12345678901, \"d\": 2.5, \"t\": true, \"n\": null, \"arr\": [1, {\"z\": 2}]}";
+
+    public void testValuesMatchTheFlattenedDocument() throws IOException {
+        LazyConfigSnapshot snapshot = new LazyConfigSnapshot(DOCUMENT);
+        Map<String, Object> flattened = FlatConfig.read(new StringReader(DOCUMENT)).getValues();
+        assertEquals(flattened, snapshot.asMap());
+        assertEquals(flattened.size(), snapshot.size());
+        assertEquals("x\ny", snapshot.getString("a.c"));
+        assertEquals(1, snapshot.getInt("a.b", 0));
+        assertEquals(12345678901L, snapshot.getLong("l", 0));
+        assertEquals(Double.valueOf(2.5), Double.valueOf(snapshot.getDouble("d", 0)));
+        assertTrue("t", snapshot.getBoolean("t", false));
+        assertEquals("[1,{\"z\":2}]", snapshot.getString("arr"));
+    }
+
+    public void testTypes() {
+        LazyConfigSnapshot snapshot = new LazyConfigSnapshot(DOCUMENT);
+        assertEquals(ConfigSnapshot.TYPE_INT, snapshot.getType("a.b"));
+        assertEquals(ConfigSnapshot.TYPE_STRING, snapshot.getType("a.c"));
+        assertEquals(ConfigSnapshot.TYPE_LONG, snapshot.getType("l"));
+        assertEquals(ConfigSnapshot.TYPE_DOUBLE, snapshot.getType("d"));
+        assertEquals(ConfigSnapshot.TYPE_BOOLEAN, snapshot.getType("t"));
+    }
+
+    public void testMissingKeysAndObjectsHaveNoValue() {
+        LazyConfigSnapshot snapshot = new LazyConfigSnapshot(DOCUMENT);
+        assertNull(snapshot.get("missing"));
+        assertNull(snapshot.get("n"));
+        // Only leaves have values
+        assertNull(snapshot.get("a"));
+        assertEquals(ConfigSnapshot.TYPE_NONE, snapshot.getType("a"));
+        assertEquals(5, snapshot.getInt("missing", 5));
+        assertNull(snapshot.getString("missing"));
+    }
+
+    public void testDuplicateKeysKeepTheLastValue() throws IOException {
+        String json = "{\"a\": 1, \"b\": {\"c\": 2}, \"a\": 3, \"b\": {\"c\": 4}}";
+        LazyConfigSnapshot snapshot = new LazyConfigSnapshot(json);
+        assertEquals(3, snapshot.get("a"));
+        assertEquals(4, snapshot.get("b.c"));
+        assertEquals(2, snapshot.size());
+        assertEquals(FlatConfig.read(new StringReader(json)).getValues(), snapshot.asMap());
+    }
+
+    public void testManyKeysGrowTheIndex() {
+        StringBuilder json = new StringBuilder("{");
+        for(int i=0;i<1000;i++) {
+            if(i>0) json.append(',');
+            json.append("\"k").append(i).append("\":").append(i);
+        }
+        LazyConfigSnapshot snapshot = new LazyConfigSnapshot(json.append('}').toString());
+        assertEquals(1000, snapshot.size());
+        for(int i=0;i<1000;i++) {
+            assertEquals(i, snapshot.getInt("k" + i, -1));
+        }
+    }
+
+    public void testUnreadableDocumentIsEmpty() {
+        LazyConfigSnapshot snapshot = new LazyConfigSnapshot("{\"a\": ");
+        assertEquals(0, snapshot.size());
+        assertNull(snapshot.get("a"));
+    }
+
+    public void testWithLayersChangesOverTheDocument() {
+        LazyConfigSnapshot snapshot = new LazyConfigSnapshot(DOCUMENT);
+        HashMap<String, Object> changes = new HashMap<String, Object>();
+        changes.put("a.b", 10);
+        changes.put("new", "v");
+        ConfigSnapshot changed = snapshot.with(changes);
+        assertEquals(10, changed.get("a.b"));
+        assertEquals("v", changed.get("new"));
+        assertEquals("x\ny", changed.get("a.c"));
+        // The snapshot itself is left as it was
+        assertEquals(1, snapshot.get("a.b"));
+        assertTrue("No changes give the same snapshot", snapshot.with(new HashMap<String, Object>())==snapshot);
+    }
+
+    public void testWithRemovesKeys() {
+        LazyConfigSnapshot snapshot = new LazyConfigSnapshot(DOCUMENT);
+        HashMap<String, Object> changes = new HashMap<String, Object>();
+        changes.put("a.b", null);
+        changes.put("d", 3.5);
+        ConfigSnapshot changed = snapshot.with(changes);
+        assertNull(changed.get("a.b"));
+        assertEquals(ConfigSnapshot.TYPE_NONE, changed.getType("a.b"));
+        assertEquals(Double.valueOf(3.5), changed.get("d"));
+        assertEquals(snapshot.size() - 1, changed.size());
+    }
+
+    public void testFallbackReadsKeysTheDocumentDoesNotHave() {
+        HashMap<String, Object> stored = new HashMap<String, Object>();
+        stored.put("a.b", 99);
+        stored.put("asset.only", "default");
+        ConfigSnapshot snapshot = new LazyConfigSnapshot(DOCUMENT).withFallback(ConfigSnapshot.from(stored));
+        assertEquals(1, snapshot.get("a.b"));
+        assertEquals("default", snapshot.getString("asset.only"));
+    }
+}
@@ -0,0 +1,180 @@
+package is.gangverk.remoteconfig;
+
+import static is.gangverk.remoteconfig.Assert.assertEquals;
+import static is.gangverk.remoteconfig.Assert.assertNull;
+import static is.gangverk.remoteconfig.Assert.assertTrue;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Tests the binary snapshot, the delta file and compaction of {@link MappedConfigStore} in a
+ * temporary directory
+ */
+public class MappedConfigStoreTest {
+    private static final String NAME = "test";
+
+    private final File mDirectory;
+
+    public MappedConfigStoreTest() throws IOException {
+        mDirectory = File.createTempFile("rcstore", "");
+        mDirectory.delete();
+        mDirectory.mkdirs();
+        // Deleted in reverse order, the files before the directory
+        mDirectory.deleteOnExit();
+        for(String extension : new String[] {".rcs", ".rcd", ".json", ".meta", ".rcs.tmp", ".rcd.tmp", ".meta.tmp"}) {
+            new File(mDirectory, NAME + extension).deleteOnExit();
+        }
+    }
+
+    private MappedConfigStore open() {
+        return new MappedConfigStore(mDirectory, NAME);
+    }
+
+    private File file(String extension) {
+        return new File(mDirectory, NAME + extension);
+    }
+
+    private static Map<String, Object> values(Object... keysAndValues) {
+        LinkedHashMap<String, Object> values = new LinkedHashMap<String, Object>();
+        for(int i=0;i<keysAndValues.length;i+=2) {
+            values.put((String)keysAndValues[i], keysAndValues[i+1]);
+        }
+        return values;
+    }
+
+    private static Map<String, Object> manyValues(int count) {
+        HashMap<String, Object> values = new HashMap<String, Object>();
+        for(int i=0;i<count;i++) {
+            values.put("key" + i, i);
+        }
+        return values;
+    }
+
+    public void testEveryTypeSurvivesReopening() {
+        Map<String, Object> written = values("s", "a\u00e9\u4e2d", "i", 7, "l", 12345678901L, "d", 1.5, "b", true, "empty", "");
+        MappedConfigStore store = open();
+        store.write(store.load(), written, "{}");
+        ConfigSnapshot loaded = open().load();
+        assertEquals(written, loaded.asMap());
+        assertEquals(ConfigSnapshot.TYPE_LONG, loaded.getType("l"));
+        assertEquals(Double.valueOf(1.5), Double.valueOf(loaded.getDouble("d", 0)));
+        assertTrue("b", loaded.getBoolean("b", false));
+        assertEquals(7L, loaded.getLong("i", 0));
+        assertEquals("{}", open().readRawConfig());
+    }
+
+    public void testSnapshotHeaderAndIndex() throws IOException {
+        MappedConfigStore store = open();
+        store.write(store.load(), values("b", 1, "a", "xy"), "{}");
+        DataInputStream in = new DataInputStream(new FileInputStream(file(".rcs")));
+        try {
+            assertEquals(0x52435331, in.readInt());
+            int count = in.readInt();
+            assertEquals(2, count);
+            int keysStart = in.readInt();
+            assertEquals(5 * 4 + count * 4 * 4, keysStart);
+            // Two one-character keys
+            assertEquals(keysStart + 2 * 2, in.readInt());
+            in.readInt();
+            // The index is sorted by key, so "a" is first: offset 0, length 1, string, value offset 0
+            assertEquals(0, in.readInt());
+            assertEquals(1, in.readInt());
+            assertEquals(ConfigSnapshot.TYPE_STRING, in.readInt());
+            assertEquals(0, in.readInt());
+            // Then "b", after the char count and the two chars of "xy"
+            assertEquals(1, in.readInt());
+            assertEquals(1, in.readInt());
+            assertEquals(ConfigSnapshot.TYPE_INT, in.readInt());
+            assertEquals(4 + 2 * 2, in.readInt());
+            assertEquals('a', in.readChar());
+            assertEquals('b', in.readChar());
+        } finally {
+            in.close();
+        }
+    }
+
+    public void testSmallChangesGoToTheDelta() {
+        MappedConfigStore store = open();
+        ConfigSnapshot current = store.write(store.load(), manyValues(100), "{}");
+        long snapshotLength = file(".rcs").length();
+        assertTrue("No delta after a full write", !file(".rcd").exists());
+        HashMap<String, Object> changes = new HashMap<String, Object>();
+        changes.put("key1", "changed");
+        changes.put("key2", null);
+        changes.put("new", 2.5);
+        current = store.write(current, changes, "{\"a\":1}");
+        assertTrue("The changes are in the delta", file(".rcd").exists());
+        assertEquals(snapshotLength, file(".rcs").length());
+        assertEquals("changed", current.get("key1"));
+        ConfigSnapshot loaded = open().load();
+        assertEquals(100, loaded.size());
+        assertEquals("changed", loaded.get("key1"));
+        assertNull(loaded.get("key2"));
+        assertEquals(ConfigSnapshot.TYPE_NONE, loaded.getType("key2"));
+        assertEquals(Double.valueOf(2.5), loaded.get("new"));
+        assertEquals(3, loaded.get("key3"));
+        assertEquals("{\"a\":1}", open().readRawConfig());
+    }
+
+    public void testManyChangesCompactTheSnapshot() {
+        MappedConfigStore store = open();
+        ConfigSnapshot current = store.write(store.load(), manyValues(100), "{}");
+        HashMap<String, Object> changes = new HashMap<String, Object>();
+        for(int i=0;i<ConfigSnapshot.OverlaySnapshot.MIN_COMPACT_SIZE + 1;i++) {
+            changes.put("key" + i, -i);
+        }
+        current = store.write(current, changes, "{}");
+        assertTrue("The snapshot was written again", !file(".rcd").exists());
+        assertTrue("A compacted snapshot is mapped", current instanceof MappedConfigStore.MappedSnapshot);
+        ConfigSnapshot loaded = open().load();
+        assertEquals(100, loaded.size());
+        assertEquals(-5, loaded.get("key5"));
+        assertEquals(99, loaded.get("key99"));
+    }
+
+    public void testDeltaOfAnotherSnapshotIsIgnored() throws IOException {
+        MappedConfigStore store = open();
+        store.write(store.load(), values("a", 1), "{}");
+        int stamp = MappedConfigStore.map(file(".rcs")).getStamp();
+        // Left behind by a write that was cut short before the snapshot was replaced
+        MappedConfigStore.writeDelta(file(".rcd"), stamp - 1, values("a", 2));
+        assertEquals(1, open().load().get("a"));
+        MappedConfigStore.writeDelta(file(".rcd"), stamp, values("a", 3));
+        assertEquals(3, open().load().get("a"));
+    }
+
+    public void testBrokenSnapshotIsDropped() throws IOException {
+        FileOutputStream out = new FileOutputStream(file(".rcs"));
+        try {
+            out.write(new byte[] {1, 2, 3});
+        } finally {
+            out.close();
+        }
+        assertEquals(0, open().load().size());
+        assertTrue("The broken snapshot is deleted", !file(".rcs").exists());
+    }
+
+    public void testMetadataBatch() {
+        MappedConfigStore store = open();
+        store.putString("gone", "x");
+        TreeMap<String, Object> metadata = new TreeMap<String, Object>();
+        metadata.put("int", 3);
+        metadata.put("long", 4L);
+        metadata.put("string", "s");
+        metadata.put("gone", null);
+        store.putMetadata(metadata);
+        MappedConfigStore reopened = open();
+        assertEquals(3, reopened.getInt("int", 0));
+        assertEquals(4L, reopened.getLong("long", 0));
+        assertEquals("s", reopened.getString("string"));
+        assertNull(reopened.getString("gone"));
+    }
+}
@@ -0,0 +1,67 @@
+package is.gangverk.remoteconfig;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Runs the unit tests on a plain JVM. Every public method of a test class whose name starts with
+ * "test" is run on a new instance of the class. The exit code is 1 if a test failed, so a script
+ * can tell whether they all passed.
+ *
+ * <pre>
+ * java is.gangverk.remoteconfig.RunTests [TestClass...]
+ * </pre>
+ */
+public class RunTests {
+    private static final Class<?>[] TESTS = {
+            FlatConfigTest.class,
+            ConfigHashTreeTest.class,
+            ConfigMigratorTest.class,
+            ConfigFetchTest.class,
+            MappedConfigStoreTest.class,
+            LazyConfigSnapshotTest.class,
+            TargetingRulesTest.class,
+    };
+
+    public static void main(String[] args) throws Exception {
+        Class<?>[] tests = TESTS;
+        if(args.length>0) {
+            tests = new Class<?>[args.length];
+            for(int i=0;i<args.length;i++) {
+                tests[i] = Class.forName(args[i].contains(".") ? args[i] : "is.gangverk.remoteconfig." + args[i]);
+            }
+        }
+        int run = 0;
+        int failed = 0;
+        for(Class<?> test : tests) {
+            Method[] methods = test.getMethods();
+            // Reflection gives no order, sorting keeps the output the same from run to run
+            Arrays.sort(methods, new Comparator<Method>() {
+                @Override
+                public int compare(Method lhs, Method rhs) {
+                    return lhs.getName().compareTo(rhs.getName());
+                }
+            });
+            for(Method method : methods) {
+                if(!method.getName().startsWith("test") || method.getParameterTypes().length>0 || Modifier.isStatic(method.getModifiers())) {
+                    continue;
+                }
+                run++;
+                String name = test.getSimpleName() + "." + method.getName();
+                try {
+                    method.invoke(test.newInstance());
+                    System.out.println("PASS " + name);
+                } catch (InvocationTargetException e) {
+                    failed++;
+                    System.out.println("FAIL " + name);
+                    e.getCause().printStackTrace(System.out);
+                }
+            }
+        }
+        System.out.println(run + " tests, " + failed + " failed");
+        System.exit(failed>0 ? 1 : 0);
+    }
+}
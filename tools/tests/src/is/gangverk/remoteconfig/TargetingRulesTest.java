@@ -0,0 +1,119 @@
+package is.gangverk.remoteconfig;
+
+import static is.gangverk.remoteconfig.Assert.assertEquals;
+import static is.gangverk.remoteconfig.Assert.assertNull;
+import static is.gangverk.remoteconfig.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Tests compiling and evaluating the conditions of {@link TargetingRules}
+ */
+public class TargetingRulesTest {
+    private static final TargetingContext DEVICE = new TargetingContext("device", 230, new Locale("pt", "BR"));
+
+    private static Map<String, Object> evaluate(String rules, TargetingContext context) throws IOException {
+        HashMap<String, Object> values = new HashMap<String, Object>();
+        TargetingRules.compile(rules, "", null).evaluate(context, values);
+        return values;
+    }
+
+    private static Object value(String rules, TargetingContext context) throws IOException {
+        return evaluate(rules, context).get("k");
+    }
+
+    public void testRuleWithoutConditionsAlwaysMatches() throws IOException {
+        assertEquals("v", value("[{\"key\": \"k\", \"value\": \"v\"}]", DEVICE));
+    }
+
+    public void testVersionRangeIsInclusive() throws IOException {
+        String rules = "[{\"key\": \"k\", \"value\": 1, \"minVersion\": 230, \"maxVersion\": 240}]";
+        assertEquals(1, value(rules, DEVICE));
+        assertEquals(1, value(rules, new TargetingContext("device", 240, Locale.US)));
+        assertNull(value(rules, new TargetingContext("device", 229, Locale.US)));
+        assertNull(value(rules, new TargetingContext("device", 241, Locale.US)));
+        assertNull(value("[{\"key\": \"k\", \"value\": 1, \"maxVersion\": 100}]", DEVICE));
+    }
+
+    public void testLanguageMatchesEveryCountry() throws IOException {
+        assertEquals(1, value("[{\"key\": \"k\", \"value\": 1, \"locales\": [\"pt\"]}]", DEVICE));
+        assertEquals(1, value("[{\"key\": \"k\", \"value\": 1, \"locales\": [\"en\", \"pt-BR\"]}]", DEVICE));
+        assertNull(value("[{\"key\": \"k\", \"value\": 1, \"locales\": [\"pt_PT\"]}]", DEVICE));
+        assertNull(value("[{\"key\": \"k\", \"value\": 1, \"locales\": [\"p\"]}]", DEVICE));
+    }
+
+    public void testRolloutShareOfDevices() throws IOException {
+        String rules = "[{\"key\": \"k\", \"value\": 1, \"rollout\": 20}]";
+        int matched = 0;
+        for(int i=0;i<5000;i++) {
+            if(value(rules, new TargetingContext("device" + i, 1, Locale.US))!=null) {
+                matched++;
+            }
+        }
+        assertTrue("About a fifth of the devices, got " + matched, matched>800 && matched<1200);
+        assertNull(value("[{\"key\": \"k\", \"value\": 1, \"rollout\": 0}]", DEVICE));
+        assertEquals(1, value("[{\"key\": \"k\", \"value\": 1, \"rollout\": 100}]", DEVICE));
+    }
+
+    public void testSameSaltSameBucket() throws IOException {
+        String rules = "[{\"key\": \"a\", \"value\": 1, \"rollout\": 50, \"salt\": \"s\"}, {\"key\": \"b\", \"value\": 1, \"rollout\": 50, \"salt\": \"s\"}]";
+        for(int i=0;i<200;i++) {
+            Map<String, Object> values = evaluate(rules, new TargetingContext("device" + i, 1, Locale.US));
+            assertEquals(values.containsKey("a"), values.containsKey("b"));
+        }
+    }
+
+    public void testNestedConditions() throws IOException {
+        String any = "[{\"key\": \"k\", \"value\": 1, \"any\": [{\"locales\": [\"de\"]}, {\"minVersion\": 200}]}]";
+        assertEquals(1, value(any, DEVICE));
+        assertNull(value(any, new TargetingContext("device", 100, Locale.US)));
+        String all = "[{\"key\": \"k\", \"value\": 1, \"all\": [{\"locales\": [\"pt\"]}, {\"minVersion\": 300}]}]";
+        assertNull(value(all, DEVICE));
+        String none = "[{\"key\": \"k\", \"value\": 1, \"none\": [{\"locales\": [\"de\"]}]}]";
+        assertEquals(1, value(none, DEVICE));
+        assertNull(value(none, new TargetingContext("device", 230, Locale.GERMANY)));
+    }
+
+    public void testFirstMatchingRuleWins() throws IOException {
+        String rules = "[{\"key\": \"k\", \"value\": 1, \"minVersion\": 300}, {\"key\": \"k\", \"value\": 2}, {\"key\": \"k\", \"value\": 3}]";
+        assertEquals(2, value(rules, DEVICE));
+        // A value that is already there isn't replaced
+        HashMap<String, Object> values = new HashMap<String, Object>();
+        values.put("k", 0);
+        TargetingRules.compile(rules, "", null).evaluate(DEVICE, values);
+        assertEquals(0, values.get("k"));
+    }
+
+    public void testObjectValueSetsEveryLeaf() throws IOException {
+        Map<String, Object> values = evaluate("[{\"key\": \"o\", \"value\": {\"a\": 1, \"b\": {\"c\": \"x\"}}}]", DEVICE);
+        assertEquals(2, values.size());
+        assertEquals(1, values.get("o.a"));
+        assertEquals("x", values.get("o.b.c"));
+        assertEquals("[1,2]", value("[{\"key\": \"k\", \"value\": [1, 2]}]", DEVICE));
+    }
+
+    public void testPrefixIsPutInFront() throws IOException {
+        HashMap<String, Object> values = new HashMap<String, Object>();
+        TargetingRules.compile("[{\"key\": \"k\", \"value\": 1}]", "ns.", null).evaluate(DEVICE, values);
+        assertEquals(1, values.get("ns.k"));
+    }
+
+    public void testMalformedRulesAreSkipped() throws IOException {
+        String rules = "[1, {\"value\": 1}, {\"key\": \"k\"}, {\"key\": \"k\", \"value\": 1, \"any\": [2]}, {\"key\": \"k\", \"value\": 2, \"unknown\": true}]";
+        final int[] errors = new int[1];
+        RemoteConfigMetrics metrics = new RemoteConfigCounters(false) {
+            @Override
+            public void onError(String stage, Throwable error) {
+                errors[0]++;
+            }
+        };
+        HashMap<String, Object> values = new HashMap<String, Object>();
+        TargetingRules.compile(rules, "", metrics).evaluate(DEVICE, values);
+        assertEquals(4, errors[0]);
+        // Unknown conditions are ignored
+        assertEquals(2, values.get("k"));
+    }
+}